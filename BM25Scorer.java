@@ -0,0 +1,187 @@
+import java.util.*;
+
+/** Okapi BM25 scores of the documents of an index, with a score upper bound per term.
+ * <br> The postings files hold no document lengths, so the length of a document is the
+ * sum of the term frequencies of all indexed terms in it. Lengths and bounds are computed
+ * in two passes over the document ID ordered lists when the scorer is created, after that
+ * the scorer is read only and can be shared by threads.
+ * <br> The upper bound of a term is the highest score any of its postings reaches. It lets
+ * {@link Functions#rankedQuery(String[])} skip documents that can not enter the top k. */
+public class BM25Scorer {
+	
+	/** Term frequency saturation */
+	public static final double K1=1.2;
+	
+	/** Document length normalization */
+	public static final double B=0.75;
+	
+	/** Relative amount the bounds are rounded up by, so that summing scores in another
+	 * order can not come out above the sum of the bounds */
+	private static final double BOUND_SLACK=1e-9;
+	
+	/** Number of documents with at least one indexed term */
+	private int n=0;
+	
+	/** Average document length */
+	private double avgdl;
+	
+	/** K1*(1-B+B*length/avgdl) of every document ID */
+	private float[] norms;
+	
+	/** Highest score of every term */
+	private HashMap<String,Double> bounds;
+	
+	/** Collect the document lengths and the term upper bounds
+	 * @param daat Hashtable of postings lists ordered by Document ID */
+	BM25Scorer(Map<String,Postings> daat){
+		//Pass 1: document lengths
+		int[] lengths=new int[1024];
+		long total=0;
+		for(Postings p:daat.values()){
+			PostingsIterator it=p.iterator();
+			for(int d=it.nextDoc();d!=PostingsIterator.NO_MORE_DOCS;d=it.nextDoc()){
+				if(d>=lengths.length)
+					lengths=Arrays.copyOf(lengths,Math.max(d+1,lengths.length*2));
+				if(lengths[d]==0)
+					n++;
+				lengths[d]+=it.tf();
+				total+=it.tf();
+			}
+		}
+		avgdl=n==0 ? 1 : (double)total/n;
+		norms=new float[lengths.length];
+		for(int d=0;d<lengths.length;d++)
+			norms[d]=(float)(K1*(1-B+B*lengths[d]/avgdl));
+		
+		//Pass 2: highest score of every term
+		bounds=new HashMap<String,Double>(daat.size()*2);
+		for(Map.Entry<String,Postings> e:daat.entrySet())
+			bounds.put(e.getKey(),bound(e.getValue()));
+	}
+	
+	/** Highest score of the documents of a postings list, with the slack for rounding */
+	private double bound(Postings p){
+		double idf=idf(p.size());
+		double max=0;
+		PostingsIterator it=p.iterator();
+		for(int d=it.nextDoc();d!=PostingsIterator.NO_MORE_DOCS;d=it.nextDoc())
+			max=Math.max(max,score(idf,it.tf(),d));
+		return max*(1+BOUND_SLACK);
+	}
+	
+	/** Inverse document frequency, always positive
+	 * @param df Number of documents containing the term
+	 * @return ln(1+(N-df+0.5)/(df+0.5)) */
+	public double idf(int df){
+		return Math.log(1+(n-df+0.5)/(df+0.5));
+	}
+	
+	/** Score contribution of one term to one document
+	 * @param idf Inverse document frequency of the term, see {@link #idf(int)}
+	 * @param tf Frequency of the term in the document
+	 * @param doc Document ID
+	 * @return BM25 score */
+	public double score(double idf,int tf,int doc){
+		return idf*tf*(K1+1)/(tf+norms[doc]);
+	}
+	
+	/** Highest score a term contributes to any document, computed from its postings when
+	 * the term was not in the index the scorer was built over, such as a {@link WildcardIndex} pattern
+	 * @param term Term
+	 * @param p Document ID ordered postings of the term
+	 * @return Upper bound */
+	public double upperBound(String term,Postings p){
+		Double b=bounds.get(term);
+		return b!=null ? b : bound(p);
+	}
+	
+	/** The k best scored documents seen so far.
+	 * <br> A min-heap whose root is the worst kept document. Documents have to be offered in
+	 * increasing order of Document ID, so a document only replaces one with a lower score and
+	 * ties are kept by the lower Document ID */
+	static class TopDocs {
+		private int[] docs;
+		private double[] scores;
+		private int size=0;
+		
+		/** @param k Number of documents to keep */
+		TopDocs(int k){
+			docs=new int[k];
+			scores=new double[k];
+		}
+		
+		/** Score a document has to beat to be kept
+		 * @return Score of the worst kept document, 0 while fewer than k are kept */
+		double threshold(){
+			return size<docs.length ? 0 : scores[0];
+		}
+		
+		/** Keep a document if it is among the k best so far
+		 * @param doc Document ID, larger than all earlier ones
+		 * @param score Score of the document */
+		void offer(int doc,double score){
+			if(docs.length==0)
+				return;
+			if(size<docs.length){
+				int i=size++;
+				while(i>0 && scores[(i-1)/2]>=score){
+					docs[i]=docs[(i-1)/2];
+					scores[i]=scores[(i-1)/2];
+					i=(i-1)/2;
+				}
+				docs[i]=doc;
+				scores[i]=score;
+			}else if(score>scores[0]){
+				//Replace the root and move it down
+				int i=0;
+				while(true){
+					int c=2*i+1;
+					if(c>=size)
+						break;
+					if(c+1<size && worse(c+1,c))
+						c++;
+					if(!(scores[c]<score))
+						break;
+					docs[i]=docs[c];
+					scores[i]=scores[c];
+					i=c;
+				}
+				docs[i]=doc;
+				scores[i]=score;
+			}
+		}
+		
+		/** Entry a is dropped before entry b: lower score, or the same score and a later document */
+		private boolean worse(int a,int b){
+			return scores[a]<scores[b] || (scores[a]==scores[b] && docs[a]>docs[b]);
+		}
+		
+		/** @return Number of documents kept */
+		int size(){
+			return size;
+		}
+		
+		/** Kept documents, best first
+		 * @param none
+		 * @return "doc (score)" entries separated by ", " */
+		@Override
+		public String toString(){
+			Integer[] order=new Integer[size];
+			for(int i=0;i<size;i++)
+				order[i]=i;
+			Arrays.sort(order,new Comparator<Integer>(){
+				@Override
+				public int compare(Integer a,Integer b){
+					return worse(a,b) ? 1 : worse(b,a) ? -1 : 0;
+				}
+			});
+			StringBuilder sb=new StringBuilder(size*16);
+			for(int i=0;i<size;i++){
+				if(i!=0)
+					sb.append(", ");
+				sb.append(docs[order[i]]).append(" (").append(String.format(Locale.ROOT,"%.4f",scores[order[i]])).append(')');
+			}
+			return sb.toString();
+		}
+	}
+}
@@ -0,0 +1,479 @@
+import java.io.*;
+import java.util.*;
+
+/** Benchmarks for index construction and the query algorithms.
+ * <br> A synthetic postings file with Zipf distributed document frequencies is written by
+ * {@link PostingsGenerator}, then every case is run for a number of warmup iterations
+ * followed by measured iterations. The latency of every single operation is recorded with
+ * System.nanoTime and summarized as throughput, mean and percentiles.
+ * <br> The query cases write their results to a scratch file, so output formatting is part of
+ * the measured cost just like in a real run. DAAT_OR.async hands the formatting to the
+ * background thread of {@link ResultWriter} and measures what is left on the query thread.
+ * <br><br> Usage: java Benchmark [options]
+ * <br> --terms=N			Number of terms in the synthetic index (default 5000)
+ * <br> --docs=N			Number of documents (default 50000)
+ * <br> --zipf=S			Zipf exponent of the document frequencies (default 1.0)
+ * <br> --queries=N			Number of queries per iteration (default 200)
+ * <br> --query-terms=N		Terms per query (default 2)
+ * <br> --warmup=N			Warmup iterations per case (default 3)
+ * <br> --iterations=N		Measured iterations per case (default 5)
+ * <br> --threads=N			Threads for the parallel build case (default: available processors)
+ * <br> --seed=N			Random seed (default 42)
+ * <br> --only=a,b			Run only the named cases, this is also the way to run the slow cases
+ * <br> --list				Print the names of the cases
+ * <br><br> The cases ending in .vector use the Vector API kernel and are only listed when
+ * VectorIntersection is compiled and jdk.incubator.vector is added, see {@link IntersectionKernel}.
+ * Their .scalar counterparts run the same code with the scalar kernel. */
+public class Benchmark {
+	
+	private int terms=5000;
+	private int docs=50000;
+	private double zipf=1.0;
+	private int queries=200;
+	private int query_terms=2;
+	private int warmup=3;
+	private int iterations=5;
+	private int threads=Runtime.getRuntime().availableProcessors();
+	private long seed=42;
+	private Set<String> only=null;
+	
+	private String postings_file;
+	private String scratch_file;
+	private String[] lines;					//Postings part of every line, for the sort case
+	private String[][] query_set;
+	
+	/** One benchmarked operation */
+	private abstract static class Case {
+		String name;
+		boolean slow;						//Only run when asked for by name
+		
+		Case(String name,boolean slow){
+			this.name=name;
+			this.slow=slow;
+		}
+		
+		/** Prepare the data the case works on, not measured */
+		void setup() throws Exception{
+		}
+		
+		/** Number of operations in one iteration */
+		abstract int ops();
+		
+		/** Run one operation
+		 * @param i Operation number within the iteration */
+		abstract void run(int i) throws Exception;
+	}
+	
+	public static void main(String[] ip) throws Exception{
+		Benchmark b=new Benchmark();
+		boolean list=false;
+		
+		for(int i=0;i<ip.length;i++){
+			String a=ip[i];
+			String v=a.indexOf('=')<0 ? "" : a.substring(a.indexOf('=')+1);
+			if(a.startsWith("--terms="))
+				b.terms=Integer.parseInt(v);
+			else if(a.startsWith("--docs="))
+				b.docs=Integer.parseInt(v);
+			else if(a.startsWith("--zipf="))
+				b.zipf=Double.parseDouble(v);
+			else if(a.startsWith("--queries="))
+				b.queries=Integer.parseInt(v);
+			else if(a.startsWith("--query-terms="))
+				b.query_terms=Integer.parseInt(v);
+			else if(a.startsWith("--warmup="))
+				b.warmup=Integer.parseInt(v);
+			else if(a.startsWith("--iterations="))
+				b.iterations=Integer.parseInt(v);
+			else if(a.startsWith("--threads="))
+				b.threads=Integer.parseInt(v);
+			else if(a.startsWith("--seed="))
+				b.seed=Long.parseLong(v);
+			else if(a.startsWith("--only="))
+				b.only=new HashSet<String>(Arrays.asList(v.split(",")));
+			else if(a.equals("--list"))
+				list=true;
+			else{
+				System.out.println("Unknown option: "+a);
+				System.exit(-1);
+			}
+		}
+		
+		List<Case> cases=b.cases();
+		if(list){
+			for(Case c:cases)
+				System.out.println(c.name+(c.slow ? " (slow, run with --only)" : ""));
+			return;
+		}
+		b.run(cases);
+	}
+	
+	/** Generate the data and run the selected cases */
+	private void run(List<Case> cases) throws Exception{
+		File data=File.createTempFile("postings",".txt");
+		File scratch=File.createTempFile("results",".txt");
+		data.deleteOnExit();
+		scratch.deleteOnExit();
+		postings_file=data.getPath();
+		scratch_file=scratch.getPath();
+		
+		System.out.println("Generating "+terms+" terms over "+docs+" documents, zipf "+zipf);
+		new PostingsGenerator(terms,docs,zipf,seed).write(postings_file);
+		
+		//Postings part of every line, for the sort case
+		ArrayList<String> l=new ArrayList<String>();
+		BufferedReader r=new BufferedReader(new FileReader(postings_file));
+		String line;
+		while((line=r.readLine())!=null)
+			l.add(line.substring(line.indexOf("\\m[")+3,line.length()-1));
+		r.close();
+		lines=l.toArray(new String[0]);
+		
+		//Query terms are drawn with the same skew as the document frequencies
+		Random rnd=new Random(seed);
+		double[] cdf=PostingsGenerator.cdf(terms,zipf);
+		query_set=new String[queries][query_terms];
+		for(int i=0;i<queries;i++)
+			for(int j=0;j<query_terms;j++)
+				query_set[i][j]=PostingsGenerator.term(PostingsGenerator.sample(cdf,rnd));
+		
+		System.out.println(String.format("%-22s %10s %12s %12s %12s %12s %12s",
+				"case","ops/s","mean us","p50 us","p90 us","p99 us","max us"));
+		for(Case c:cases){
+			if(only==null ? c.slow : !only.contains(c.name))
+				continue;
+			measure(c);
+		}
+	}
+	
+	/** Run warmup and measured iterations of a case and print the summary */
+	private void measure(Case c) throws Exception{
+		c.setup();
+		int ops=c.ops();
+		for(int it=0;it<warmup;it++)
+			for(int i=0;i<ops;i++)
+				c.run(i);
+		
+		long[] lat=new long[ops*iterations];
+		int n=0;
+		long total=0;
+		for(int it=0;it<iterations;it++){
+			for(int i=0;i<ops;i++){
+				long s=System.nanoTime();
+				c.run(i);
+				long t=System.nanoTime()-s;
+				lat[n++]=t;
+				total+=t;
+			}
+		}
+		Arrays.sort(lat);
+		
+		System.out.println(String.format("%-22s %10.1f %12.1f %12.1f %12.1f %12.1f %12.1f",c.name,
+				n/(total/1e9),total/1e3/n,pct(lat,0.5),pct(lat,0.9),pct(lat,0.99),lat[n-1]/1e3));
+	}
+	
+	/** Percentile of sorted latencies, in microseconds */
+	private static double pct(long[] sorted,double p){
+		return sorted[Math.min(sorted.length-1,(int)(p*sorted.length))]/1e3;
+	}
+	
+	/** Build an index over the synthetic postings file */
+	private BuildIndex build(boolean compress,boolean bitmap){
+		return build(compress,bitmap,false);
+	}
+	
+	private BuildIndex build(boolean compress,boolean bitmap,boolean off_heap){
+		BuildIndex b=new BuildIndex(postings_file);
+		if(off_heap)
+			b.offHeap(new PostingsArena());
+		if(!b.construct())
+			throw new IllegalStateException("Failed to construct index");
+		if(bitmap)
+			b.bitmap();
+		if(compress)
+			b.compress();
+		return b;
+	}
+	
+	/** All benchmark cases */
+	private List<Case> cases(){
+		List<Case> c=new ArrayList<Case>();
+		
+		c.add(new Case("SortArr.sort",false){
+			int ops(){
+				return lines.length;
+			}
+			void run(int i){
+				SortArr.sort(lines[i]);
+			}
+		});
+		c.add(new Case("PostingsReader.read",false){
+			int ops(){
+				return 1;
+			}
+			void run(int i) throws Exception{
+				new PostingsReader(postings_file).read(new PostingsReader.Sink(){
+					@Override
+					public void term(String term,int[] docs,int[] tfs,int n){
+					}
+				});
+			}
+		});
+		c.add(new Case("construct",false){
+			int ops(){
+				return 1;
+			}
+			void run(int i){
+				build(false,false);
+			}
+		});
+		c.add(new Case("construct.offheap",false){
+			int ops(){
+				return 1;
+			}
+			void run(int i){
+				build(false,false,true);
+			}
+		});
+		c.add(new Case("construct.parallel",false){
+			int ops(){
+				return 1;
+			}
+			void run(int i){
+				if(!new BuildIndex(postings_file).construct(threads))
+					throw new IllegalStateException("Failed to construct index");
+			}
+		});
+		c.add(new QueryCase("getTopK",false,false){
+			int ops(){
+				return 1;
+			}
+			void run(int i){
+				f.getTopK(10,index.getTAAT());
+			}
+		});
+		c.add(new QueryCase("TAAT_AND",true,false){
+			void run(int i){
+				f.TAAT_AND(query_set[i],false);
+			}
+		});
+		c.add(new QueryCase("TAAT_OR",true,false){
+			void run(int i){
+				f.TAAT_OR(query_set[i],false);
+			}
+		});
+		c.add(new QueryCase("TAAT_AND.merge",false,false){
+			void setup(){
+				super.setup();
+				f.setSortedMerge(true);
+			}
+			void run(int i){
+				f.TAAT_AND(query_set[i],false);
+			}
+		});
+		c.add(new QueryCase("TAAT_OR.merge",false,false){
+			void setup(){
+				super.setup();
+				f.setSortedMerge(true);
+			}
+			void run(int i){
+				f.TAAT_OR(query_set[i],false);
+			}
+		});
+		c.add(new QueryCase("DAAT_AND",false,false){
+			void run(int i){
+				f.DAAT_AND(query_set[i]);
+			}
+		});
+		c.add(new QueryCase("DAAT_OR",false,false){
+			void run(int i){
+				f.DAAT_OR(query_set[i]);
+			}
+		});
+		c.add(new QueryCase("DAAT_AND.offheap",false,false){
+			void setup(){
+				index=build(false,false,true);
+				f=new Functions(index.getTAAT(),index.getDAAT(),scratch_file);
+			}
+			void run(int i){
+				f.DAAT_AND(query_set[i]);
+			}
+		});
+		c.add(new QueryCase("DAAT_AND.dictionary",false,false){
+			void setup(){
+				index=build(false,false);
+				index.compactTerms();
+				f=new Functions(index.getTAAT(),index.getDAAT(),scratch_file);
+			}
+			void run(int i){
+				f.DAAT_AND(query_set[i]);
+			}
+		});
+		c.add(new QueryCase("DAAT_OR.async",false,false){
+			void setup(){
+				super.setup();
+				f.setAsyncOutput(true);
+			}
+			void run(int i){
+				f.DAAT_OR(query_set[i]);
+			}
+		});
+		c.add(new QueryCase("shardedQueryAnd",false,false){
+			void setup(){
+				super.setup();
+				f.setShards(ShardedIndex.local(index.getDAAT(),new ShardedIndex.Partition(4,0)));
+			}
+			void run(int i){
+				f.shardedAND(query_set[i]);
+			}
+		});
+		c.add(new QueryCase("shardedQueryOr",false,false){
+			void setup(){
+				super.setup();
+				f.setShards(ShardedIndex.local(index.getDAAT(),new ShardedIndex.Partition(4,0)));
+			}
+			void run(int i){
+				f.shardedOR(query_set[i]);
+			}
+		});
+		c.add(new QueryCase("DAAT_AND.compressed",false,true){
+			void run(int i){
+				f.DAAT_AND(query_set[i]);
+			}
+		});
+		c.add(new QueryCase("DAAT_OR.compressed",false,true){
+			void run(int i){
+				f.DAAT_OR(query_set[i]);
+			}
+		});
+		c.add(new QueryCase("DAAT_AND.bitmap",false,false,true){
+			void run(int i){
+				f.DAAT_AND(query_set[i]);
+			}
+		});
+		c.add(new QueryCase("DAAT_OR.bitmap",false,false,true){
+			void run(int i){
+				f.DAAT_OR(query_set[i]);
+			}
+		});
+		c.add(new QueryCase("rankedQuery",false,false){
+			void setup(){
+				super.setup();
+				f.setRanking(new BM25Scorer(index.getDAAT()),10);
+			}
+			void run(int i){
+				f.rankedQuery(query_set[i]);
+			}
+		});
+		
+		//Intersection kernels, scalar and vector over the same lists
+		List<IntersectionKernel> kernels=new ArrayList<IntersectionKernel>();
+		kernels.add(new IntersectionKernel.Scalar());
+		if(IntersectionKernel.vector()!=null)
+			kernels.add(IntersectionKernel.vector());
+		for(IntersectionKernel k:kernels){
+			String kind=k instanceof IntersectionKernel.Scalar ? "scalar" : "vector";
+			c.add(new KernelCase("kernel.and."+kind,k){
+				void run(int i){
+					kernel.and(a[i],a[i].length,b[i],b[i].length,out);
+				}
+			});
+			c.add(new KernelCase("kernel.or."+kind,k){
+				void run(int i){
+					kernel.or(a[i],a[i].length,b[i],b[i].length,out);
+				}
+			});
+			c.add(new QueryCase("TAAT_AND.merge."+kind,false,false){
+				void setup(){
+					super.setup();
+					f.setSortedMerge(true);
+					f.setKernel(k.fork());
+				}
+				void run(int i){
+					f.TAAT_AND(query_set[i],false);
+				}
+			});
+			c.add(new QueryCase("TAAT_OR.merge."+kind,false,false){
+				void setup(){
+					super.setup();
+					f.setSortedMerge(true);
+					f.setKernel(k.fork());
+				}
+				void run(int i){
+					f.TAAT_OR(query_set[i],false);
+				}
+			});
+			c.add(new QueryCase("DAAT_AND."+kind,false,false){
+				void setup(){
+					super.setup();
+					f.setKernel(k.fork());
+				}
+				void run(int i){
+					f.DAAT_AND(query_set[i]);
+				}
+			});
+		}
+		return c;
+	}
+	
+	/** Case running a kernel on the document ID arrays of the first two terms of every query,
+	 * without the lookups and the output of a query */
+	private abstract class KernelCase extends Case {
+		IntersectionKernel kernel;
+		int[][] a,b;
+		int[] out;
+		
+		KernelCase(String name,IntersectionKernel kernel){
+			super(name,false);
+			this.kernel=kernel;
+		}
+		
+		void setup(){
+			Map<String,Postings> daat=build(false,false).getDAAT();
+			a=new int[query_set.length][];
+			b=new int[query_set.length][];
+			int max=0;
+			for(int i=0;i<query_set.length;i++){
+				a[i]=docs(daat,query_set[i][0]);
+				b[i]=docs(daat,query_set[i][Math.min(1,query_set[i].length-1)]);
+				max=Math.max(max,a[i].length+b[i].length);
+			}
+			out=new int[max];
+		}
+		
+		int ops(){
+			return query_set.length;
+		}
+		
+		private int[] docs(Map<String,Postings> daat,String term){
+			Postings p=daat.get(term);
+			return p==null ? new int[0] : p.docArray();
+		}
+	}
+	
+	/** Case running one query per operation against a prebuilt index */
+	private abstract class QueryCase extends Case {
+		private boolean compress,bitmap;
+		BuildIndex index;
+		Functions f;
+		
+		QueryCase(String name,boolean slow,boolean compress){
+			this(name,slow,compress,false);
+		}
+		
+		QueryCase(String name,boolean slow,boolean compress,boolean bitmap){
+			super(name,slow);
+			this.compress=compress;
+			this.bitmap=bitmap;
+		}
+		
+		void setup(){
+			index=build(compress,bitmap);
+			f=new Functions(index.getTAAT(),index.getDAAT(),scratch_file);
+		}
+		
+		int ops(){
+			return query_set.length;
+		}
+	}
+}
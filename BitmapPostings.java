@@ -0,0 +1,582 @@
+import java.util.*;
+
+/** Postings list ordered by Document ID, stored as a compressed bitmap.
+ * <br> Document IDs are split into their upper and lower 16 bits. All IDs sharing the upper
+ * bits go into one container, which holds the lower bits in whichever of three forms is the
+ * smallest: a sorted array, a 65536 bit bitmap or a list of runs. Dense lists therefore cost
+ * about one bit per document in the range they cover, instead of four bytes per document.
+ * <br> The term frequencies are kept uncompressed, in Document ID order.
+ * <br> {@link Merge} intersects and unites bitmaps a container at a time, with 64 documents
+ * per bitwise operation wherever both sides are bitmaps. */
+public class BitmapPostings extends Postings {
+	
+	/** Number of documents per container */
+	private static final int SPAN=1<<16;
+	
+	/** Number of 64 bit words in a bitmap container */
+	private static final int WORDS=SPAN/64;
+	
+	/** Containers with at most this many documents are intersected by membership tests,
+	 * larger ones word by word. At this size the tests cost about as much as the words */
+	private static final int SPARSE=WORDS*4;
+	
+	/** Upper 16 bits of the Document IDs of every container, in increasing order */
+	private char[] keys;
+	
+	/** Containers, c[i] holds the lower 16 bits of the Document IDs with upper bits keys[i] */
+	private Container[] c;
+	
+	/** Position in the list of the first document of every container, plus the size at the end */
+	private int[] start;
+	
+	/** Term frequencies in Document ID order */
+	private int[] tfs;
+	
+	private BitmapPostings(char[] keys,Container[] c,int[] tfs){
+		this.keys=keys;
+		this.c=c;
+		this.tfs=tfs;
+		this.start=new int[c.length+1];
+		for(int i=0;i<c.length;i++)
+			start[i+1]=start[i]+c[i].card();
+	}
+	
+	/** Encode a postings list, picking the smallest container for every 65536 documents
+	 * @param p Postings ordered by increasing Document ID
+	 * @return Bitmap copy of the list */
+	public static BitmapPostings compress(Postings p){
+		int n=p.size();
+		int[] tfs=new int[n];
+		ArrayList<Character> keys=new ArrayList<Character>();
+		ArrayList<Container> containers=new ArrayList<Container>();
+		char[] low=new char[Math.min(n,SPAN)];
+		
+		PostingsIterator it=p.iterator();
+		int count=0,key=-1,i=0;
+		for(int d=it.nextDoc();d!=PostingsIterator.NO_MORE_DOCS;d=it.nextDoc()){
+			tfs[i++]=it.tf();
+			if(d>>>16!=key){
+				if(count>0){
+					keys.add((char)key);
+					containers.add(container(low,count));
+				}
+				key=d>>>16;
+				count=0;
+			}
+			low[count++]=(char)d;
+		}
+		if(count>0){
+			keys.add((char)key);
+			containers.add(container(low,count));
+		}
+		
+		char[] k=new char[keys.size()];
+		for(int j=0;j<k.length;j++)
+			k[j]=keys.get(j);
+		return new BitmapPostings(k,containers.toArray(new Container[0]),tfs);
+	}
+	
+	/** Pick the smallest container for sorted lower bits
+	 * @param low Lower 16 bits of the Document IDs, increasing
+	 * @param n Number of entries of <i>low</i> to use */
+	private static Container container(char[] low,int n){
+		int runs=1;
+		for(int i=1;i<n;i++)
+			if(low[i]!=low[i-1]+1)
+				runs++;
+		
+		long array_bytes=2L*n,bitmap_bytes=8L*WORDS,run_bytes=4L*runs;
+		if(run_bytes<array_bytes && run_bytes<bitmap_bytes){
+			char[] first=new char[runs],last=new char[runs];
+			int r=0;
+			first[0]=low[0];
+			for(int i=1;i<n;i++){
+				if(low[i]!=low[i-1]+1){
+					last[r++]=low[i-1];
+					first[r]=low[i];
+				}
+			}
+			last[r]=low[n-1];
+			return new RunContainer(first,last);
+		}
+		if(array_bytes<=bitmap_bytes)
+			return new ArrayContainer(Arrays.copyOf(low,n));
+		
+		long[] w=new long[WORDS];
+		for(int i=0;i<n;i++)
+			w[low[i]>>>6]|=1L<<low[i];
+		return new BitmapContainer(w,n);
+	}
+	
+	/** Whether some part of the list is dense enough to be stored as a bitmap or as runs.
+	 * Lists that are sparse everywhere are better kept as sorted arrays
+	 * @param none
+	 * @return <i>true</i> if a container is not an array */
+	public boolean isDense(){
+		for(Container x:c)
+			if(!(x instanceof ArrayContainer))
+				return true;
+		return false;
+	}
+	
+	@Override
+	public int size(){
+		return tfs.length;
+	}
+	
+	/** Random access has to search for the container, prefer {@link #iterator()} */
+	@Override
+	public int doc(int i){
+		if(i<0 || i>=size())
+			throw new IndexOutOfBoundsException("Index: "+i+", Size: "+size());
+		int k=Arrays.binarySearch(start,i);
+		if(k<0)
+			k=-k-2;
+		return keys[k]<<16|c[k].select(i-start[k]);
+	}
+	
+	@Override
+	public int tf(int i){
+		return tfs[i];
+	}
+	
+	@Override
+	public PostingsIterator iterator(){
+		return new BitmapIterator();
+	}
+	
+	@Override
+	public long memoryBytes(){
+		//Object header + 4 references, the key, start and tf arrays and the container array
+		long bytes=32+align(16+2L*keys.length)+align(16+4L*start.length)+align(16+4L*tfs.length)+align(16+4L*c.length);
+		for(Container x:c)
+			bytes+=x.bytes();
+		return bytes;
+	}
+	
+	/** Lower 16 bits of the Document IDs that share their upper bits */
+	private abstract static class Container {
+		/** Number of documents */
+		abstract int card();
+		
+		/** Lower bits of the j-th document */
+		abstract int select(int j);
+		
+		/** Number of documents below v */
+		abstract int rank(int v);
+		
+		/** Smallest value at or after v, -1 if there is none */
+		abstract int next(int v);
+		
+		/** Value following v, -1 if there is none
+		 * @param v Current value
+		 * @param r Rank of v, -1 if unknown */
+		int step(int v,int r){
+			return v<SPAN-1 ? next(v+1) : -1;
+		}
+		
+		abstract boolean contains(int v);
+		
+		/** Set the bits of the documents in a bitmap */
+		abstract void orInto(long[] w);
+		
+		/** Clear the bits of a bitmap that are not documents of this container
+		 * @param w Bitmap to clear bits in
+		 * @param scratch Bitmap the container may use as work space
+		 * @return Number of word operations */
+		abstract int andInto(long[] w,long[] scratch);
+		
+		/** Estimated heap footprint */
+		abstract long bytes();
+	}
+	
+	/** Sorted array of the lower bits, for sparse containers */
+	private static class ArrayContainer extends Container {
+		private char[] v;
+		
+		ArrayContainer(char[] v){
+			this.v=v;
+		}
+		
+		int card(){
+			return v.length;
+		}
+		
+		int select(int j){
+			return v[j];
+		}
+		
+		int rank(int x){
+			int i=Arrays.binarySearch(v,(char)x);
+			return i<0 ? -i-1 : i;
+		}
+		
+		int next(int x){
+			int i=rank(x);
+			return i<v.length ? v[i] : -1;
+		}
+		
+		/** Walks the array by position when the rank is known */
+		@Override
+		int step(int x,int r){
+			if(r<0)
+				return super.step(x,r);
+			return r+1<v.length ? v[r+1] : -1;
+		}
+		
+		boolean contains(int x){
+			return Arrays.binarySearch(v,(char)x)>=0;
+		}
+		
+		void orInto(long[] w){
+			for(char x:v)
+				w[x>>>6]|=1L<<x;
+		}
+		
+		int andInto(long[] w,long[] scratch){
+			Arrays.fill(scratch,0);
+			orInto(scratch);
+			for(int i=0;i<WORDS;i++)
+				w[i]&=scratch[i];
+			return WORDS;
+		}
+		
+		long bytes(){
+			return 16+align(16+2L*v.length);
+		}
+	}
+	
+	/** 65536 bit bitmap, for dense containers */
+	private static class BitmapContainer extends Container {
+		private long[] w;
+		private int card;
+		
+		BitmapContainer(long[] w,int card){
+			this.w=w;
+			this.card=card;
+		}
+		
+		int card(){
+			return card;
+		}
+		
+		int select(int j){
+			for(int i=0;;i++){
+				int b=Long.bitCount(w[i]);
+				if(j<b){
+					long x=w[i];
+					for(;j>0;j--)
+						x&=x-1;							//Clear the lowest set bit
+					return i<<6|Long.numberOfTrailingZeros(x);
+				}
+				j-=b;
+			}
+		}
+		
+		int rank(int x){
+			int r=0;
+			for(int i=0;i<x>>>6;i++)
+				r+=Long.bitCount(w[i]);
+			return r+Long.bitCount(w[x>>>6]&((1L<<x)-1));
+		}
+		
+		int next(int x){
+			int i=x>>>6;
+			long word=w[i]&(-1L<<x);
+			while(word==0){
+				if(++i==WORDS)
+					return -1;
+				word=w[i];
+			}
+			return i<<6|Long.numberOfTrailingZeros(word);
+		}
+		
+		boolean contains(int x){
+			return (w[x>>>6]&1L<<x)!=0;
+		}
+		
+		void orInto(long[] o){
+			for(int i=0;i<WORDS;i++)
+				o[i]|=w[i];
+		}
+		
+		int andInto(long[] o,long[] scratch){
+			for(int i=0;i<WORDS;i++)
+				o[i]&=w[i];
+			return WORDS;
+		}
+		
+		long bytes(){
+			return 24+align(16+8L*WORDS);
+		}
+	}
+	
+	/** Runs of consecutive lower bits, for containers made of long stretches */
+	private static class RunContainer extends Container {
+		/** First and last value of every run */
+		private char[] first,last;
+		private int card=0;
+		
+		RunContainer(char[] first,char[] last){
+			this.first=first;
+			this.last=last;
+			for(int i=0;i<first.length;i++)
+				card+=last[i]-first[i]+1;
+		}
+		
+		int card(){
+			return card;
+		}
+		
+		int select(int j){
+			for(int i=0;;i++){
+				int len=last[i]-first[i]+1;
+				if(j<len)
+					return first[i]+j;
+				j-=len;
+			}
+		}
+		
+		int rank(int x){
+			int r=0;
+			for(int i=0;i<first.length && first[i]<x;i++)
+				r+=Math.min(last[i]+1,x)-first[i];
+			return r;
+		}
+		
+		/** Run that ends at or after x, first.length if there is none */
+		private int run(int x){
+			int i=Arrays.binarySearch(last,(char)x);
+			return i<0 ? -i-1 : i;
+		}
+		
+		int next(int x){
+			int i=run(x);
+			return i<first.length ? Math.max(first[i],x) : -1;
+		}
+		
+		boolean contains(int x){
+			int i=run(x);
+			return i<first.length && first[i]<=x;
+		}
+		
+		void orInto(long[] w){
+			for(int i=0;i<first.length;i++)
+				setRange(w,first[i],last[i]+1);
+		}
+		
+		int andInto(long[] w,long[] scratch){
+			Arrays.fill(scratch,0);
+			orInto(scratch);
+			for(int i=0;i<WORDS;i++)
+				w[i]&=scratch[i];
+			return WORDS;
+		}
+		
+		long bytes(){
+			return 24+2*align(16+2L*first.length);
+		}
+		
+		/** Set bits from (inclusive) to to (exclusive) */
+		private static void setRange(long[] w,int from,int to){
+			int a=from>>>6,b=(to-1)>>>6;
+			if(a==b){
+				w[a]|=(-1L<<from)&(-1L>>>-to);
+				return;
+			}
+			w[a]|=-1L<<from;
+			for(int i=a+1;i<b;i++)
+				w[i]=-1L;
+			w[b]|=-1L>>>-to;
+		}
+	}
+	
+	/** Iterator walking the containers one after another */
+	private class BitmapIterator extends PostingsIterator {
+		private int k=0;				//Current container
+		private int low=-1;				//Lower bits of the current document, -1 before the first
+		private int rank=-1;			//Position of the current document in its container, -1 if unknown
+		
+		@Override
+		public int nextDoc(){
+			if(low<0)
+				return nextContainer(k);				//Not started yet, or past the end
+			if((low=c[k].step(low,rank))>=0){
+				if(rank>=0)
+					rank++;
+				return keys[k]<<16|low;
+			}
+			return nextContainer(k+1);
+		}
+		
+		/** Move to the first document of the given container */
+		private int nextContainer(int i){
+			k=i;
+			if(k>=c.length){
+				k=c.length;
+				low=-1;
+				return NO_MORE_DOCS;
+			}
+			low=c[k].next(0);
+			rank=0;
+			return keys[k]<<16|low;
+		}
+		
+		/** Finds the container of the target with a search over the keys, then
+		 * the first document at or after the target within it */
+		@Override
+		public int advance(int target){
+			int key=target>>>16;
+			if(k>=c.length)
+				return NO_MORE_DOCS;
+			comparisons++;
+			if(keys[k]<key){
+				int i=Arrays.binarySearch(keys,k+1,keys.length,(char)key);
+				if(i<0)
+					return nextContainer(-i-1);			//No container for the target, start on the next one
+				k=i;
+				low=-1;
+			}else if(keys[k]>key){
+				return nextContainer(k);				//Not started yet and the target is before the first container
+			}
+			
+			comparisons++;
+			rank=-1;
+			low=c[k].next(Math.max(target&0xffff,low+1));
+			if(low>=0)
+				return keys[k]<<16|low;
+			return nextContainer(k+1);
+		}
+		
+		@Override
+		public int doc(){
+			return keys[k]<<16|low;
+		}
+		
+		@Override
+		public int tf(){
+			if(rank<0)
+				rank=c[k].rank(low);
+			return tfs[start[k]+rank];
+		}
+	}
+	
+	/** Intersection and union of whole bitmap postings lists, a container at a time.
+	 * The comparison counter counts word operations and membership tests */
+	public static class Merge {
+		/** Work done by the merges of this instance */
+		public int comparisons=0;
+		
+		/** Documents contained in all of the lists
+		 * @param lists Bitmap postings lists, at least one
+		 * @param out Array receiving the Document IDs, as large as the smallest list
+		 * @return Number of documents written to <i>out</i> */
+		public int and(BitmapPostings[] lists,int[] out){
+			int n=lists.length;
+			int[] pos=new int[n];				//Container of each list that is being looked at
+			long[] w=new long[WORDS];
+			long[] scratch=new long[WORDS];
+			int count=0;
+			
+			BitmapPostings a=lists[0];
+			for(int i=0;i<a.c.length;i++){
+				char key=a.keys[i];
+				
+				//Find the container with this key in every other list
+				Container[] match=new Container[n];
+				match[0]=a.c[i];
+				boolean all=true;
+				for(int j=1;j<n && all;j++){
+					BitmapPostings b=lists[j];
+					while(pos[j]<b.keys.length && b.keys[pos[j]]<key){
+						comparisons++;
+						pos[j]++;
+					}
+					comparisons++;
+					all=pos[j]<b.keys.length && b.keys[pos[j]]==key;
+					if(all)
+						match[j]=b.c[pos[j]];
+				}
+				if(!all)
+					continue;
+				
+				//Lead with the smallest container
+				int lead=0;
+				for(int j=1;j<n;j++)
+					if(match[j].card()<match[lead].card())
+						lead=j;
+				
+				if(match[lead].card()<=SPARSE){
+					//Test every document of the sparse container against the others
+					Container l=match[lead];
+					for(int x=l.next(0),r=0;x>=0;x=l.step(x,r++)){
+						boolean in=true;
+						for(int j=0;j<n && in;j++){
+							if(j!=lead){
+								comparisons++;
+								in=match[j].contains(x);
+							}
+						}
+						if(in)
+							out[count++]=key<<16|x;
+					}
+				}else{
+					//All containers are dense, AND them word by word
+					Arrays.fill(w,0);
+					match[0].orInto(w);
+					for(int j=1;j<n;j++)
+						comparisons+=match[j].andInto(w,scratch);
+					count=emit(w,key,out,count);
+				}
+			}
+			return count;
+		}
+		
+		/** Documents contained in any of the lists
+		 * @param lists Bitmap postings lists
+		 * @param out Array receiving the Document IDs, as large as all lists together
+		 * @return Number of documents written to <i>out</i>, in increasing order */
+		public int or(BitmapPostings[] lists,int[] out){
+			int n=lists.length;
+			int[] pos=new int[n];
+			long[] w=new long[WORDS];
+			int count=0;
+			
+			while(true){
+				//Smallest key that is left in any list
+				int key=Integer.MAX_VALUE;
+				for(int j=0;j<n;j++){
+					if(pos[j]<lists[j].keys.length){
+						comparisons++;
+						key=Math.min(key,lists[j].keys[pos[j]]);
+					}
+				}
+				if(key==Integer.MAX_VALUE)
+					break;
+				
+				//OR the containers with that key into one bitmap
+				Arrays.fill(w,0);
+				for(int j=0;j<n;j++){
+					if(pos[j]<lists[j].keys.length && lists[j].keys[pos[j]]==key){
+						lists[j].c[pos[j]++].orInto(w);
+						comparisons+=WORDS;
+					}
+				}
+				count=emit(w,key,out,count);
+			}
+			return count;
+		}
+		
+		/** Write the documents of a bitmap container in increasing order */
+		private static int emit(long[] w,int key,int[] out,int count){
+			for(int i=0;i<WORDS;i++){
+				long x=w[i];
+				while(x!=0){
+					out[count++]=key<<16|i<<6|Long.numberOfTrailingZeros(x);
+					x&=x-1;
+				}
+			}
+			return count;
+		}
+	}
+}
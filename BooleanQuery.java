@@ -0,0 +1,465 @@
+import java.util.*;
+
+/** Boolean query expression over the Document At A Time index.
+ * <br> Grammar, operators in upper case:
+ * <br> expr := and ( OR and )*
+ * <br> and := unary ( [AND] unary )*, terms next to each other are ANDed
+ * <br> unary := NOT unary | ( expr ) | term
+ * <br><br> A query is evaluated by composing lazy iterators over the postings lists, so nested
+ * queries run in one pass without materializing intermediate lists. AND leapfrogs its
+ * operands with {@link PostingsIterator#advance(int)}, OR merges them through a min-heap and
+ * NOT is evaluated as the sorted difference of the other operands of its AND. NOT can therefore
+ * only appear inside an AND that has at least one positive operand. */
+public abstract class BooleanQuery {
+	
+	/** Create the iterator evaluating this query
+	 * @param index Index ordered by Document ID
+	 * @return Iterator positioned before the first matching document
+	 * @throws IllegalArgumentException If a NOT has nothing to be subtracted from */
+	abstract PostingsIterator iterator(Map<String,Postings> index);
+	
+	/** Upper bound of the number of matching documents, used to order the operands of an AND
+	 * @param index Index ordered by Document ID
+	 * @return Estimated cost */
+	abstract long cost(Map<String,Postings> index);
+	
+	/** Collect the terms whose postings the query reads
+	 * @param out Collection receiving the terms, once per occurrence in the query
+	 * @return void */
+	abstract void terms(Collection<String> out);
+	
+	/** Parse a query line
+	 * @param line Query, for example "(a OR b) AND NOT c"
+	 * @return Query tree
+	 * @throws IllegalArgumentException If the line is not a valid query */
+	public static BooleanQuery parse(String line){
+		Parser p=new Parser(tokenize(line));
+		BooleanQuery q=p.expr();
+		if(p.pos<p.tokens.size())
+			throw new IllegalArgumentException("Unexpected '"+p.tokens.get(p.pos)+"' at token "+(p.pos+1));
+		return q;
+	}
+	
+	/** Split a line into terms, operators and parentheses */
+	private static List<String> tokenize(String line){
+		List<String> tokens=new ArrayList<String>();
+		int start=-1;
+		for(int i=0;i<=line.length();i++){
+			char c=i<line.length() ? line.charAt(i) : ' ';
+			if(Character.isWhitespace(c) || c=='(' || c==')'){
+				if(start>=0)
+					tokens.add(line.substring(start,i));
+				start=-1;
+				if(c=='(' || c==')')
+					tokens.add(String.valueOf(c));
+			}else if(start<0){
+				start=i;
+			}
+		}
+		return tokens;
+	}
+	
+	/** Recursive descent parser over the tokens of one line */
+	private static class Parser {
+		private List<String> tokens;
+		private int pos=0;
+		
+		Parser(List<String> tokens){
+			this.tokens=tokens;
+		}
+		
+		private String peek(){
+			return pos<tokens.size() ? tokens.get(pos) : null;
+		}
+		
+		BooleanQuery expr(){
+			List<BooleanQuery> ops=new ArrayList<BooleanQuery>();
+			ops.add(and());
+			while("OR".equals(peek())){
+				pos++;
+				ops.add(and());
+			}
+			return ops.size()==1 ? ops.get(0) : new Or(ops);
+		}
+		
+		private BooleanQuery and(){
+			List<BooleanQuery> ops=new ArrayList<BooleanQuery>();
+			ops.add(unary());
+			while(true){
+				String t=peek();
+				if("AND".equals(t))
+					pos++;
+				else if(t==null || t.equals(")") || t.equals("OR"))
+					break;
+				ops.add(unary());
+			}
+			return ops.size()==1 ? ops.get(0) : new And(ops);
+		}
+		
+		private BooleanQuery unary(){
+			String t=peek();
+			if(t==null)
+				throw new IllegalArgumentException("Unexpected end of query");
+			pos++;
+			if(t.equals("NOT")){
+				BooleanQuery q=unary();
+				return q instanceof Not ? ((Not)q).q : new Not(q);		//NOT NOT a is a
+			}
+			if(t.equals("(")){
+				BooleanQuery q=expr();
+				if(!")".equals(peek()))
+					throw new IllegalArgumentException("Missing ')' at token "+(pos+1));
+				pos++;
+				return q;
+			}
+			if(t.equals(")") || t.equals("AND") || t.equals("OR"))
+				throw new IllegalArgumentException("Unexpected '"+t+"' at token "+pos);
+			return new Term(t);
+		}
+	}
+	
+	/** Single query term */
+	static class Term extends BooleanQuery {
+		private String term;
+		
+		Term(String term){
+			this.term=term;
+		}
+		
+		@Override
+		PostingsIterator iterator(Map<String,Postings> index){
+			Postings p=index.get(term);
+			return p==null ? new EmptyIterator() : p.iterator();
+		}
+		
+		@Override
+		long cost(Map<String,Postings> index){
+			Postings p=index.get(term);
+			return p==null ? 0 : p.size();
+		}
+		
+		@Override
+		void terms(Collection<String> out){
+			out.add(term);
+		}
+		
+		@Override
+		public String toString(){
+			return term;
+		}
+	}
+	
+	/** Documents matching all operands, minus those matching any negated operand */
+	static class And extends BooleanQuery {
+		private List<BooleanQuery> ops;
+		
+		And(List<BooleanQuery> ops){
+			this.ops=ops;
+		}
+		
+		@Override
+		PostingsIterator iterator(final Map<String,Postings> index){
+			List<BooleanQuery> pos=new ArrayList<BooleanQuery>();
+			List<BooleanQuery> neg=new ArrayList<BooleanQuery>();
+			for(BooleanQuery q:ops)
+				if(q instanceof Not)
+					neg.add(((Not)q).q);
+				else
+					pos.add(q);
+			if(pos.isEmpty())
+				throw new IllegalArgumentException("NOT needs a term to subtract from in "+this);
+			
+			//Lead with the operand expected to match the fewest documents
+			Collections.sort(pos,new Comparator<BooleanQuery>(){
+				@Override
+				public int compare(BooleanQuery a,BooleanQuery b){
+					return Long.compare(a.cost(index),b.cost(index));
+				}
+			});
+			PostingsIterator[] it=new PostingsIterator[pos.size()];
+			for(int i=0;i<it.length;i++)
+				it[i]=pos.get(i).iterator(index);
+			PostingsIterator include=it.length==1 ? it[0] : new AndIterator(it);
+			if(neg.isEmpty())
+				return include;
+			
+			PostingsIterator exclude=neg.size()==1 ? neg.get(0).iterator(index) : new Or(neg).iterator(index);
+			return new NotIterator(include,exclude);
+		}
+		
+		@Override
+		long cost(Map<String,Postings> index){
+			long c=Long.MAX_VALUE;
+			for(BooleanQuery q:ops)
+				if(!(q instanceof Not))
+					c=Math.min(c,q.cost(index));
+			return c==Long.MAX_VALUE ? 0 : c;
+		}
+		
+		@Override
+		void terms(Collection<String> out){
+			for(BooleanQuery q:ops)
+				q.terms(out);
+		}
+		
+		@Override
+		public String toString(){
+			return join(ops," AND ");
+		}
+	}
+	
+	/** Documents matching any operand */
+	static class Or extends BooleanQuery {
+		private List<BooleanQuery> ops;
+		
+		Or(List<BooleanQuery> ops){
+			this.ops=ops;
+		}
+		
+		@Override
+		PostingsIterator iterator(Map<String,Postings> index){
+			PostingsIterator[] it=new PostingsIterator[ops.size()];
+			for(int i=0;i<it.length;i++){
+				if(ops.get(i) instanceof Not)
+					throw new IllegalArgumentException("NOT can not be an operand of OR in "+this);
+				it[i]=ops.get(i).iterator(index);
+			}
+			return new OrIterator(it);
+		}
+		
+		@Override
+		long cost(Map<String,Postings> index){
+			long c=0;
+			for(BooleanQuery q:ops)
+				c+=q.cost(index);
+			return c;
+		}
+		
+		@Override
+		void terms(Collection<String> out){
+			for(BooleanQuery q:ops)
+				q.terms(out);
+		}
+		
+		@Override
+		public String toString(){
+			return "("+join(ops," OR ")+")";
+		}
+	}
+	
+	/** Negated operand. Only evaluated as part of an {@link And} */
+	static class Not extends BooleanQuery {
+		private BooleanQuery q;
+		
+		Not(BooleanQuery q){
+			this.q=q;
+		}
+		
+		@Override
+		PostingsIterator iterator(Map<String,Postings> index){
+			throw new IllegalArgumentException("NOT needs a term to subtract from in "+this);
+		}
+		
+		@Override
+		long cost(Map<String,Postings> index){
+			return 0;
+		}
+		
+		@Override
+		void terms(Collection<String> out){
+			q.terms(out);
+		}
+		
+		@Override
+		public String toString(){
+			return q instanceof And ? "NOT ("+q+")" : "NOT "+q;
+		}
+	}
+	
+	private static String join(List<BooleanQuery> ops,String sep){
+		StringBuilder sb=new StringBuilder();
+		for(BooleanQuery q:ops){
+			if(sb.length()!=0)
+				sb.append(sep);
+			sb.append(q);
+		}
+		return sb.toString();
+	}
+	
+	/** Iterator over no documents, stands in for a missing term */
+	private static class EmptyIterator extends PostingsIterator {
+		@Override
+		public int nextDoc(){
+			return NO_MORE_DOCS;
+		}
+		
+		@Override
+		public int advance(int target){
+			return NO_MORE_DOCS;
+		}
+		
+		@Override
+		public int doc(){
+			return NO_MORE_DOCS;
+		}
+		
+		@Override
+		public int tf(){
+			throw new UnsupportedOperationException("Empty iterator has no term frequencies");
+		}
+	}
+	
+	/** Base of the iterators combining other iterators */
+	private abstract static class CompositeIterator extends PostingsIterator {
+		protected PostingsIterator[] it;
+		
+		/** Current document of every operand, -1 before the operand was started */
+		protected int[] cur;
+		protected int doc=-1;
+		
+		CompositeIterator(PostingsIterator[] it){
+			this.it=it;
+			this.cur=new int[it.length];
+			Arrays.fill(cur,-1);
+		}
+		
+		@Override
+		public int doc(){
+			return doc;
+		}
+		
+		/** Combined documents have no single term frequency */
+		@Override
+		public int tf(){
+			throw new UnsupportedOperationException("Combined iterators have no term frequencies");
+		}
+		
+		/** Comparisons made here and in all operands */
+		@Override
+		public int comparisons(){
+			int c=comparisons;
+			for(PostingsIterator i:it)
+				c+=i.comparisons();
+			return c;
+		}
+	}
+	
+	/** Intersection, the first operand leads and the others are advanced to it */
+	private static class AndIterator extends CompositeIterator {
+		AndIterator(PostingsIterator[] it){
+			super(it);
+		}
+		
+		@Override
+		public int nextDoc(){
+			return doc=align(cur[0]=it[0].nextDoc());
+		}
+		
+		@Override
+		public int advance(int target){
+			return doc=align(cur[0]=it[0].advance(target));
+		}
+		
+		/** Advance all operands until they agree on a document at or after the target */
+		private int align(int target){
+			int i=1;
+			while(target!=NO_MORE_DOCS && i<it.length){
+				if(cur[i]<target)
+					cur[i]=it[i].advance(target);
+				comparisons++;
+				if(cur[i]==target){
+					i++;
+				}else{
+					//Operand i jumped past the target, restart from the lead
+					target=cur[0]=cur[i]==NO_MORE_DOCS ? NO_MORE_DOCS : it[0].advance(cur[i]);
+					i=1;
+				}
+			}
+			return target;
+		}
+	}
+	
+	/** Union, the operands are kept in a min-heap ordered by their current document */
+	private static class OrIterator extends CompositeIterator {
+		private int[] heap;
+		
+		OrIterator(PostingsIterator[] it){
+			super(it);
+			heap=new int[it.length];
+			for(int i=0;i<heap.length;i++)
+				heap[i]=i;
+		}
+		
+		@Override
+		public int nextDoc(){
+			return step(doc+1);
+		}
+		
+		@Override
+		public int advance(int target){
+			return step(target);
+		}
+		
+		/** Move every operand behind the target to its first document at or after it */
+		private int step(int target){
+			if(heap.length==0)
+				return doc=NO_MORE_DOCS;
+			while(cur[heap[0]]<target){
+				int top=heap[0];
+				cur[top]=cur[top]<0 ? it[top].nextDoc() : it[top].advance(target);
+				siftDown(0);
+			}
+			return doc=cur[heap[0]];
+		}
+		
+		private void siftDown(int i){
+			int entry=heap[i];
+			int key=cur[entry];
+			while(true){
+				int child=2*i+1;
+				if(child>=heap.length)
+					break;
+				if(child+1<heap.length){
+					comparisons++;
+					if(cur[heap[child+1]]<cur[heap[child]])
+						child++;
+				}
+				comparisons++;
+				if(cur[heap[child]]>=key)
+					break;
+				heap[i]=heap[child];
+				i=child;
+			}
+			heap[i]=entry;
+		}
+	}
+	
+	/** Documents of the first iterator that the second iterator does not contain */
+	private static class NotIterator extends CompositeIterator {
+		NotIterator(PostingsIterator include,PostingsIterator exclude){
+			super(new PostingsIterator[]{include,exclude});
+		}
+		
+		@Override
+		public int nextDoc(){
+			return doc=skipExcluded(it[0].nextDoc());
+		}
+		
+		@Override
+		public int advance(int target){
+			return doc=skipExcluded(it[0].advance(target));
+		}
+		
+		private int skipExcluded(int d){
+			while(d!=NO_MORE_DOCS){
+				if(cur[1]<d)
+					cur[1]=it[1].advance(d);
+				comparisons++;
+				if(cur[1]!=d)
+					return d;
+				d=it[0].nextDoc();
+			}
+			return d;
+		}
+	}
+}
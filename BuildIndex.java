@@ -1,27 +1,41 @@
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 /** To parse the given Postings list and build 
  * the index in memory. */
 public class BuildIndex {
 	
+	/** Maximum number of lines handed to a worker thread at once */
+	private static final int BATCH_LINES=512;
+	
+	/** Maximum number of postings handed to a worker thread at once */
+	private static final int BATCH_POSTINGS=1<<18;
+	
 	private File f;					//Store index file path
-	private Scanner s;				//Scanner instance to read from file
+	private PostingsReader reader;	//Parser of the index file, kept for its report
 	
 	/** Index with terms ordered by decreasing term frequencies */
-	private Hashtable<String,LinkedList<String>> taat;
+	private Map<String,Postings> taat;
 	
 	/** Index with terms ordered by increasing document IDs */
-	private Hashtable<String,LinkedList<String>> daat;	
+	private Map<String,Postings> daat;	
+	
+	/** Top terms collected while loading, <i>null</i> unless requested */
+	private TopK top;
+	
+	/** Off-heap store the postings are copied into as they are parsed, <i>null</i> to keep them on the heap */
+	private PostingsArena arena;
+	
+	/** Terms shared by both indices, <i>null</i> until {@link #compactTerms()} is called */
+	private TermDictionary dictionary;
 	
 	/** Constructor to initialize file location fields 
 	 * @param path Enter path of index file */
 	BuildIndex(String path){
 		this.f=new File(path);
-		try{
-			s=new Scanner(f);
-		}
-		catch(FileNotFoundException e){
+		if(!f.isFile() || !f.canRead()){
 			System.out.println("Please check index file path");
 			System.exit(1);
 		}
@@ -32,60 +46,265 @@ public class BuildIndex {
 	public boolean construct(){
 		
 		try{
-			//Initialize the Hashtables
-			taat=new Hashtable<String,LinkedList<String>>();
-			daat=new Hashtable<String,LinkedList<String>>();
+			//Initialize the Hashtables. Unsynchronized, so concurrent queries do not contend on lookups
+			taat=new HashMap<String,Postings>();
+			daat=new HashMap<String,Postings>();
 			
-						
-			//Repeat process as long as new lines are present in the file
-			while(s.hasNextLine()){				
-				String cur_line=s.nextLine(); 						//Read next line from the file
-				int index=0;
-				
-				//Calculate index at which '\c' occurs
-				while(!(cur_line.charAt(index)=='\\' && cur_line.charAt(index+1)=='c')){
-					index++;					
-				}
-						
-				String key=cur_line.substring(0,index);				//Store key value
-								
-				//Calculate the index at which '\m' occurs
-				while(!(cur_line.charAt(index)=='\\' && cur_line.charAt(index+1)=='m')){
-					index++;					
+			//Sort every line's postings as soon as it is parsed
+			reader=new PostingsReader(f.getPath());
+			reader.read(new PostingsReader.Sink(){
+				@Override
+				public void term(String term,int[] docs,int[] tfs,int n){
+					add(term,SortArr.sort(docs,tfs,n),taat,daat,top,arena);
 				}
-				
-				//Remove '\m[' from the start of the postings list and ']' from the end
-				String posting=cur_line.substring(index+3,cur_line.length()-1);			
-													
-				//Sort the postings list as needed
-				LinkedList<String> l1=SortArr.sortAsc(posting);
-				LinkedList<String> l2=SortArr.sortDsc(posting);				
-							
-				//Add values to the Hashtable
-				daat.put(key,l1);
-				taat.put(key,l2);
+			});
+			return true;
+			
+		}catch(Exception e){
+			e.printStackTrace();
+			return false;
+		}
+	}
+	
+	/** Method to construct index in memory using several threads.
+	 * <br> The calling thread parses the file and hands batches of parsed lines to a pool of
+	 * worker threads, which sort the postings and add them to concurrent maps.
+	 * The resulting index is the same as the one built by {@link #construct()}.
+	 * @param threads Number of worker threads. Values below 2 fall back to the serial build
+	 * @return <i>true</i> If both indices are constructed successfully <br> <i>false</i> In  all other cases */
+	public boolean construct(int threads){
+		if(threads<2)
+			return construct();
+		
+		//Bounded queue so the reader can not run too far ahead of the workers
+		ThreadPoolExecutor pool=new ThreadPoolExecutor(threads,threads,0L,TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(2*threads),new ThreadPoolExecutor.CallerRunsPolicy());
+		
+		try{
+			final ConcurrentHashMap<String,Postings> t=new ConcurrentHashMap<String,Postings>();
+			final ConcurrentHashMap<String,Postings> d=new ConcurrentHashMap<String,Postings>();
+			final AtomicReference<Exception> failure=new AtomicReference<Exception>();
+			
+			//Split the file into batches of parsed lines
+			final Batch[] batch={new Batch(t,d,top,arena,failure)};
+			reader=new PostingsReader(f.getPath());
+			reader.read(new PostingsReader.Sink(){
+				@Override
+				public void term(String term,int[] docs,int[] tfs,int n) throws Exception{
+					if(failure.get()!=null)
+						throw failure.get();				//Stop reading at the first failure
+					
+					//The reader reuses its arrays, the batch keeps copies
+					batch[0].add(term,Arrays.copyOf(docs,n),Arrays.copyOf(tfs,n));
+					if(batch[0].terms.size()>=BATCH_LINES || batch[0].postings>=BATCH_POSTINGS){
+						pool.execute(batch[0]);
+						batch[0]=new Batch(t,d,top,arena,failure);
+					}
 				}
+			});
+			if(!batch[0].terms.isEmpty())
+				pool.execute(batch[0]);
 			
-			s.close();
-			return true;
+			//Wait for the workers to finish
+			pool.shutdown();
+			pool.awaitTermination(Long.MAX_VALUE,TimeUnit.MILLISECONDS);
 			
+			if(failure.get()!=null)
+				throw failure.get();
+			
+			taat=t;
+			daat=d;
+			return true;
+		
 		}catch(Exception e){
+			pool.shutdownNow();
 			e.printStackTrace();
 			return false;
 		}
 	}
 	
+	/** Add the sorted postings of a term to both indices
+	 * @param key Term
+	 * @param sorted Postings of the term in both orders
+	 * @param taat Index ordered by decreasing term frequencies
+	 * @param daat Index ordered by increasing document IDs
+	 * @param top Top terms to offer the term to, or <i>null</i>
+	 * @param arena Off-heap store to copy both orderings into, or <i>null</i> */
+	private static void add(String key,SortArr.Sorted sorted,Map<String,Postings> taat,Map<String,Postings> daat,TopK top,PostingsArena arena){
+		//Add values to the Hashtable
+		daat.put(key,arena==null ? sorted.asc : arena.copy(sorted.asc));
+		taat.put(key,arena==null ? sorted.dsc : arena.copy(sorted.dsc));
+		
+		if(top!=null)
+			top.offer(key,sorted.dsc.size());
+	}
+	
+	/** Batch of parsed lines sorted by one worker thread */
+	private static class Batch implements Runnable {
+		private List<String> terms=new ArrayList<String>();
+		private List<int[]> docs=new ArrayList<int[]>(),tfs=new ArrayList<int[]>();
+		private long postings=0;
+		private Map<String,Postings> taat,daat;
+		private TopK top;
+		private PostingsArena arena;
+		private AtomicReference<Exception> failure;
+		
+		Batch(Map<String,Postings> taat,Map<String,Postings> daat,TopK top,PostingsArena arena,AtomicReference<Exception> failure){
+			this.taat=taat;
+			this.daat=daat;
+			this.top=top;
+			this.arena=arena;
+			this.failure=failure;
+		}
+		
+		/** Add a parsed line, in file order */
+		void add(String term,int[] d,int[] t){
+			terms.add(term);
+			docs.add(d);
+			tfs.add(t);
+			postings+=d.length;
+		}
+		
+		@Override
+		public void run(){
+			try{
+				//Collect the batch's top terms locally and hand them over once
+				TopK local=top==null ? null : new TopK(top.k());
+				for(int i=0;i<terms.size();i++)
+					BuildIndex.add(terms.get(i),SortArr.sort(docs.get(i),tfs.get(i)),taat,daat,local,arena);
+				if(top!=null){
+					synchronized(top){
+						top.offerAll(local);
+					}
+				}
+			}catch(Exception e){
+				failure.compareAndSet(null,e);		//Keep the first failure, the reader stops at the next line
+			}
+		}
+	}
+	
+	/** Keep the top 'k' terms while {@link #construct()} loads the file, so they are
+	 * known without another pass over the index. Must be called before construct.
+	 * <br> Terms with equal postings list sizes rank in file order with the serial build.
+	 * With several threads their order among each other depends on the scheduling.
+	 * @param k No of top terms to keep
+	 * @return void */
+	public void trackTopK(int k){
+		this.top=new TopK(k);
+	}
+	
+	/** Keep the postings of both indices off the heap, in direct buffers the garbage collector 
+	 * does not scan. Every list is copied into the arena as soon as it is parsed and sorted, 
+	 * so the whole index is never on the heap. Must be called before construct.
+	 * <br> {@link #bitmap()} and {@link #compress()} move the lists they convert back onto the heap.
+	 * The intersection kernels only work on heap arrays, off-heap lists are walked with iterators
+	 * @param a Arena to store the postings in
+	 * @return void */
+	public void offHeap(PostingsArena a){
+		this.arena=a;
+	}
+	
+	/** Get the top terms collected while loading
+	 * @param none
+	 * @return TopK, <i>null</i> unless {@link #trackTopK(int)} was called */
+	public TopK getTopK(){
+		return this.top;
+	}
+	
+	/** Replace the lists of the Document At A Time index by their compressed form.
+	 * <br> Lists too short to gain from compression are left as they are. The lists are 
+	 * converted one at a time, so the uncompressed copies can be collected while the rest 
+	 * are still being converted. Lists already turned into bitmaps by {@link #bitmap()} are kept.
+	 * @param none
+	 * @return void */
+	public void compress(){
+		for(Map.Entry<String,Postings> e:daat.entrySet()){
+			if(e.getValue() instanceof BitmapPostings)
+				continue;
+			CompressedPostings c=CompressedPostings.compress(e.getValue());
+			if(c.memoryBytes()<e.getValue().memoryBytes())
+				e.setValue(c);
+		}
+	}
+	
+	/** Replace the dense lists of the Document At A Time index by compressed bitmaps.
+	 * <br> A list is converted when some stretch of 65536 documents is dense enough for a
+	 * bitmap or run container and the result is smaller than its current form. Sparse lists 
+	 * stay sorted arrays. Call before {@link #compress()} to turn those into variable-byte blocks.
+	 * @param none
+	 * @return void */
+	public void bitmap(){
+		for(Map.Entry<String,Postings> e:daat.entrySet()){
+			BitmapPostings b=BitmapPostings.compress(e.getValue());
+			if(b.isDense() && b.memoryBytes()<e.getValue().memoryBytes())
+				e.setValue(b);
+		}
+	}
+	
+	/** Replace the Hashtables of both indices by one shared {@link TermDictionary}.
+	 * <br> The postings of every term move into two arrays indexed by its ordinal, one per ordering,
+	 * and both indices become read only views of the dictionary. Lookups take a binary search 
+	 * and a short scan instead of a hash, but no Strings, nodes or tables are kept per term.
+	 * Call after {@link #bitmap()} and {@link #compress()}, whose lists are kept as they are.
+	 * @param none
+	 * @return void */
+	public void compactTerms(){
+		TermDictionary d=TermDictionary.build(daat.keySet());
+		Postings[] asc=new Postings[d.size()],dsc=new Postings[d.size()];
+		for(Map.Entry<String,Postings> e:daat.entrySet()){
+			int ord=d.ordinal(e.getKey());
+			asc[ord]=e.getValue();
+			dsc[ord]=taat.get(e.getKey());
+		}
+		this.dictionary=d;
+		this.daat=d.view(asc);
+		this.taat=d.view(dsc);
+	}
+	
+	/** Get the term dictionary shared by both indices
+	 * @param none
+	 * @return TermDictionary, <i>null</i> unless {@link #compactTerms()} was called */
+	public TermDictionary getDictionary(){
+		return this.dictionary;
+	}
+	
 	/** Get current Hashtable (Term At A Time)
-	 * @return Hashtable<String,LinkedList<String>>
+	 * @return Map<String,Postings>
 	 * @param none */
-	public Hashtable<String,LinkedList<String>> getTAAT(){
+	public Map<String,Postings> getTAAT(){
 		return this.taat;
 	}
 	
 	/** Get current Hashtable (Document At A Time)
-	 * @return Hashtable<String,LinkedList<String>>
+	 * @return Map<String,Postings>
 	 * @param none */
-	public Hashtable<String,LinkedList<String>> getDAAT(){
+	public Map<String,Postings> getDAAT(){
 		return this.daat;
 	}
+	
+	/** Size and throughput of the last read of the index file
+	 * @param none
+	 * @return Human readable summary, empty before the index is constructed */
+	public String readReport(){
+		return reader==null ? "" : reader.report();
+	}
+	
+	/** Compare the heap used by the postings of both indices with the estimated
+	 * heap the same postings would need as LinkedLists of Strings.
+	 * @param none
+	 * @return Human readable summary */
+	public String memoryReport(){
+		long current=0,legacy=0;
+		for(Postings p:daat.values()){
+			current+=p.memoryBytes();
+			legacy+=p.linkedListBytes();
+		}
+		for(Postings p:taat.values()){
+			current+=p.memoryBytes();
+			legacy+=p.linkedListBytes();
+		}
+		
+		return "Postings memory: "+(current/1024)+" KB as loaded vs "+(legacy/1024)+" KB as LinkedList<String> ("
+				+String.format("%.1f",legacy/(double)Math.max(current,1))+"x smaller)";
+	}
 }
@@ -11,8 +11,34 @@ public class CSE535Assignment {
 
 	public static void main(String[] ip) throws IOException {
 		//Check if correct number of arguments are entered
-		if(ip.length!=4){
-			System.out.println("\n Correct usage is: \n java CSE535Assignment <term_file> <output_file> <k-value> <query_file>");
+		if(ip.length<4){
+			System.out.println("\n Correct usage is: \n java CSE535Assignment <term_file> <output_file> <k-value> <query_file> [options]"
+					+"\n Options:"
+					+"\n --merge	Evaluate TAAT queries with a linear time merge of document ID ordered lists"
+					+"\n --boolean	Every line of <query_file> is a Boolean expression such as (a OR b) AND NOT c"
+					+"\n --plan	Evaluate every query once, in the term order chosen from the document frequencies"
+					+"\n --ranked=K	Also return the K best documents of every query line ranked by BM25"
+					+"\n --threads=N	Build the index with N worker threads"
+					+"\n --query-threads=N	Run the query lines on N worker threads, the output keeps the query file order"
+					+"\n --shards=N	Answer every query line by scatter-gather over N shards partitioned by Document ID, read straight from <term_file> instead of building the whole index"
+					+"\n --shard-compare	Also build the whole index, split the shards from it and run the other query methods next to the sharded ones"
+					+"\n --shard-by=range	Partition the shards by Document ID range instead of by hash"
+					+"\n --shard-processes	Serve every shard from its own JVM process over a loopback socket, <term_file> must be a postings file"
+					+"\n --async-output	Format and write the results on a background thread instead of the query thread"
+					+"\n --cache=MB	Keep the output of up to MB megabytes of queries and serve repeated queries from it"
+					+"\n --bitmap	Keep dense document ID ordered postings in memory as compressed bitmaps"
+					+"\n --simd	Intersect and merge uncompressed lists with the vector kernel when jdk.incubator.vector is added, the scalar kernel otherwise"
+					+"\n --off-heap	Keep the postings of both orderings in direct buffers outside of the garbage collected heap"
+					+"\n --compress	Keep the document ID ordered postings in memory as variable-byte encoded blocks"
+					+"\n --wildcards	Query terms ending in '*', such as comput*, match every indexed term with that prefix"
+					+"\n --wildcard-max=N	Expand a wildcard term to at most N terms, the first ones in dictionary order (default "+WildcardIndex.MAX_EXPANSIONS+")"
+					+"\n --wildcard-prefixes=L	Compute the unions of all wildcard prefixes of up to L characters before the queries run"
+					+"\n --compact-terms	Share one front-coded sorted term dictionary between both orderings instead of a Hashtable each"
+					+"\n --compile=F	Also write the index built from <term_file> to the segment file F"
+					+"\n --add=F1,F2	After loading <term_file>, add the postings of the files F1, F2, ... as new segments of a live index"
+					+"\n --metrics=F	Write latency histograms and counters of the build and of every query method to F, as JSON if F ends in .json and in the Prometheus text format otherwise"
+					+"\n --jmx	Also publish the metrics as the MBean BooleanSearch:type=QueryMetrics while the queries run"
+					+"\n --segment	<term_file> is a segment file written by --compile or IndexSegment, map it instead of building the index");
 			System.exit(-1);
 		}
 		
@@ -22,74 +48,318 @@ public class CSE535Assignment {
 		int k=Integer.parseInt(ip[2]);
 		String query_file=ip[3];
 		
-		//Build the index in memory from file
-		BuildIndex b=new BuildIndex(term_file);
-		
-		//Construct index and verify
-		if(!b.construct()){
-			System.out.println("Failed to construct index");
-			System.exit(-1);
+		//Optional flags following the required arguments
+		boolean merge=false;
+		boolean plan=false;
+		boolean expressions=false;
+		int threads=1;
+		int query_threads=1;
+		String compile=null;
+		boolean segment=false;
+		boolean compress=false;
+		boolean bitmap=false;
+		boolean off_heap=false;
+		boolean compact_terms=false;
+		boolean wildcards=false;
+		int wildcard_max=WildcardIndex.MAX_EXPANSIONS;
+		int wildcard_prefixes=0;
+		boolean simd=false;
+		int ranked=0;
+		String[] adds=new String[0];
+		String metrics_file=null;
+		boolean jmx=false;
+		boolean async_output=false;
+		int shard_count=0;
+		boolean shard_range=false;
+		boolean shard_processes=false;
+		boolean shard_compare=false;
+		long cache_mb=0;
+		for(int i=4;i<ip.length;i++){
+			if(ip[i].equals("--merge")){
+				merge=true;
+			}else if(ip[i].equals("--boolean")){
+				expressions=true;
+			}else if(ip[i].equals("--plan")){
+				plan=true;
+			}else if(ip[i].startsWith("--ranked=")){
+				ranked=Integer.parseInt(ip[i].substring("--ranked=".length()));
+			}else if(ip[i].startsWith("--threads=")){
+				threads=Integer.parseInt(ip[i].substring("--threads=".length()));
+			}else if(ip[i].startsWith("--query-threads=")){
+				query_threads=Integer.parseInt(ip[i].substring("--query-threads=".length()));
+			}else if(ip[i].startsWith("--compile=")){
+				compile=ip[i].substring("--compile=".length());
+			}else if(ip[i].startsWith("--add=")){
+				adds=ip[i].substring("--add=".length()).split(",");
+			}else if(ip[i].startsWith("--metrics=")){
+				metrics_file=ip[i].substring("--metrics=".length());
+			}else if(ip[i].equals("--jmx")){
+				jmx=true;
+			}else if(ip[i].startsWith("--shards=")){
+				shard_count=Integer.parseInt(ip[i].substring("--shards=".length()));
+			}else if(ip[i].equals("--shard-by=range")){
+				shard_range=true;
+			}else if(ip[i].equals("--shard-by=hash")){
+				shard_range=false;
+			}else if(ip[i].equals("--shard-processes")){
+				shard_processes=true;
+			}else if(ip[i].equals("--shard-compare")){
+				shard_compare=true;
+			}else if(ip[i].equals("--async-output")){
+				async_output=true;
+			}else if(ip[i].equals("--segment")){
+				segment=true;
+			}else if(ip[i].startsWith("--cache=")){
+				cache_mb=Long.parseLong(ip[i].substring("--cache=".length()));
+			}else if(ip[i].equals("--bitmap")){
+				bitmap=true;
+			}else if(ip[i].equals("--simd")){
+				simd=true;
+			}else if(ip[i].equals("--off-heap")){
+				off_heap=true;
+			}else if(ip[i].equals("--compress")){
+				compress=true;
+			}else if(ip[i].equals("--compact-terms")){
+				compact_terms=true;
+			}else if(ip[i].equals("--wildcards")){
+				wildcards=true;
+			}else if(ip[i].startsWith("--wildcard-max=")){
+				wildcards=true;
+				wildcard_max=Integer.parseInt(ip[i].substring("--wildcard-max=".length()));
+			}else if(ip[i].startsWith("--wildcard-prefixes=")){
+				wildcards=true;
+				wildcard_prefixes=Integer.parseInt(ip[i].substring("--wildcard-prefixes=".length()));
+			}else{
+				System.out.println("Unknown option: "+ip[i]);
+				System.exit(-1);
+			}
 		}
 		
-		//Get references to the Hashtables built in memory
-		Hashtable<String,LinkedList<String>> taat = b.getTAAT();		
-		Hashtable<String,LinkedList<String>> daat = b.getDAAT();
-		
-		//Share Hashtable references with Functions class. Also, set up output file
-		Functions f=new Functions(taat,daat,output_file);
-		
-		//Set up query handler
-		ParseInput p=new ParseInput(query_file);
+		Map<String,Postings> taat,daat;
+		TopK top=null;				//Top terms, collected during the build
+		TermDictionary dictionary=null;	//Sorted terms, kept with --compact-terms
+		long build_start=System.nanoTime();
 		
-		//Call getTopK
-		f.getTopK(k, taat);
+		//Unless compared with the whole index, the shards are the only index and are read straight from the file
+		ShardedIndex shards=null;
+		boolean shard_only=shard_count>0 && !shard_compare;
+		if(shard_only && (segment || adds.length>0 || expressions || ranked>0 || compile!=null)){
+			System.out.println("--segment, --add, --boolean, --ranked and --compile need the whole index, add --shard-compare to build it next to the shards");
+			System.exit(-1);
+		}
 		
-		//Read query file
-		while(p.hasQueries()){
-			//String array containing the terms in each query
-			String[] queries=p.getQueryTerms();
-			
-			//List to hold the TAAT postings list corresponding to each query
-			List<LinkedList<String>> taat_post=new ArrayList<LinkedList<String>>();	
+		if(shard_only){
+			//The coordinator keeps only the top terms, a range partition needs a first pass for the largest Document ID
+			taat=null;
+			daat=null;
+			top=new TopK(k);
+			try{
+				if(shard_range || shard_processes){
+					int max=ShardedIndex.scan(term_file,top);
+					ShardedIndex.Partition partition=shard_range ? ShardedIndex.Partition.byRange(max,shard_count)
+							: new ShardedIndex.Partition(shard_count,0);
+					shards=shard_processes ? ShardedIndex.spawn(term_file,partition) : ShardedIndex.load(term_file,partition,null);
+				}else{
+					shards=ShardedIndex.load(term_file,new ShardedIndex.Partition(shard_count,0),top);
+				}
+			}catch(Exception e){
+				System.out.println("Failed to load the shards: "+e.getMessage());
+				System.exit(-1);
+				return;
+			}
+		}else if(segment){
+			//Map a compiled index instead of building it
+			try{
+				IndexSegment seg=new IndexSegment(term_file);
+				taat=seg.getTAAT();
+				daat=seg.getDAAT();
+			}catch(IOException e){
+				System.out.println("Failed to open index segment: "+e.getMessage());
+				System.exit(-1);
+				return;
+			}
+		}else{
+			//Build the index in memory from file
+			BuildIndex b=new BuildIndex(term_file);
 			
-			//List to hold the DAAT postings list corresponding to each query
-			List<LinkedList<String>> daat_post=new ArrayList<LinkedList<String>>();	
+			//Keep the top 'k' terms while the file is loaded
+			b.trackTopK(k);
 			
-			//looping through the query terms
-			for(int i=0;i<queries.length;i++){
-				f.getPostings(queries[i]);					//Get Postings list for each query
-				
-				//Build an array list containing the taat Postings list for the given query line
-				taat_post.add(taat.get(queries[i]));		
-				
-				//Build an array list containing the daat Postings list for the given query line
-				daat_post.add(daat.get(queries[i]));
-				}
+			//Store the postings outside of the heap as they are loaded
+			PostingsArena arena=off_heap ? new PostingsArena() : null;
+			if(arena!=null)
+				b.offHeap(arena);
 			
-			//Build function header and write to file (TAAT_AND and TAAT_OR)
-			String query_line=new String();
-			for(int i=0;i<queries.length;i++){
-				query_line=query_line+queries[i];
-				if(i!=(queries.length-1)){
-					query_line=query_line+", ";
-				}
+			//Construct index and verify
+			if(!b.construct(threads)){
+				System.out.println("Failed to construct index");
+				System.exit(-1);
 			}
 			
-			f.writeFile("\nFUNCTION: termAtATimeQueryAnd "+query_line);
-			f.TAAT_AND(queries,false);
+			//Encode the document ID ordered lists
+			if(bitmap)
+				b.bitmap();
+			if(compress)
+				b.compress();
+			
+			//Look the terms of both orderings up in one sorted dictionary
+			if(compact_terms)
+				b.compactTerms();
 			
-			f.writeFile("\nFUNCTION: termAtATimeQueryOr "+query_line);
-			f.TAAT_OR(queries, false);
+			//Get references to the Hashtables built in memory
+			taat = b.getTAAT();		
+			daat = b.getDAAT();
+			top = b.getTopK();
+			dictionary = b.getDictionary();
 			
-			f.writeFile("\nFUNCTION: docAtATimeQueryAnd "+query_line);
-			f.DAAT_AND(queries);
+			//Report the read throughput and the heap used by the postings
+			System.out.println(b.readReport());
+			System.out.println(b.memoryReport());
+			if(arena!=null)
+				System.out.println(arena.report());
+			if(b.getDictionary()!=null)
+				System.out.println(b.getDictionary().report());
+			
+			//Write the index to a segment for later runs
+			if(compile!=null)
+				IndexSegment.write(taat,daat,compile);
+		}
+		
+		//Add the update files one flush at a time, queries then read across all segments
+		if(adds.length>0){
+			LiveIndex live=new LiveIndex(taat,daat,0);
+			for(String a:adds){
+				try{
+					live.addFile(a);
+				}catch(IOException e){
+					System.out.println("Failed to add "+a+": "+e.getMessage());
+					System.exit(-1);
+				}
+				live.flush();
+			}
+			try{
+				live.awaitMerges();
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+			System.out.println(live.report());
 			
-			f.writeFile("\nFUNCTION: docAtATimeQueryOr "+query_line);
-			f.DAAT_OR(queries);
+			taat=live.getTAAT();
+			daat=live.getDAAT();
+			top=null;				//Collected from <term_file> only
+			dictionary=null;
+		}
+		
+		//Answer prefix patterns from the sorted terms
+		WildcardIndex wildcard=null;
+		if(wildcards){
+			if(shard_count>0){
+				System.out.println("--wildcards can not be combined with --shards, the shards only look up whole terms");
+				System.exit(-1);
+			}
+			wildcard=new WildcardIndex(taat,daat,dictionary);
+			wildcard.setMaxExpansions(wildcard_max);
+			if(wildcard_prefixes>0)
+				wildcard.precompute(wildcard_prefixes);
+			taat=wildcard.getTAAT();
+			daat=wildcard.getDAAT();
+		}
 		
-		}	
+		//Share Hashtable references with Functions class. Also, set up output file
+		Functions f=new Functions(taat,daat,output_file);
+		f.setSortedMerge(merge);
+		f.setPlanned(plan);
+		f.setAsyncOutput(async_output);
+		
+		//Measure the build and every query
+		QueryMetrics metrics=null;
+		if(metrics_file!=null || jmx){
+			metrics=new QueryMetrics();
+			metrics.recordBuild(System.nanoTime()-build_start,segment ? 0 : new java.io.File(term_file).length(),
+					shard_only ? Collections.<String,Postings>emptyMap() : taat,shard_only ? Collections.<String,Postings>emptyMap() : daat);
+			f.setMetrics(metrics);
+			if(jmx){
+				try{
+					metrics.register();
+				}catch(javax.management.JMException e){
+					System.out.println("Failed to register metrics MBean: "+e.getMessage());
+				}
+			}
+		}
+		
+		//Partition the whole index for the scatter-gather queries
+		if(shard_count>0 && !shard_only){
+			ShardedIndex.Partition partition=shard_range ? ShardedIndex.Partition.byRange(daat,shard_count)
+					: new ShardedIndex.Partition(shard_count,0);
+			if(!shard_processes){
+				shards=ShardedIndex.local(daat,partition);
+			}else if(segment || adds.length>0){
+				System.out.println("--shard-processes needs <term_file> to be a postings file, without --segment or --add");
+				System.exit(-1);
+			}else{
+				try{
+					shards=ShardedIndex.spawn(term_file,partition);
+				}catch(IOException e){
+					System.out.println("Failed to start shard processes: "+e.getMessage());
+					System.exit(-1);
+				}
+			}
+		}
+		if(shards!=null){
+			System.out.println(shards.report());
+			f.setShards(shards);
+		}
+		
+		//Document lengths and term score bounds for the ranked queries
+		if(ranked>0)
+			f.setRanking(new BM25Scorer(daat),ranked);
+		
+		//Pick the intersection kernel, the vector one needs its module at run time
+		if(simd){
+			IntersectionKernel kernel=IntersectionKernel.create();
+			System.out.println("Intersection kernel: "+kernel.name());
+			f.setKernel(kernel);
+		}
+		
+		//Cache the output of repeated queries
+		QueryCache cache=null;
+		if(cache_mb>0){
+			cache=new QueryCache(cache_mb<<20);
+			f.setCache(cache);
+		}
+		
+		//Set up query handler
+		ParseInput p=new ParseInput(query_file);
+		
+		//Call getTopK, a mapped segment has to be scanned for it
+		if(top!=null)
+			f.getTopK(top);
+		else
+			f.getTopK(k, taat);
+		
+		//Run the query file, in parallel when asked for
+		QueryExecutor q=new QueryExecutor(f,query_threads);
+		q.setBooleanQueries(expressions);
+		if(!q.run(p)){
+			System.out.println("Failed to run queries");
+			System.exit(-1);
+		}
 		
 		f.close();	
+		
+		if(shards!=null)
+			shards.close();
+		
+		if(cache!=null)
+			System.out.println(cache.report());
+		
+		if(wildcard!=null)
+			System.out.println(wildcard.report());
+		
+		if(metrics_file!=null){
+			metrics.write(metrics_file);
+			System.out.println("Metrics written to "+metrics_file);
+		}
 
 	}
 
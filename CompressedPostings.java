@@ -0,0 +1,270 @@
+import java.util.*;
+
+/** Postings list ordered by Document ID, stored as variable-byte encoded blocks.
+ * <br> Every block holds up to 128 postings: first the gaps between consecutive document IDs,
+ * then the term frequencies, each written with 7 bits per byte. The last document ID and
+ * the byte offset of every block are kept uncompressed, so a block can be decoded
+ * on its own and the iterator never has to decompress the whole list. */
+public class CompressedPostings extends Postings {
+	
+	/** Number of postings per block */
+	public static final int BLOCK=128;
+	
+	/** Encoded blocks */
+	private byte[] data;
+	
+	/** Byte offset in <i>data</i> at which each block starts */
+	private int[] offset;
+	
+	/** Last document ID of each block */
+	private int[] last;
+	
+	/** Number of postings */
+	private int n;
+	
+	/** Block last decoded by random access, replaced as a whole so threads never see it half decoded */
+	private volatile Decoded decoded;
+	
+	/** One decoded block. The term frequencies are <i>null</i> until one of them is asked for */
+	private static class Decoded {
+		final int block;
+		final int[] docs,tfs;
+		final int tf_pos;
+		
+		Decoded(int block,int[] docs,int[] tfs,int tf_pos){
+			this.block=block;
+			this.docs=docs;
+			this.tfs=tfs;
+			this.tf_pos=tf_pos;
+		}
+	}
+	
+	private CompressedPostings(byte[] data,int[] offset,int[] last,int n){
+		this.data=data;
+		this.offset=offset;
+		this.last=last;
+		this.n=n;
+	}
+	
+	/** Encode a postings list
+	 * @param p Postings ordered by increasing Document ID
+	 * @return Compressed copy of the list */
+	public static CompressedPostings compress(Postings p){
+		int n=p.size();
+		int blocks=(n+BLOCK-1)/BLOCK;
+		int[] offset=new int[blocks];
+		int[] last=new int[blocks];
+		
+		//Worst case is 5 bytes per number
+		byte[] out=new byte[Math.max(16,n*3)];
+		int len=0;
+		int prev=0;
+		
+		for(int b=0;b<blocks;b++){
+			int from=b*BLOCK;
+			int to=Math.min(n,from+BLOCK);
+			if(out.length-len<10*(to-from))
+				out=Arrays.copyOf(out,Math.max(out.length*2,len+10*(to-from)));
+			
+			offset[b]=len;
+			for(int i=from;i<to;i++){
+				int d=p.doc(i);
+				if(d<prev)
+					throw new IllegalArgumentException("Postings are not ordered by document ID");
+				len=writeVInt(out,len,d-prev);
+				prev=d;
+			}
+			for(int i=from;i<to;i++)
+				len=writeVInt(out,len,p.tf(i));
+			last[b]=prev;
+		}
+		
+		return new CompressedPostings(Arrays.copyOf(out,len),offset,last,n);
+	}
+	
+	@Override
+	public int size(){
+		return n;
+	}
+	
+	/** Random access decodes the whole block of the posting unless it was the last one decoded,
+	 * so walking the list in order decodes every block once. Prefer {@link #iterator()} */
+	@Override
+	public int doc(int i){
+		return block(i).docs[i%BLOCK];
+	}
+	
+	/** Random access, see {@link #doc(int)} */
+	@Override
+	public int tf(int i){
+		Decoded d=block(i);
+		if(d.tfs==null){
+			int[] tfs=new int[BLOCK];
+			decodeTfs(d.block,d.tf_pos,tfs);
+			d=new Decoded(d.block,d.docs,tfs,d.tf_pos);
+			decoded=d;
+		}
+		return d.tfs[i%BLOCK];
+	}
+	
+	/** Decoded block of a posting, from the cache when it holds that block */
+	private Decoded block(int i){
+		if(i<0 || i>=n)
+			throw new IndexOutOfBoundsException("Index: "+i+", Size: "+n);
+		Decoded d=decoded;
+		if(d==null || d.block!=i/BLOCK){
+			int[] docs=new int[BLOCK];
+			d=new Decoded(i/BLOCK,docs,null,decodeDocs(i/BLOCK,docs));
+			decoded=d;
+		}
+		return d;
+	}
+	
+	@Override
+	public PostingsIterator iterator(){
+		return new BlockIterator();
+	}
+	
+	@Override
+	public long memoryBytes(){
+		//Object header + 4 references + int, plus the three arrays
+		return 32+align(16+data.length)+2*align(16+4L*offset.length);
+	}
+	
+	/** Number of postings in a block */
+	private int count(int b){
+		return Math.min(BLOCK,n-b*BLOCK);
+	}
+	
+	/** Decode the Document IDs of one block
+	 * @param b Block number
+	 * @param docs Array of at least BLOCK entries to receive the Document IDs
+	 * @return Offset in <i>data</i> at which the term frequencies of the block start */
+	private int decodeDocs(int b,int[] docs){
+		int count=count(b);
+		int pos=offset[b];
+		int doc=b==0 ? 0 : last[b-1];
+		
+		for(int i=0;i<count;i++){
+			//Read one variable-byte gap
+			int v=0,shift=0,x;
+			do{
+				x=data[pos++];
+				v|=(x&0x7f)<<shift;
+				shift+=7;
+			}while(x<0);
+			doc+=v;
+			docs[i]=doc;
+		}
+		return pos;
+	}
+	
+	/** Decode the term frequencies of one block
+	 * @param b Block number
+	 * @param pos Offset returned by {@link #decodeDocs(int,int[])} for the block
+	 * @param tfs Array of at least BLOCK entries to receive the term frequencies */
+	private void decodeTfs(int b,int pos,int[] tfs){
+		int count=count(b);
+		for(int i=0;i<count;i++){
+			int v=0,shift=0,x;
+			do{
+				x=data[pos++];
+				v|=(x&0x7f)<<shift;
+				shift+=7;
+			}while(x<0);
+			tfs[i]=v;
+		}
+	}
+	
+	/** Write a non-negative int with 7 bits per byte, the high bit marks that more bytes follow */
+	private static int writeVInt(byte[] out,int pos,int v){
+		while((v&~0x7f)!=0){
+			out[pos++]=(byte)((v&0x7f)|0x80);
+			v>>>=7;
+		}
+		out[pos++]=(byte)v;
+		return pos;
+	}
+	
+	/** Iterator that decodes one block at a time.
+	 * Term frequencies are only decoded for blocks in which they are asked for */
+	private class BlockIterator extends PostingsIterator {
+		private int[] docs=new int[BLOCK];
+		private int[] tfs;
+		private int block=-1;			//Block held in the buffers
+		private int count=0;			//Postings in that block
+		private int i=0;				//Position in the block
+		private int tf_pos=-1;			//Offset of the term frequencies of the block, -1 once decoded
+		
+		@Override
+		public int nextDoc(){
+			if(++i<count)
+				return docs[i];
+			if(block+1>=last.length){
+				i=count;
+				return NO_MORE_DOCS;
+			}
+			count=count(++block);
+			tf_pos=decodeDocs(block,docs);
+			i=0;
+			return docs[0];
+		}
+		
+		/** Skips whole blocks whose last Document ID is before the target, then
+		 * decodes a single block and walks it */
+		@Override
+		public int advance(int target){
+			boolean in_block=false;
+			if(block>=0){
+				comparisons++;
+				in_block=last[block]>=target;
+			}
+			
+			if(in_block){
+				i++;							//The target is further on in the current block
+			}else{
+				int b=block+1;
+				while(b<last.length){
+					comparisons++;
+					if(last[b]>=target)
+						break;
+					b++;
+				}
+				if(b>=last.length){			//Nothing left, park the cursor at the end
+					block=last.length-1;
+					count=0;
+					i=0;
+					return NO_MORE_DOCS;
+				}
+				block=b;
+				count=count(b);
+				tf_pos=decodeDocs(b,docs);
+				i=0;
+			}
+			
+			while(i<count){
+				comparisons++;
+				if(docs[i]>=target)
+					return docs[i];
+				i++;
+			}
+			return NO_MORE_DOCS;
+		}
+		
+		@Override
+		public int doc(){
+			return docs[i];
+		}
+		
+		@Override
+		public int tf(){
+			if(tf_pos>=0){
+				if(tfs==null)
+					tfs=new int[BLOCK];
+				decodeTfs(block,tf_pos,tfs);
+				tf_pos=-1;
+			}
+			return tfs[i];
+		}
+	}
+}
@@ -0,0 +1,564 @@
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/** Self-check of the compressed postings encodings against plain int[] postings, and of the
+ * front-coded {@link TermDictionary} against a sorted array of Strings.
+ * <br> Random lists are encoded and read back through every access path: a full walk, random
+ * access in and out of order, positions outside of the list and a mix of nextDoc and advance.
+ * The lists are made of stretches of different density, so they cross block and container
+ * boundaries, use every kind of bitmap container and include empty lists, single documents
+ * and IDs close to the largest one.
+ * <br> The intersection and union of {@link BitmapPostings.Merge} are compared with the ones
+ * of sorted sets.
+ * <br> Random term sets of sizes around the dictionary blocks, with shared prefixes, multibyte
+ * characters and the empty term, are looked up by term, by ordinal, by range and by prefix.
+ * <br> The first mismatch stops the check with an AssertionError naming the seed, so a failure
+ * can be repeated with --seed.
+ * <br><br> Usage: java EncodingCheck [options]
+ * <br> --seed=N			Random seed (default: the current time)
+ * <br> --rounds=N			Random lists per encoding and random term sets (default 300) */
+public class EncodingCheck {
+	
+	private long seed;
+	private Random random;
+	
+	/** Postings checked so far, for the summary */
+	private long checked=0;
+	
+	EncodingCheck(long seed){
+		this.seed=seed;
+		this.random=new Random(seed);
+	}
+	
+	public static void main(String[] ip) throws Exception{
+		long seed=System.nanoTime();
+		int rounds=300;
+		for(int i=0;i<ip.length;i++){
+			String a=ip[i];
+			String v=a.indexOf('=')<0 ? "" : a.substring(a.indexOf('=')+1);
+			if(a.startsWith("--seed="))
+				seed=Long.parseLong(v);
+			else if(a.startsWith("--rounds="))
+				rounds=Integer.parseInt(v);
+			else
+				throw new IllegalArgumentException("Unknown option "+a);
+		}
+		
+		System.out.println("Seed "+seed);
+		EncodingCheck c=new EncodingCheck(seed);
+		c.compressed(rounds);
+		c.bitmap(rounds);
+		c.dictionary(rounds);
+		System.out.println("All checks passed");
+	}
+	
+	/** Variable-byte blocks with skip data, see {@link CompressedPostings}
+	 * @param rounds Number of random lists
+	 * @return void */
+	void compressed(int rounds) throws Exception{
+		checked=0;
+		for(int r=0;r<rounds;r++){
+			int[] docs=randomDocs(r%8==0 ? r%3 : 4000);
+			int[] tfs=randomTfs(docs.length);
+			CompressedPostings c=CompressedPostings.compress(new Postings(docs,tfs));
+			compare("CompressedPostings round "+r,docs,tfs,c);
+			if(r%10==0)
+				concurrent("CompressedPostings round "+r,docs,tfs,c);
+		}
+		
+		//Unordered input is rejected
+		try{
+			CompressedPostings.compress(new Postings(new int[]{5,3},new int[]{1,1}));
+			fail("CompressedPostings","unordered list was encoded");
+		}catch(IllegalArgumentException e){
+		}
+		System.out.println("CompressedPostings: "+rounds+" lists, "+checked+" postings checked");
+	}
+	
+	/** Roaring-style array, bitmap and run containers, see {@link BitmapPostings}
+	 * @param rounds Number of random lists, and of random merges
+	 * @return void */
+	void bitmap(int rounds){
+		checked=0;
+		int dense=0;
+		for(int r=0;r<rounds;r++){
+			int[] docs=randomDocs(r%8==0 ? r%3 : 20000);
+			int[] tfs=randomTfs(docs.length);
+			BitmapPostings b=BitmapPostings.compress(new Postings(docs,tfs));
+			compare("BitmapPostings round "+r,docs,tfs,b);
+			if(b.isDense())
+				dense++;
+		}
+		check(rounds<50 || dense>0 && dense<rounds,"BitmapPostings",dense+" of "+rounds+" lists have a bitmap or run container");
+		
+		for(int r=0;r<rounds;r++)
+			merge("BitmapPostings.Merge round "+r);
+		System.out.println("BitmapPostings: "+rounds+" lists ("+dense+" with bitmap or run containers), "+checked+" postings checked, "+rounds+" merges");
+	}
+	
+	/** Intersect and unite a few lists that share many documents */
+	private void merge(String what){
+		int[] base=randomDocs(20000);
+		int n=1+random.nextInt(4);
+		BitmapPostings[] lists=new BitmapPostings[n];
+		TreeSet<Integer> and=null,or=new TreeSet<Integer>();
+		int smallest=Integer.MAX_VALUE,total=0;
+		for(int i=0;i<n;i++){
+			//Part of the shared documents and some of its own
+			TreeSet<Integer> set=new TreeSet<Integer>();
+			int keep=random.nextInt(101);
+			for(int d:base)
+				if(random.nextInt(100)<keep)
+					set.add(d);
+			for(int d:randomDocs(random.nextInt(4)==0 ? 0 : 10000))
+				set.add(d);
+			
+			int[] docs=new int[set.size()];
+			int k=0;
+			for(int d:set)
+				docs[k++]=d;
+			lists[i]=BitmapPostings.compress(new Postings(docs,new int[docs.length]));
+			smallest=Math.min(smallest,docs.length);
+			total+=docs.length;
+			if(and==null)
+				and=new TreeSet<Integer>(set);
+			else
+				and.retainAll(set);
+			or.addAll(set);
+		}
+		
+		BitmapPostings.Merge m=new BitmapPostings.Merge();
+		int[] out=new int[smallest];
+		sameSet(what+" and of "+n+" lists",and,out,m.and(lists,out));
+		out=new int[total];
+		sameSet(what+" or of "+n+" lists",or,out,m.or(lists,out));
+	}
+	
+	/** Compare the first <i>count</i> entries of a merge with the expected documents */
+	private void sameSet(String what,SortedSet<Integer> expected,int[] out,int count){
+		check(count==expected.size(),what,count+" documents, expected "+expected.size());
+		int i=0;
+		for(int d:expected){
+			check(out[i]==d,what,"document "+i+" is "+out[i]+", expected "+d);
+			i++;
+		}
+	}
+	
+	/** Front-coded term blocks, see {@link TermDictionary}. The first sets have sizes around
+	 * multiples of the 16 terms of a block
+	 * @param rounds Number of random term sets
+	 * @return void */
+	void dictionary(int rounds){
+		int[] sizes={0,1,2,15,16,17,31,32,33,47,48,49};
+		long terms=0;
+		for(int r=0;r<rounds;r++){
+			int n=r<sizes.length ? sizes[r] : random.nextInt(3000);
+			List<String> set=randomTerms(n);
+			TermDictionary d=TermDictionary.build(set);
+			compare("TermDictionary round "+r,sorted(set),d);
+			terms+=n;
+		}
+		
+		//Duplicate terms are rejected
+		try{
+			TermDictionary.build(Arrays.asList("b","a","b"));
+			fail("TermDictionary","duplicate term was accepted");
+		}catch(IllegalArgumentException e){
+		}
+		System.out.println("TermDictionary: "+rounds+" term sets, "+terms+" terms checked");
+	}
+	
+	/** Compare a dictionary with the terms it was built from
+	 * @param what Name of the case, for the error message
+	 * @param terms Terms in unsigned UTF-8 byte order
+	 * @param d Dictionary */
+	private void compare(String what,String[] terms,TermDictionary d){
+		int n=terms.length;
+		check(d.size()==n,what,"size is "+d.size()+", expected "+n);
+		
+		//Both directions for every term
+		for(int i=0;i<n;i++){
+			check(d.term(i).equals(terms[i]),what,"term("+i+") is \""+d.term(i)+"\", expected \""+terms[i]+"\"");
+			check(d.ordinal(terms[i])==i,what,"ordinal(\""+terms[i]+"\") is "+d.ordinal(terms[i])+", expected "+i);
+		}
+		for(int ord:new int[]{-1,n}){
+			try{
+				d.term(ord);
+				fail(what,"term("+ord+") did not fail on "+n+" terms");
+			}catch(IndexOutOfBoundsException e){
+			}
+		}
+		
+		//Terms that are not in the dictionary, before, between and after the others
+		Set<String> in=new HashSet<String>(Arrays.asList(terms));
+		List<String> probes=randomTerms(20);
+		probes.add("");
+		probes.add("\uffff\uffff");
+		for(String t:probes)
+			if(!in.contains(t))
+				check(d.ordinal(t)==-1,what,"ordinal(\""+t+"\") of a missing term is "+d.ordinal(t));
+		
+		//Ranges of ordinals: all, empty ones, ones ending at the last term and random ones
+		range(what,terms,d,0,n);
+		range(what,terms,d,n,n);
+		if(n>0)
+			range(what,terms,d,n-1,n);
+		for(int k=0;k<20 && n>0;k++){
+			int from=random.nextInt(n+1);
+			range(what,terms,d,from,from+random.nextInt(n-from+1));
+		}
+		
+		//Prefixes: the empty one, every prefix of the last term, so of the last block, prefixes
+		//of random terms and of the probes, and one after every term
+		Set<String> prefixes=new LinkedHashSet<String>();
+		prefixes.add("");
+		if(n>0)
+			prefixes.addAll(prefixes(terms[n-1]));
+		for(int k=0;k<10 && n>0;k++)
+			prefixes.addAll(prefixes(terms[random.nextInt(n)]));
+		for(String t:probes)
+			prefixes.addAll(prefixes(t));
+		byte[][] keys=new byte[n][];
+		for(int i=0;i<n;i++)
+			keys[i]=utf8(terms[i]);
+		for(String p:prefixes)
+			prefix(what,terms,keys,d,p);
+		
+		//Map over postings of every ordinal
+		Postings[] postings=new Postings[n];
+		for(int i=0;i<n;i++)
+			postings[i]=new Postings(new int[]{i},new int[]{1});
+		Map<String,Postings> view=d.view(postings);
+		check(view.size()==n,what,"view size is "+view.size()+", expected "+n);
+		for(int i=0;i<n;i++)
+			check(view.get(terms[i])==postings[i] && view.containsKey(terms[i]),what,"view of \""+terms[i]+"\" is not postings "+i);
+		for(String t:probes)
+			if(!in.contains(t))
+				check(view.get(t)==null && !view.containsKey(t),what,"view has the missing term \""+t+"\"");
+		int i=0;
+		for(Map.Entry<String,Postings> e:view.entrySet()){
+			check(e.getKey().equals(terms[i]) && e.getValue()==postings[i],what,"view entry "+i+" is \""+e.getKey()+"\"");
+			i++;
+		}
+		check(i==n,what,"view has "+i+" entries, expected "+n);
+		if(n>0){
+			Postings p=new Postings(new int[0],new int[0]);
+			int ord=random.nextInt(n);
+			Iterator<Map.Entry<String,Postings>> it=view.entrySet().iterator();
+			for(int k=0;k<ord;k++)
+				it.next();
+			it.next().setValue(p);
+			check(postings[ord]==p && view.get(terms[ord])==p,what,"setValue of entry "+ord+" did not reach the array");
+		}
+		try{
+			d.view(new Postings[n+1]);
+			fail(what,"view over "+(n+1)+" postings lists was accepted");
+		}catch(IllegalArgumentException e){
+		}
+	}
+	
+	/** Compare terms(from,to) with the sorted terms */
+	private void range(String what,String[] terms,TermDictionary d,int from,int to){
+		Iterator<String> it=d.terms(from,to);
+		for(int i=from;i<to;i++){
+			check(it.hasNext(),what,"terms("+from+","+to+") ends before "+i);
+			String t=it.next();
+			check(t.equals(terms[i]),what,"terms("+from+","+to+") has \""+t+"\" at "+i+", expected \""+terms[i]+"\"");
+		}
+		check(!it.hasNext(),what,"terms("+from+","+to+") does not end at "+to);
+		try{
+			it.next();
+			fail(what,"terms("+from+","+to+") goes past its end");
+		}catch(NoSuchElementException e){
+		}
+	}
+	
+	/** Compare prefixRange and prefix with a scan of the sorted terms
+	 * @param keys UTF-8 bytes of the terms */
+	private void prefix(String what,String[] terms,byte[][] keys,TermDictionary d,String prefix){
+		byte[] p=utf8(prefix);
+		int from=0,to=keys.length;
+		while(from<to){
+			int mid=(from+to)>>>1;
+			if(Arrays.compareUnsigned(keys[mid],p)<0)
+				from=mid+1;
+			else
+				to=mid;
+		}
+		while(to<keys.length && startsWith(keys[to],p))
+			to++;
+		
+		int[] range=d.prefixRange(prefix);
+		check(range[0]==from && range[1]==to,what,"prefixRange(\""+prefix+"\") is "+range[0]+".."+range[1]+", expected "+from+".."+to);
+		Iterator<String> it=d.prefix(prefix);
+		for(int i=from;i<to;i++)
+			check(it.hasNext() && it.next().equals(terms[i]),what,"prefix(\""+prefix+"\") differs at "+i);
+		check(!it.hasNext(),what,"prefix(\""+prefix+"\") does not end at "+to);
+	}
+	
+	/** Random distinct terms from pieces that share prefixes, including multibyte characters,
+	 * a character outside of the Basic Multilingual Plane, and the empty term */
+	private List<String> randomTerms(int n){
+		String[] pieces={"a","b","ab","ba","z","\u007f","\u00e9","\u4e2d","\ud83d\ude00","\u0000"};
+		Set<String> set=new HashSet<String>();
+		while(set.size()<n){
+			StringBuilder sb=new StringBuilder();
+			int len=random.nextInt(7);
+			for(int i=0;i<len;i++)
+				sb.append(pieces[random.nextInt(pieces.length)]);
+			set.add(sb.toString());
+		}
+		List<String> terms=new ArrayList<String>(set);
+		Collections.shuffle(terms,random);
+		return terms;
+	}
+	
+	/** Terms in unsigned UTF-8 byte order, the order of the dictionary */
+	private static String[] sorted(Collection<String> terms){
+		String[] t=terms.toArray(new String[0]);
+		Arrays.sort(t,new Comparator<String>(){
+			@Override
+			public int compare(String a,String b){
+				return Arrays.compareUnsigned(utf8(a),utf8(b));
+			}
+		});
+		return t;
+	}
+	
+	/** Every prefix of a term that ends between two characters, the empty one and the term included */
+	private static List<String> prefixes(String t){
+		List<String> p=new ArrayList<String>();
+		for(int k=0;;k=t.offsetByCodePoints(k,1)){
+			p.add(t.substring(0,k));
+			if(k==t.length())
+				break;
+		}
+		return p;
+	}
+	
+	private static boolean startsWith(byte[] a,byte[] prefix){
+		return a.length>=prefix.length && Arrays.equals(a,0,prefix.length,prefix,0,prefix.length);
+	}
+	
+	private static byte[] utf8(String s){
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+	
+	/** Compare an encoded list with the plain list it was built from
+	 * @param what Name of the case, for the error message
+	 * @param docs Document IDs of the plain list
+	 * @param tfs Term frequencies of the plain list
+	 * @param p Encoded list */
+	private void compare(String what,int[] docs,int[] tfs,Postings p){
+		int n=docs.length;
+		check(p.size()==n,what,"size is "+p.size()+", expected "+n);
+		checked+=n;
+		
+		//Full walk with the term frequencies, which has to stay at the end once it is there
+		PostingsIterator it=p.iterator();
+		for(int i=0;i<n;i++){
+			int d=it.nextDoc();
+			check(d==docs[i],what,"nextDoc at "+i+" is "+d+", expected "+docs[i]);
+			check(it.doc()==d,what,"doc() at "+i+" is "+it.doc()+", expected "+d);
+			check(it.tf()==tfs[i],what,"tf() at "+i+" is "+it.tf()+", expected "+tfs[i]);
+		}
+		check(it.nextDoc()==PostingsIterator.NO_MORE_DOCS,what,"walk does not end after "+n+" documents");
+		check(it.nextDoc()==PostingsIterator.NO_MORE_DOCS,what,"walk does not stay at the end");
+		
+		//Random access in order, then on both sides of every block and container boundary and at
+		//random positions, asking for the term frequency before the document ID half of the time
+		for(int i=0;i<n;i++)
+			access(what,docs,tfs,p,i);
+		for(int i=1;i<=n;i++){
+			if(i%CompressedPostings.BLOCK==0 || i<n && docs[i]>>>16!=docs[i-1]>>>16){
+				access(what,docs,tfs,p,i-1);
+				if(i<n)
+					access(what,docs,tfs,p,i);
+				access(what,docs,tfs,p,i-1);
+			}
+		}
+		for(int k=0;k<Math.min(2*n,500);k++)
+			access(what,docs,tfs,p,random.nextInt(n));
+		outside(what,p,-1);
+		outside(what,p,n);
+		
+		for(int k=0;k<3;k++)
+			skip(what,docs,tfs,p);
+	}
+	
+	/** Random access to one position */
+	private void access(String what,int[] docs,int[] tfs,Postings p,int i){
+		if(random.nextBoolean()){
+			check(p.tf(i)==tfs[i],what,"tf("+i+") is "+p.tf(i)+", expected "+tfs[i]);
+			check(p.doc(i)==docs[i],what,"doc("+i+") is "+p.doc(i)+", expected "+docs[i]);
+		}else{
+			check(p.doc(i)==docs[i],what,"doc("+i+") is "+p.doc(i)+", expected "+docs[i]);
+			check(p.tf(i)==tfs[i],what,"tf("+i+") is "+p.tf(i)+", expected "+tfs[i]);
+		}
+	}
+	
+	/** Random access outside of the list has to fail */
+	private void outside(String what,Postings p,int i){
+		try{
+			p.doc(i);
+			fail(what,"doc("+i+") did not fail on a list of "+p.size());
+		}catch(IndexOutOfBoundsException e){
+		}
+		try{
+			p.tf(i);
+			fail(what,"tf("+i+") did not fail on a list of "+p.size());
+		}catch(IndexOutOfBoundsException e){
+		}
+	}
+	
+	/** Walk a list with a random mix of nextDoc and advance. Targets are hits, misses just
+	 * before or after a document, near and far ones, and targets past the last document */
+	private void skip(String what,int[] docs,int[] tfs,Postings p){
+		int n=docs.length;
+		PostingsIterator it=p.iterator();
+		int pos=-1;
+		StringBuilder trace=new StringBuilder();
+		while(true){
+			int got;
+			if(random.nextInt(4)==0){
+				got=it.nextDoc();
+				pos=Math.min(pos+1,n);
+				trace.append(" next");
+			}else{
+				int target=target(docs,pos);
+				got=it.advance(target);
+				pos=ceiling(docs,pos+1,target);
+				trace.append(" advance(").append(target).append(')');
+			}
+			int expected=pos<n ? docs[pos] : PostingsIterator.NO_MORE_DOCS;
+			check(got==expected,what,"got "+got+", expected "+expected+" after"+trace);
+			if(pos>=n)
+				break;
+			check(it.doc()==got,what,"doc() is "+it.doc()+", expected "+got+" after"+trace);
+			if(random.nextBoolean())
+				check(it.tf()==tfs[pos],what,"tf() is "+it.tf()+", expected "+tfs[pos]+" after"+trace);
+			if(trace.length()>2000)
+				trace.setLength(0);
+		}
+	}
+	
+	/** Target larger than the current document: a hit, a miss next to a document, a near or
+	 * far one, the start of a later container or one past the last document */
+	private int target(int[] docs,int pos){
+		int n=docs.length;
+		long current=pos<0 ? -1 : docs[pos];
+		long last=n==0 ? 0 : docs[n-1];
+		int j=pos+1+random.nextInt(1<<random.nextInt(12));
+		long t;
+		switch(random.nextInt(7)){
+		case 0:
+			t=current+1;
+			break;
+		case 1:
+			t=j<n ? docs[j] : last+1;
+			break;
+		case 2:
+			t=j<n ? docs[j]-1L : last;
+			break;
+		case 3:
+			t=j<n ? docs[j]+1L : last+2;
+			break;
+		case 4:
+			t=current+1+random.nextInt(1<<random.nextInt(24));
+			break;
+		case 5:
+			t=((Math.max(current,0)>>>16)+1+random.nextInt(2)<<16)-random.nextInt(2);
+			break;
+		default:
+			t=random.nextInt(20)==0 ? Integer.MAX_VALUE : last+1;
+			break;
+		}
+		return (int)Math.min(Math.max(t,current+1),Integer.MAX_VALUE);
+	}
+	
+	/** First position at or after <i>from</i> whose document is at or after the target */
+	private static int ceiling(int[] docs,int from,int target){
+		int i=Arrays.binarySearch(docs,Math.min(from,docs.length),docs.length,target);
+		return i<0 ? -i-1 : i;
+	}
+	
+	/** Random access from two threads at once, which share the last decoded block */
+	private void concurrent(final String what,final int[] docs,final int[] tfs,final Postings p) throws Exception{
+		if(docs.length==0)
+			return;
+		final String[] error=new String[1];
+		Thread[] threads=new Thread[2];
+		for(int t=0;t<threads.length;t++){
+			final Random r=new Random(seed+t);
+			threads[t]=new Thread(){
+				@Override
+				public void run(){
+					for(int k=0;k<20000 && error[0]==null;k++){
+						int i=r.nextInt(docs.length);
+						if(p.doc(i)!=docs[i] || p.tf(i)!=tfs[i])
+							error[0]="concurrent doc/tf("+i+") is "+p.doc(i)+"/"+p.tf(i)+", expected "+docs[i]+"/"+tfs[i];
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for(Thread t:threads)
+			t.join();
+		check(error[0]==null,what,error[0]);
+	}
+	
+	/** Random Document IDs in increasing order, made of a few stretches that are sparse, runs
+	 * of consecutive IDs, dense windows or jumps to the next 65536 boundary or close to the
+	 * largest ID
+	 * @param max Largest number of documents */
+	private int[] randomDocs(int max){
+		int[] docs=new int[16];
+		int n=0;
+		long d=random.nextInt(4)==0 ? 0 : random.nextInt(1<<20);
+		int parts=1+random.nextInt(4);
+		for(int p=0;p<parts && n<max;p++){
+			int len=random.nextInt(max-n+1);
+			int kind=random.nextInt(6);
+			if(kind==4)
+				d=Math.max(d,((d>>>16)+1<<16)-random.nextInt(Math.max(1,len/2)+1));
+			else if(kind==5)
+				d=Math.max(d,Integer.MAX_VALUE-1L-2L*len);
+			int gap=1<<random.nextInt(20);
+			int percent=10+random.nextInt(90);
+			for(int i=0;i<len && d<Integer.MAX_VALUE;i++){
+				if(n==docs.length)
+					docs=Arrays.copyOf(docs,2*n);
+				docs[n++]=(int)d;
+				if(kind==0)
+					d+=1+random.nextInt(gap);
+				else if(kind==2)
+					do d++; while(random.nextInt(100)>=percent);
+				else
+					d++;
+			}
+			d+=random.nextInt(1<<random.nextInt(24));
+		}
+		
+		//Often cut at a block boundary or next to one
+		if(n>CompressedPostings.BLOCK && random.nextBoolean())
+			n=Math.min(n,n/CompressedPostings.BLOCK*CompressedPostings.BLOCK+random.nextInt(3)-1);
+		return Arrays.copyOf(docs,n);
+	}
+	
+	/** Random term frequencies, mostly small and some that take all five bytes */
+	private int[] randomTfs(int n){
+		int[] tfs=new int[n];
+		for(int i=0;i<n;i++)
+			tfs[i]=random.nextInt(50)==0 ? 1+random.nextInt(Integer.MAX_VALUE) : 1+random.nextInt(1<<random.nextInt(10));
+		return tfs;
+	}
+	
+	private void check(boolean ok,String what,String message){
+		if(!ok)
+			fail(what,message);
+	}
+	
+	private void fail(String what,String message){
+		throw new AssertionError(what+": "+message+" (seed "+seed+")");
+	}
+}
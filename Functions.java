@@ -10,21 +10,59 @@ import java.io.*;
  * <br> 7. Write function headers to the output file
  * @author Alizishaan Khatri */
 public class Functions {
-	private Hashtable<String, LinkedList<String>> taat,daat;
+	private Map<String,Postings> taat,daat;
 	private PrintWriter outfile;
 	private int comparisons=0;
 	
+	/** Output stage below <i>outfile</i> that streams the document IDs of the results,
+	 * <i>null</i> when an instance writes to a plain PrintWriter */
+	private ResultWriter results;
+	
+	/** When set, TAAT queries keep the answer sorted by document ID and 
+	 * merge it with the document ID ordered postings lists in linear time */
+	private boolean sortedMerge=false;
+	
+	/** When set, every query is evaluated once in the order chosen by a {@link QueryPlan}
+	 * instead of once in query order and once more in optimized order */
+	private boolean planned=false;
+	
+	/** Output of earlier queries, <i>null</i> when caching is off */
+	private QueryCache cache;
+	
+	/** Kernel intersecting plain document ID arrays in DAAT_AND and in the sorted merge 
+	 * of the TAAT queries, <i>null</i> to walk the postings with iterators */
+	private IntersectionKernel kernel;
+	
+	/** Scores of the ranked queries and the number of documents they return, 
+	 * <i>null</i> when ranking is off */
+	private BM25Scorer scorer;
+	private int ranked_k;
+	
+	/** Partitioned copy of the index answering the sharded queries, <i>null</i> when sharding is off */
+	private ShardedIndex shards;
+	
+	/** Latency and cost of every query, <i>null</i> when metrics are off */
+	private QueryMetrics metrics;
+	
+	/** While a query missed the cache: the real output file, the buffer the query
+	 * is written to, its key and the position of its timing line in the buffer */
+	private PrintWriter direct;
+	private StringWriter capture;
+	private String capture_key;
+	private int time_start=-1,time_end=-1;
+	
 	/** Store references to the two Hashtables created in memory in the previous stage.
 	 * <br> Also create an output file for logging
 	 * @param t Reference to the hashtable ordered by term frequency 
 	 * @param d Reference to the hashtable ordered by Document ID
 	 * @param fil Path of output file */
-	Functions(Hashtable<String, LinkedList<String>> t,Hashtable<String, LinkedList<String>> d, String fil){
+	Functions(Map<String,Postings> t,Map<String,Postings> d, String fil){
 		this.taat=t;
 		this.daat=d;
 			
 		try{
-			outfile=new PrintWriter(fil,"UTF-8");
+			results=new ResultWriter(new OutputStreamWriter(new FileOutputStream(fil),"UTF-8"));
+			outfile=new PrintWriter(results);
 		}catch(FileNotFoundException e){
 			System.out.println("Please check output file path!");
 			System.exit(1);
@@ -34,6 +72,126 @@ public class Functions {
 		}
 	}
 	
+	/** Share the Hashtables of another instance but write to a separate output.
+	 * <br> Every instance keeps its own comparison counter, so queries can run on
+	 * several instances at the same time.
+	 * @param parent Instance whose Hashtables and settings are shared
+	 * @param out Writer receiving the output of this instance */
+	Functions(Functions parent,PrintWriter out){
+		this.taat=parent.taat;
+		this.daat=parent.daat;
+		this.sortedMerge=parent.sortedMerge;
+		this.planned=parent.planned;
+		this.cache=parent.cache;
+		this.kernel=parent.kernel==null ? null : parent.kernel.fork();
+		this.scorer=parent.scorer;
+		this.ranked_k=parent.ranked_k;
+		this.shards=parent.shards;
+		this.metrics=parent.metrics;
+		this.outfile=out;
+	}
+	
+	/** Share the Hashtables of another instance but write to a separate output stage,
+	 * see {@link #Functions(Functions,PrintWriter)}
+	 * @param parent Instance whose Hashtables and settings are shared
+	 * @param out Deferred writer receiving the output of this instance, see {@link #writeFile(ResultWriter)} */
+	Functions(Functions parent,ResultWriter out){
+		this(parent,new PrintWriter(out));
+		this.results=out;
+	}
+	
+	/** Switch the TAAT queries between the original term frequency ordered
+	 * evaluation and the linear time sorted merge
+	 * @param merge Set to true to use the sorted merge
+	 * @return void */
+	public void setSortedMerge(boolean merge){
+		this.sortedMerge=merge;
+	}
+	
+	/** Switch between evaluating the TAAT queries twice, in query order and in optimized 
+	 * order, and evaluating every query once in the order chosen by a {@link QueryPlan}.
+	 * <br> Planned queries write only the comparisons made with optimization and skip the 
+	 * postings of an AND as soon as a term is missing or the answer is empty
+	 * @param plan Set to true to plan the queries
+	 * @return void */
+	public void setPlanned(boolean plan){
+		this.planned=plan;
+	}
+	
+	/** Serve repeated queries from a cache instead of evaluating them again.
+	 * <br> The output is the same with and without a cache apart from the timings
+	 * @param c Cache, possibly shared with other instances. <i>null</i> turns caching off
+	 * @return void */
+	public void setCache(QueryCache c){
+		this.cache=c;
+	}
+	
+	/** Intersect and merge lists stored as plain arrays with the given kernel.
+	 * <br> Results are the same with and without a kernel. The comparison counts are 
+	 * those of the kernel, where a vector compare counts as one
+	 * @param k Kernel, see {@link IntersectionKernel#create()}. <i>null</i> turns it off
+	 * @return void */
+	public void setKernel(IntersectionKernel k){
+		this.kernel=k;
+	}
+	
+	/** Rank documents with BM25 in {@link #rankedQuery(String[])}
+	 * @param s Scorer built over the document ID ordered Hashtable, <i>null</i> turns ranking off
+	 * @param k Number of documents returned per query
+	 * @return void */
+	public void setRanking(BM25Scorer s,int k){
+		this.scorer=s;
+		this.ranked_k=k;
+	}
+	
+	/** Whether {@link #setRanking(BM25Scorer,int)} turned ranking on
+	 * @param none
+	 * @return <i>true</i> if ranked queries can be run */
+	public boolean isRanked(){
+		return scorer!=null;
+	}
+	
+	/** Answer {@link #shardedAND(String[])} and {@link #shardedOR(String[])} by scatter-gather over the shards
+	 * @param s Sharded index, possibly shared with other instances. <i>null</i> turns sharding off
+	 * @return void */
+	public void setShards(ShardedIndex s){
+		this.shards=s;
+	}
+	
+	/** Whether {@link #setShards(ShardedIndex)} turned sharding on
+	 * @param none
+	 * @return <i>true</i> if sharded queries can be run */
+	public boolean isSharded(){
+		return shards!=null;
+	}
+	
+	/** Whether the instance holds the whole index, instead of only answering sharded queries
+	 * @param none
+	 * @return <i>true</i> if the term and document ordered Hashtables are set */
+	public boolean hasIndex(){
+		return daat!=null;
+	}
+	
+	/** Record the latency, comparisons, result size and postings read of every query
+	 * @param m Metrics, possibly shared with other instances. <i>null</i> turns recording off
+	 * @return void */
+	public void setMetrics(QueryMetrics m){
+		this.metrics=m;
+	}
+	
+	/** Format and write the results on a background thread, so that the query thread only 
+	 * hands the result arrays over. The output is the same as without it
+	 * @param async Set to true to write on a background thread
+	 * @return void */
+	public void setAsyncOutput(boolean async){
+		try{
+			if(results!=null)
+				results.setAsync(async);
+		}catch(IOException e){
+			System.out.println("Failed to write output file: "+e.getMessage());
+		}
+	}
+	
 	/** Closes the output file 
 	 * @param none
 	 * @return void	 */
@@ -46,335 +204,423 @@ public class Functions {
 	 * @param term <i>String</i> Enter the term that you want to search
 	 * @return void	 */
 	public void getPostings(String term){
+		if(replay("getPostings",new String[]{term}))
+			return;
+		long s_time=System.nanoTime();
+		
 		//Retrieve terms from Hashtable
-		LinkedList<String> l=taat.get(term);
-		LinkedList<String> m=daat.get(term);
+		Postings l=taat.get(term);
+		Postings m=daat.get(term);
 		
 		//Write function description to file
 		outfile.write("\nFUNCTION: getPostings "+term);
 		
 		//Check if term exists in the index
 		if(!(l==null || m==null)){
-			
-			String l_temp=l.toString();
-			String m_temp=m.toString();
-			
-			outfile.write("\nOrdered by doc IDs: "+l_temp.substring(1,l_temp.length()-1));
-			outfile.write("\nOrdered by TF: "+m_temp.substring(1,m_temp.length()-1));
+			outfile.write("\nOrdered by doc IDs: ");
+			writeDocs(m);
+			outfile.write("\nOrdered by TF: ");
+			writeDocs(l);
 		}else{
 			outfile.write("\nterm not found");
 		}
+		if(metrics!=null)
+			metrics.record("getPostings",System.nanoTime()-s_time,new String[]{term},0,m==null ? 0 : m.size(),
+					(l==null ? 0 : l.size())+(m==null ? 0 : m.size()));
+		store();
 		}
 	
 	/** Calculates the top 'k' terms of the given data
 	 * @param k <i>int</i> No of top terms required
 	 * @param index The Hashmap containing the postings lists
 	 * @return void	 */
-	public void getTopK(int k,Hashtable<String,LinkedList<String>> index){
-		Enumeration<String> l=index.keys();
+	public void getTopK(int k,Map<String,Postings> index){
+		//Keep only the best k terms in a bounded heap instead of sorting all of them
+		TopK top=new TopK(k);
+		for(Map.Entry<String,Postings> e:index.entrySet())
+			top.offer(e.getKey(),e.getValue().size());
 		
-		/** ArrayList of tok_freq objects to store token and corresponding postings list size */
-		List<tok_freq> c=new ArrayList<tok_freq>();
-				
-		while(l.hasMoreElements()){
-			String tok = l.nextElement();
-			int freq =index.get(tok).size();
-			tok_freq d=new tok_freq(tok,freq);
-			c.add(d);		
-		}
-		
-		//Sort the given list using an inbuilt implementation of TimSort Algorithm
-		Collections.sort(c);
+		getTopK(top);
+	}
+	
+	/** Writes the top 'k' terms collected while the index was built
+	 * @param top Top terms, see {@link BuildIndex#trackTopK(int)}
+	 * @return void	 */
+	public void getTopK(TopK top){
+		int k=top.k();
 		
 		//Write function header to file
 		outfile.write("FUNCTION: getTopK "+k+"\nResult: ");
 		
 		//Write output results to file
-		if(k<=c.size()){
+		if(k<=top.offered()){
+			String[] terms=top.terms();
 			for(int i=0;i<k;i++){
-				outfile.write(c.get(i).tok);
-				if(i!=k){
-					outfile.write(", ");
-				}
+				outfile.write(terms[i]);
+				outfile.write(", ");
 			}
 		}		
 	}
 	
 	/** Perform AND on the given set of queries using Term At A Time
-	 * @param A List object of LinkedList(String) containing postings lists	 * 
-	 * corresponding to the entered queries 
+	 * @param queries A String array containing the query terms
 	 * @param isOptimized Set to true if list is optimized */
 	public void TAAT_AND(String[] queries, boolean isOptimized){
+		if(!isOptimized && replay("termAtATimeQueryAnd",queries))
+			return;
 		
 		//Record start time		
-		long s_time=System.currentTimeMillis();
+		long s_time=System.nanoTime();
+		
+		//Planned queries run once, missing terms first and then by increasing postings list size
+		if(planned)
+			queries=new QueryPlan(queries,taat).terms();
 		
 		//Create ArrayList of Postings lists corresponding to the given queries
-		ArrayList<LinkedList<String>> postings=new ArrayList<LinkedList<String>>();		
+		//The sorted merge needs the lists ordered by document ID
+		Map<String,Postings> source=sortedMerge ? daat : taat;
+		ArrayList<Postings> postings=new ArrayList<Postings>();		
 		for(int i=0;i<queries.length;i++)
-			postings.add(taat.get(queries[i]));
+			postings.add(source.get(queries[i]));
 				
 		//count comparisons
 		comparisons=0;
 		
-		//Create LinkedList to store final answer
-		LinkedList<String> result_and=new LinkedList<String>();
+		//Array to store final answer. Only the first 'doc_size' entries are valid
+		int[] result_and=new int[0];
+		int doc_size=0;
+		boolean isResultValid=true;		//changed to false in case term not found
 		
 		//Initialize result_array with first term
 		if(postings.get(0)!=null){
-			String p=postings.get(0).toString();
-			p=p.substring(1,p.length()-1);
-			String[] s=p.split(", ");
-			for(int i=0;i<s.length;i++)
-				result_and.add(s[i]);
+			doc_size=postings.get(0).size();
+			result_and=new int[doc_size];
+			seed(postings.get(0),result_and);
 		}else{
-			result_and.add("term not found");						//Case when 1st query is not in index
+			isResultValid=false;									//Case when 1st query is not in index
 		}
 		
-		//Run a loop to go through all the n postings lists
-		for(int ii=1;ii<postings.size();ii++)
-			if (rec_AND(postings.get(ii),result_and)==false){		//Case when any query term except the first one is not in index
-				result_and.clear();
-				result_and.add("term not found");
-				break;				
+		//Run a loop to go through all the n postings lists. A planned query stops once the answer is empty
+		for(int ii=1;ii<postings.size() && isResultValid && !(planned && doc_size==0);ii++){
+			if(sortedMerge)
+				doc_size=merge_AND(postings.get(ii),result_and,doc_size);
+			else
+				doc_size=rec_AND(postings.get(ii),result_and,doc_size);
+			if (doc_size<0){										//Case when any query term except the first one is not in index
+				isResultValid=false;
 			}
-						
+		}
+		if(!isResultValid)
+			doc_size=0;
 		
 		//Record end time
-		long end_time=System.currentTimeMillis();
-		
-		//Determine number of documents in result
-		int doc_size;						//store number of documents in result
-		boolean isResultValid=true;		//changed to false in case term not found
-		
-		if(result_and.isEmpty()){
-			doc_size=0;
-		}else if(result_and.getFirst().equals("term not found")){
-			doc_size=0;
-			isResultValid=false;
-		}else{
-			doc_size=result_and.size();
-		}
+		long end_time=System.nanoTime();
+		record(isOptimized ? "termAtATimeQueryAnd.optimized" : "termAtATimeQueryAnd",end_time-s_time,queries,doc_size,postings);
 		
 		/* Write unoptimized output to file 
 		 * and optimize the output */
-		if(isOptimized==false){
+		if(planned){
+			outfile.write("\n"+doc_size+" documents are found");
+			outfile.write("\n"+comparisons+" comparisons are made with optimization");
+			writeTime(end_time-s_time);
+			
+			writeResult(isResultValid,result_and,doc_size);
+			store();
+		}else if(isOptimized==false){
 			outfile.write("\n"+doc_size+" documents are found");
 			outfile.write("\n"+comparisons+" comparisons are made");
-			outfile.write("\n"+((end_time-s_time)*0.003)+" seconds are used"); 	//Converting milliseconds to seconds
+			writeTime(end_time-s_time);
 			
 			//Create String[] of queries arranged for optimization
-			String[] optimized_quer=queries.clone();
+			String[] optimized_quer=queries;
 			//Sort the query list in ascending order of Posting list size
-			if(queries.length>=2 && isResultValid){
-				for(int i=0;i<optimized_quer.length-1;i++)
-					for(int j=0;j<optimized_quer.length-1;j++)
-						if(taat.get(optimized_quer[j]).size()>taat.get(optimized_quer[j+1]).size()){
-							String temp=optimized_quer[j];
-							optimized_quer[j]=optimized_quer[j+1];
-							optimized_quer[j+1]=temp;			
-										
-						}
-			}				
+			if(queries.length>=2 && isResultValid)
+				optimized_quer=new QueryPlan(queries,taat).terms();
 			
 			//Process optimized list
-			TAAT_AND(optimized_quer, true);			
+			TAAT_AND(optimized_quer, true);
+			store();
 		}else{
 			outfile.write("\n"+comparisons+" comparisons are made with optimization");
 			
 			/* Parse the results according to specified output format */			
-			String result=result_and.toString(); 						//Get String representation of list
-			if(result.length()>2){										//Check if list is non-empty
-				result=result.substring(1,result.length()-1);			//Strip out the terminal square brackets 
-			}else{
-				result="";
-			}
-			
-			outfile.write("\n"+"Result: "+result);
+			writeResult(isResultValid,result_and,doc_size);
 			
 		}
 	}
 	
-	/** Internal method to perform TAAT AND on two Array Lists
-	 * @param new_data Enter new array here
-	 * @param answer_data Reference to answer Array */	
-	private boolean rec_AND(LinkedList<String> new_data,LinkedList<String> answer_data){
+	/** Internal method to perform TAAT AND of a postings list with the answer array.
+	 * The matching entries are compacted to the front of the answer array.
+	 * @param new_data Enter new postings list here
+	 * @param answer_data Reference to answer Array
+	 * @param size Number of valid entries in the answer array
+	 * @return Number of valid entries left in the answer array, -1 if the postings list is missing */	
+	private int rec_AND(Postings new_data,int[] answer_data,int size){
 		boolean match;
+		int kept=0;
 		
 		//Check if entered postings list is empty
 		if(new_data==null){
-			// result_and.add("term not found");
-			return false;
+			return -1;
 		}else{
 		/* Compare each element of the answer list to each element of the data list */
-		for(int i=0;i<answer_data.size();i++){
+		for(int i=0;i<size;i++){
 				match=false;
 				//Store current element of answer list in an integer variable			
-				int ext=Integer.parseInt(answer_data.get(i));
+				int ext=answer_data[i];
 				
 				//Compare current element of answer list to all elements of data until a match is found or end of list
 				for(int j=0;j<new_data.size();j++){
 					//Increment comparisons counter
 					comparisons++;
 					//Check if data element matches the one in the answer list 
-					if(ext==Integer.parseInt(new_data.get(j))){
+					if(ext==new_data.doc(j)){
 						match=true;		//report match
 						break;			//exit 'j' loop
 						}
 					}
 				
-				/* Case when current element of answer list fails to match any element
-				 * of new data.*/
-				if (match==false){
-					answer_data.remove(i); 			//remove the element from the answer list
-					/* decrement 'i' as the next value in the answer list will
-					 *  be moved the current position. */
-					--i;							
+				/* Keep the current element of the answer list only if it
+				 * matched an element of new data.*/
+				if (match==true){
+					answer_data[kept++]=ext;
 					}
 				}
 		}
 		//Since we have reached here means the method has executed successfully
-		return true;
+		return kept;
 	}	
 	
 	/** Perform OR on the given set of queries using Term At A Time
-	 * @param A List object of LinkedList(String) containing postings lists	 * 
-	 * corresponding to the entered queries 
+	 * @param queries A String array containing the query terms
 	 * @param isOptimized Set to true if list is optimized */
 	public void TAAT_OR(String[] queries, boolean isOptimized){		
+		if(!isOptimized && replay("termAtATimeQueryOr",queries))
+			return;
 		
 		//Record start time		
-		long s_time=System.currentTimeMillis();
+		long s_time=System.nanoTime();
 		
+		//Planned queries run once, missing terms first and then by increasing postings list size
+		if(planned)
+			queries=new QueryPlan(queries,taat).terms();
 		
 		//Create ArrayList of Postings lists corresponding to the given queries
-		ArrayList<LinkedList<String>> postings=new ArrayList<LinkedList<String>>();		
-		for(int i=0;i<queries.length;i++)
-			postings.add(taat.get(queries[i]));
+		//The sorted merge needs the lists ordered by document ID
+		Map<String,Postings> source=sortedMerge ? daat : taat;
+		ArrayList<Postings> postings=new ArrayList<Postings>();		
+		int capacity=0;
+		for(int i=0;i<queries.length;i++){
+			Postings p=source.get(queries[i]);
+			postings.add(p);
+			if(p!=null)
+				capacity+=p.size();
+		}
 				
 		//count comparisons
 		comparisons=0;
 		
-		//Create LinkedList to store final answer
-		LinkedList<String> result_and=new LinkedList<String>();
+		//Array to store final answer. Only the first 'doc_size' entries are valid
+		int[] result_or=new int[capacity];
+		int doc_size=0;
+		
+		//The sorted merge writes the union of two lists into a second buffer
+		int[] scratch=sortedMerge ? new int[capacity] : null;
 		
 		//Initialize result list with first postings list
-		if(postings.get(0)!=null){
-			String p=postings.get(0).toString();
-			p=p.substring(1,p.length()-1);
-			String[] s=p.split(", ");
-			for(int i=0;i<s.length;i++)
-				result_and.add(s[i]);
-		}
+		if(postings.get(0)!=null)
+			doc_size=seed(postings.get(0),result_or);
 		
 		boolean isResultValid=false;						//Indicates the validity of result set. Empty result set is considered as false
 		
 		//Run a loop to go through all the n postings lists
-		for(int ii=1;ii<postings.size();ii++)
-			isResultValid=isResultValid || rec_OR(postings.get(ii),result_and); 	//isResultValid becomes true when first non-null term is encountered in query list
-						
+		for(int ii=1;ii<postings.size();ii++){
+			int new_size;
+			if(sortedMerge){
+				new_size=merge_OR(postings.get(ii),result_or,doc_size,scratch);
+				if(new_size>=0){								//Swap buffers, the union is now in 'scratch'
+					int[] temp=result_or;
+					result_or=scratch;
+					scratch=temp;
+				}
+			}else{
+				new_size=rec_OR(postings.get(ii),result_or,doc_size);
+			}
+			if(new_size>=0){								//isResultValid becomes true when first non-null term is encountered in query list
+				doc_size=new_size;
+				isResultValid=true;
+			}
+		}
 		
 		//Record end time
-		long end_time=System.currentTimeMillis();
-		
-		//Determine number of documents in result
-		int doc_size=result_and.size();						//store number of documents in result
-		
-		
-		/*if(result_and.isEmpty()){
-			doc_size=0;
-		}else if(result_and.getFirst().equals("term not found")){
-			doc_size=0;
-			isResultValid=false;
-		}else{
-			doc_size=result_and.size();
-		}*/
-		
-		
+		long end_time=System.nanoTime();
+		record(isOptimized ? "termAtATimeQueryOr.optimized" : "termAtATimeQueryOr",end_time-s_time,queries,doc_size,postings);
 		
 		/* Write unoptimized output to file 
 		 * and optimize the output */
-		if(isOptimized==false){
+		if(planned){
+			outfile.write("\n"+doc_size+" documents are found");
+			outfile.write("\n"+comparisons+" comparisons are made with optimization");
+			writeTime(end_time-s_time);
+			writeResult(true,result_or,doc_size);
+			store();
+		}else if(isOptimized==false){
 			outfile.write("\n"+doc_size+" documents are found");
 			outfile.write("\n"+comparisons+" comparisons are made");
-			outfile.write("\n"+((end_time-s_time)*0.003)+" seconds are used"); 	//Converting milliseconds to seconds
-			System.out.println("Unoptimized Result for doc size :"+result_and.size()+" is: "+result_and);
+			writeTime(end_time-s_time);
 			
 			//Create String[] of queries arranged for optimization
-			String[] optimized_quer=new String[queries.length];
-			
-			for(int i=0;i<queries.length;i++)
-				optimized_quer[i]=String.valueOf(queries[i]);
-			
-			
-			//Sort the query list in ascending order of Posting list size
-			if(queries.length>=2 && isResultValid){
-				for(int i=0;i<optimized_quer.length;i++)
-					for(int j=0;j<optimized_quer.length-1;j++)
-						if(taat.get(optimized_quer[j]).size()>taat.get(optimized_quer[j+1]).size()){
-							String temp=new String(optimized_quer[j]);
-							optimized_quer[j]=optimized_quer[j+1];
-							optimized_quer[j+1]=temp;										
-						}
-			}
+			String[] optimized_quer=queries;
 			
-			for(int i=0;i<optimized_quer.length;i++)
-				System.out.println(optimized_quer[i]);
+			//Sort the query list in ascending order of Posting list size. Missing terms go first, they add nothing
+			if(queries.length>=2 && isResultValid)
+				optimized_quer=new QueryPlan(queries,taat).terms();
 			
-			System.out.println("Comparisons before optimization: "+comparisons);
 			//Process optimized list
-			TAAT_OR(optimized_quer, true);			
+			TAAT_OR(optimized_quer, true);
+			store();
 		}else{
 			outfile.write("\n"+comparisons+" comparisons are made with optimization");
 			
 			/* Parse the results according to specified output format */			
-			String result=result_and.toString(); 						//Get String representation of list
-			if(result.length()>2){										//Check if list is non-empty
-				result=result.substring(1,result.length()-1);			//Strip out the terminal square brackets 
-			}else{
-				result="";
-			}
-			
-			outfile.write("\n"+"Result: "+result);
-			System.out.println("Optimized Result is : "+result_and);
+			writeResult(true,result_or,doc_size);
 		}
 	}
 	
-	/** Internal method to perform TAAT OR on two Array Lists
-	 * @param new_data Enter new array here
-	 * @param answer_data Reference to answer Array */	
-	private boolean rec_OR(LinkedList<String> new_data,LinkedList<String> answer_data){
+	/** Internal method to perform TAAT OR of a postings list with the answer array.
+	 * New document IDs are appended at the end of the answer array.
+	 * @param new_data Enter new postings list here
+	 * @param answer_data Reference to answer Array, large enough to hold the union
+	 * @param size Number of valid entries in the answer array
+	 * @return Number of valid entries in the answer array, -1 if the postings list is missing */	
+	private int rec_OR(Postings new_data,int[] answer_data,int size){
 		
 		boolean match=false;
 		
 		//Check if entered postings list is empty
 		if(new_data==null){
-			// result_and.add("term not found");
-			return false;
+			return -1;
 		}else{
 		/* Compare each element of the data list to each element of the answer list */
 			for(int i=0;i<new_data.size();i++){
 					match=false;
 					//Store current element of answer list in an integer variable			
-					int ext=Integer.parseInt(new_data.get(i));
+					int ext=new_data.doc(i);
 					
 					//Compare element of data list to each element in answer list
-					for(int j=0;j<answer_data.size();j++){
+					for(int j=0;j<size;j++){
 						//Increment comparisons counter
 						comparisons++;
-						int dat=Integer.parseInt(answer_data.get(j));
 						//Check if data element matches the one in the answer list 
-						if(ext==dat){
+						if(ext==answer_data[j]){
 							match=true;			//report match
 							break;				//exit 'j' loop
 						}					
 					}
 					if(match==false)//add new element to the answer list
-						answer_data.add(new_data.get(i));
+						answer_data[size++]=ext;
 			}
 		}
 		//Since we have reached here means the method has executed successfully
-		return true;
+		return size;
+	}
+	
+	/** Internal method to copy the document IDs of the first postings list into an answer array.
+	 * <br> The list is walked with its iterator, so compressed and bitmap lists are decoded once
+	 * instead of once per entry
+	 * @param p Postings list
+	 * @param answer_data Answer array, at least as long as the list
+	 * @return Number of entries copied */
+	private static int seed(Postings p,int[] answer_data){
+		int n=0;
+		PostingsIterator it=p.iterator();
+		for(int d=it.nextDoc();d!=PostingsIterator.NO_MORE_DOCS;d=it.nextDoc())
+			answer_data[n++]=d;
+		return n;
+	}
+
+	/** Internal method to intersect a document ID ordered postings list with the
+	 * sorted answer array, walking both with one pointer each.
+	 * The matching entries are compacted to the front of the answer array.
+	 * @param new_data Enter new postings list here, ordered by document ID
+	 * @param answer_data Reference to answer Array, ordered by document ID
+	 * @param size Number of valid entries in the answer array
+	 * @return Number of valid entries left in the answer array, -1 if the postings list is missing */
+	private int merge_AND(Postings new_data,int[] answer_data,int size){
+		if(new_data==null)
+			return -1;
+		
+		int[] docs=kernel==null ? null : new_data.docArray();
+		if(docs!=null){
+			kernel.comparisons=0;
+			int kept=kernel.and(answer_data,size,docs,docs.length,answer_data);
+			comparisons+=kernel.comparisons;
+			return kept;
+		}
+		
+		int i=0,kept=0;
+		PostingsIterator it=new_data.iterator();
+		int b=it.nextDoc();
+		while(i<size && b!=PostingsIterator.NO_MORE_DOCS){
+			comparisons++;
+			int a=answer_data[i];
+			if(a==b){
+				answer_data[kept++]=a;
+				i++;
+				b=it.nextDoc();
+			}else if(a<b){
+				i++;
+			}else{
+				b=it.nextDoc();
+			}
+		}
+		return kept;
+	}
+	
+	/** Internal method to compute the union of a document ID ordered postings list and
+	 * the sorted answer array, walking both with one pointer each.
+	 * @param new_data Enter new postings list here, ordered by document ID
+	 * @param answer_data Reference to answer Array, ordered by document ID
+	 * @param size Number of valid entries in the answer array
+	 * @param out Array the sorted union is written to, large enough to hold it
+	 * @return Number of valid entries in <i>out</i>, -1 if the postings list is missing */
+	private int merge_OR(Postings new_data,int[] answer_data,int size,int[] out){
+		if(new_data==null)
+			return -1;
+		
+		int[] docs=kernel==null ? null : new_data.docArray();
+		if(docs!=null){
+			kernel.comparisons=0;
+			int k=kernel.or(answer_data,size,docs,docs.length,out);
+			comparisons+=kernel.comparisons;
+			return k;
+		}
+		
+		int i=0,k=0;
+		PostingsIterator it=new_data.iterator();
+		int b=it.nextDoc();
+		while(i<size && b!=PostingsIterator.NO_MORE_DOCS){
+			comparisons++;
+			int a=answer_data[i];
+			if(a==b){
+				out[k++]=a;
+				i++;
+				b=it.nextDoc();
+			}else if(a<b){
+				out[k++]=a;
+				i++;
+			}else{
+				out[k++]=b;
+				b=it.nextDoc();
+			}
+		}
+		
+		//Copy whatever is left of the longer list
+		while(i<size)
+			out[k++]=answer_data[i++];
+		for(;b!=PostingsIterator.NO_MORE_DOCS;b=it.nextDoc())
+			out[k++]=b;
+		return k;
 	}
 	
 	/** Performs 'AND' retrieval between a set of queries 
@@ -383,34 +629,34 @@ public class Functions {
 	 * @return void
 	 */
 	public void DAAT_AND(String[] queries){
+		if(replay("docAtATimeQueryAnd",queries))
+			return;
 		
 		//Record start time		
-		long s_time=System.currentTimeMillis();
+		long s_time=System.nanoTime();
+		
 		long end_time; 								//to store the time when the process terminates
 		
+		//Planned queries stop at a missing term before creating any iterator, and 
+		//intersect starting from the shortest list
+		if(planned)
+			queries=new QueryPlan(queries,daat).terms();
+		
 		//Set comparison counter to zero
 		comparisons=0;
 		
 		//Store length of query set
 		int n=queries.length;
 		
-		//Create integer to display document count
-		int doc_count=0;
-		
-			
 		//Create ArrayList of postings lists
-		ArrayList<LinkedList<String>> postings=new ArrayList<LinkedList<String>>();
-		
-		//Create ArrayList of list iterators
-		ArrayList<ListIterator<String>> iter=new ArrayList<ListIterator<String>>();
+		ArrayList<Postings> postings=new ArrayList<Postings>();
 		
 		//Initialize boolean varibles
 		boolean isNull=false;			//Assuming that we have no null postings lists
-		boolean loop=true;				//To start the AND loop
-				
-	
+		
 		//Create answer field
-				LinkedList<String> answers=new LinkedList<String>();
+		int[] answers=new int[0];
+		int doc_count=0;
 		
 		//Populate the postings lists
 		for(int i=0;i<n;i++)
@@ -421,267 +667,476 @@ public class Functions {
 				postings.add(daat.get(queries[i]));
 			}
 		
-		if(!isNull){
-		//Assign List Iterators to the respective postings list
-		for(int i=0;i<n;i++)
-			iter.add(postings.get(i).listIterator());
-				
-		//Create workspace
-		String[] working=new String[25000];
+		//Dense lists stored as bitmaps are intersected word by word
+		BitmapPostings[] bitmaps=isNull ? null : bitmaps(postings);
+		int[][] docs=isNull || kernel==null ? null : arrays(postings);
+		if(bitmaps!=null){
+			answers=new int[postings.get(0).size()];
+			BitmapPostings.Merge m=new BitmapPostings.Merge();
+			doc_count=m.and(bitmaps,answers);
+			comparisons=m.comparisons;
+		}else if(docs!=null){
+			//Plain arrays are intersected pairwise by the kernel, starting from the shortest
+			Arrays.sort(docs,(x,y)->Integer.compare(x.length,y.length));
+			answers=docs[0].clone();
+			doc_count=answers.length;
+			kernel.comparisons=0;
+			for(int i=1;i<n && doc_count>0;i++)
+				doc_count=kernel.and(answers,doc_count,docs[i],docs[i].length,answers);
+			comparisons=kernel.comparisons;
+		}else if(!isNull){
+			//Walk the lists with iterators, skipping behind lists to the largest current document
+			IteratorMerge m=new IteratorMerge();
+			answers=new int[postings.get(0).size()];
+			doc_count=m.and(postings,answers);
+			comparisons=m.comparisons;
+		}
+		end_time=System.nanoTime();
+		record("docAtATimeQueryAnd",end_time-s_time,queries,doc_count,postings);
 		
+		outfile.write("\n"+doc_count+" documents are found");
+		outfile.write("\n"+comparisons+" comparisions are made");
+		writeTime(end_time-s_time);
 		
-		//Check if any of the postings lists are null
+		//Parse results as per the required output format
+		writeResult(!isNull,answers,doc_count);
+		store();
 		
-		//Initialize workspace with the first element of all the postings list
-		for(int i=0;i<n;i++)
-			if(iter.get(i).hasNext()){
-				working[i]=iter.get(i).next();
-			}else{
-				loop=false;
-			}
+	}
+	
+	/** Performs 'OR' retrieval between a set of queries 
+	 * using Document At A Time approach.
+	 * <br> The postings lists are merged through a min-heap of their current documents, 
+	 * so the union comes out in increasing order of Document ID.
+	 * @param queries A String array containing the query terms
+	 * @return void
+	 */
+	public void DAAT_OR(String[] queries){
+		if(replay("docAtATimeQueryOr",queries))
+			return;
 		
-		while(loop==true){
-			boolean isSame=true;
-			String temp=working[0];
-			int temp_idx=0;
-			
-			//Check if all values are the same
-			for(int i=1;i<n;i++){
-				comparisons++;
-				if(Integer.parseInt(working[i])!=Integer.parseInt(temp)){
-					isSame=false;
-					break;
-				}}
-			
-			if(isSame==true){//if same, add to answers list and increment pointer of all the postings lists
-				answers.add(temp);
-				
-				for(int i=0;i<n;i++){
-				 if(iter.get(i).hasNext()){
-					 working[i]=iter.get(i).next();
-				 }else{
-					 loop=false;
-				 }
-				}					
-			}else{
-			    //Calculate minimum value and its index
-				for(int i=1;i<n;i++){
-					comparisons++;
-					if(Integer.parseInt(working[i])<Integer.parseInt(temp)){
-						temp=working[i];
-						temp_idx=i;
-						}
-					}
-				if(iter.get(temp_idx).hasNext()){
-				working[temp_idx]=iter.get(temp_idx).next();
-				}else{
-					loop=false;
-				}				
+		//Record start time		
+		long s_time=System.nanoTime();
+		
+		long end_time; 								//to store the time when the process terminates
+		
+		//Planned queries merge the shortest lists first
+		if(planned)
+			queries=new QueryPlan(queries,daat).terms();
+		
+		int n=queries.length;
+		
+		//Set comparision counter
+		comparisons=0;
+		
+		//Look up the postings lists, missing terms are skipped
+		ArrayList<Postings> lists=new ArrayList<Postings>();
+		int capacity=0;
+		for(int i=0;i<n;i++){
+			Postings p=daat.get(queries[i]);
+			if(p!=null){
+				lists.add(p);
+				capacity+=p.size();
 			}
-			
-			
 		}
-		doc_count=answers.size();
+		int found=lists.size();
+		
+		//Create answer field
+		int[] answers=new int[capacity];
+		int doc_count=0;
+		
+		//Dense lists stored as bitmaps are united word by word
+		BitmapPostings[] bitmaps=bitmaps(lists);
+		if(bitmaps!=null){
+			BitmapPostings.Merge m=new BitmapPostings.Merge();
+			doc_count=m.or(bitmaps,answers);
+			comparisons=m.comparisons;
 		}else{
-		answers.clear();
-		answers.add("term not found");
-		doc_count=0;
+			//Merge the lists through a heap of their iterators
+			IteratorMerge m=new IteratorMerge();
+			doc_count=m.or(lists,answers,null);
+			comparisons=m.comparisons;
 		}
-		end_time=System.currentTimeMillis();
+		end_time=System.nanoTime();
+		record("docAtATimeQueryOr",end_time-s_time,queries,doc_count,lists);
 		
 		outfile.write("\n"+doc_count+" documents are found");
 		outfile.write("\n"+comparisons+" comparisions are made");
-		outfile.write("\n"+((end_time-s_time)*0.003)+" seconds are used"); 	//Converting milliseconds to seconds
+		writeTime(end_time-s_time);
 		
 		//Parse results as per the required output format
-		String result=answers.toString();
-		if(!result.equals("term not found"))
-			result=result.substring(1,result.length()-1);
-		
-		outfile.write("\nResult: "+result);	
+		writeResult(found!=0,answers,doc_count);
+		store();
 		
 	}
 	
-	/** Performs 'OR' retrieval between a set of queries 
-	 * using Document At A Time approach 
-	 * @param queries A String array containing the query terms
+	/** Evaluates a Boolean expression query, such as "(a OR b) AND NOT c", 
+	 * using Document At A Time approach.
+	 * <br> The expression is evaluated in a single pass over lazy iterators of the postings
+	 * lists, see {@link BooleanQuery}. Only the answer is materialized.
+	 * @param line The query line
 	 * @return void
 	 */
-	public void DAAT_OR(String[] queries){
+	public void booleanQuery(String line){
+		BooleanQuery q;
+		try{
+			q=BooleanQuery.parse(line);
+		}catch(IllegalArgumentException e){
+			outfile.write("\nInvalid query: "+e.getMessage());
+			return;
+		}
+		if(replay("booleanQuery",new String[]{q.toString()}))
+			return;
 		
-		int n=queries.length;
+		//Record start time		
+		long s_time=System.nanoTime();
+		long end_time; 								//to store the time when the process terminates
 		
-		//Create ArrayList of postings' list corresponding to the query terms 
-		ArrayList<LinkedList<String>> postings=new ArrayList<LinkedList<String>>();
+		//Set comparision counter
+		comparisons=0;
 		
-		//Create Hashtable to store answers
-		Hashtable<String,Integer> answers=new Hashtable<String,Integer>();
+		PostingsIterator it;
+		try{
+			it=q.iterator(daat);
+		}catch(IllegalArgumentException e){
+			outfile.write("\nInvalid query: "+e.getMessage());
+			store();
+			return;
+		}
 		
-		//Create working array
-		String[] working=new String[25000];
+		//Collect the answer, growing the array as needed
+		int[] answers=new int[16];
+		int doc_count=0;
+		for(int d=it.nextDoc();d!=PostingsIterator.NO_MORE_DOCS;d=it.nextDoc()){
+			if(doc_count==answers.length)
+				answers=Arrays.copyOf(answers,2*doc_count);
+			answers[doc_count++]=d;
+		}
+		comparisons=it.comparisons();
+		end_time=System.nanoTime();
+		if(metrics!=null){
+			List<String> terms=new ArrayList<String>();
+			q.terms(terms);
+			List<Postings> read=new ArrayList<Postings>();
+			for(String t:terms)
+				read.add(daat.get(t));
+			record("booleanQuery",end_time-s_time,new String[]{line},doc_count,read);
+		}
 		
-		//Count 'null' instances
-		int null_count=0;
+		outfile.write("\n"+doc_count+" documents are found");
+		outfile.write("\n"+comparisons+" comparisons are made");
+		writeTime(end_time-s_time);
+		writeResult(true,answers,doc_count);
+		store();
+	}
+	
+	/** Returns the top k documents of a query ranked by their BM25 score, 
+	 * using Document At A Time evaluation with WAND pruning.
+	 * <br> Every term carries an upper bound of its score. The cursors are kept sorted by their
+	 * current document, and the first document at which the bounds of the cursors up to it add
+	 * up to more than the score of the k-th best document so far is the pivot. Cursors before
+	 * the pivot skip to it, and only pivots all cursors agree on are scored. The result is the
+	 * same as scoring every document containing a query term.
+	 * <br> A term repeated in the query counts once.
+	 * @param queries A String array containing the query terms
+	 * @return void
+	 */
+	public void rankedQuery(String[] queries){
+		if(replay("rankedQuery:"+ranked_k,queries))
+			return;
 		
-		//Store index of null term
-		int null_index=0;
+		//Record start time		
+		long s_time=System.nanoTime();
 		
-		//Set comparision counter
 		comparisons=0;
 		
-		//Create ArrayList of iterators corresponding to the above postings lists
-		ArrayList<ListIterator<String>> iter=new ArrayList<ListIterator<String>>();
-		
-		//Populate the postings lists
-		for(int i=0;i<n;i++)
-			if(daat.get(queries[i])==null){
-				postings.add(i, new LinkedList<String>());
-				null_count++;
-			}else{
-				postings.add(i,daat.get(queries[i]));
-				null_index=i;
-			}
+		//Collect the distinct terms found in the index
+		ArrayList<String> terms=new ArrayList<String>();
+		for(String q:new LinkedHashSet<String>(Arrays.asList(queries)))
+			if(daat.get(q)!=null)
+				terms.add(q);
+		int n=terms.size();
+		
+		//Cursor of every term with its idf and its score bound
+		PostingsIterator[] iter=new PostingsIterator[n];
+		int[] working=new int[n];
+		double[] idf=new double[n];
+		double[] bound=new double[n];
+		for(int i=0;i<n;i++){
+			Postings p=daat.get(terms.get(i));
+			iter[i]=p.iterator();
+			working[i]=iter[i].nextDoc();
+			idf[i]=scorer.idf(p.size());
+			bound[i]=scorer.upperBound(terms.get(i),p);
+		}
 		
-		//Attach the iterators to the postings lists
+		//Cursor indices in increasing order of their current document
+		int[] order=new int[n];
 		for(int i=0;i<n;i++)
-			iter.add(postings.get(i).listIterator());
+			order[i]=i;
 		
-		//Initialize the workspace
-		for(int i=0;i<n;i++)
-			if(iter.get(i).hasNext()){
-				working[i]=iter.get(i).next();
-			}else{
-				working[i]=null;
-			}		
-		
-		if(null_count>(n-1)){
-			answers.put("term not found",0);			
-		}else if(null_count==(n-1)){
-			while(iter.get(null_index).hasNext()){
-				answers.put(iter.get(null_index).next(),0);				
-			}
-		}else{
-			boolean loop=true; //Set to false when loop's stop condition is activated
-			boolean isSame=true; //Lets start by assuming that all the values in the workspace are the same
-			
-				
-			while(loop==true){
-				
-				null_count=0;			//reset null pointer counter 
-				null_index=-1;			//reset null value index
-				//Calculate first non null index in workspace
-				int first_non_null_index=0;
-				
-				while(working[first_non_null_index]==null){
-					++first_non_null_index;
-				}
-				
-				//Check if all entries are the same
-				for(int i=first_non_null_index;i<n;i++){
+		BM25Scorer.TopDocs top=new BM25Scorer.TopDocs(ranked_k);
+		int scored=0;
+		while(true){
+			//Insertion sort, only the cursors moved in the last step are out of place
+			for(int i=1;i<n;i++){
+				int c=order[i],j=i-1;
+				for(;j>=0;j--){
 					comparisons++;
-					if((working[i]!=null)){
-						if(!working[i].equals(working[first_non_null_index])){
-							isSame=false;
-							break;
-						}
-					}
-				}
-				
-				if(isSame){
-					//Add value to the hashtable
-					if(answers.get(working[first_non_null_index])==null)
-						answers.put(working[first_non_null_index], 0);
-					
-					for(int i=0;i<n;i++){
-						if(iter.get(i).hasNext()){
-							working[i]=iter.get(i).next();
-						}else{
-							null_count++;
-							null_index=i;
-						}
-					}
-					if(null_count>=(n-1)){
-						loop=false;
-					}
-				}else{
-					int min=Integer.parseInt(working[first_non_null_index]);
-					int min_index=first_non_null_index;
-					
-					for(int i=first_non_null_index;i<n;i++)
-						if(Integer.parseInt(working[i])<min && working[i]!=null){
-							min=Integer.parseInt(working[i]);
-							min_index=i;
-						}
-					
-					//Add minimum value to answers hashtable if it isn't already there
-					if(answers.get(working[min_index])==null){
-						answers.put(working[min_index], 0);
-					}
-					
-					//Update min_index field in workspace
-					if(iter.get(min_index).hasNext()){
-						working[min_index]=iter.get(min_index).next();
-					}
-					
-					}		
-				
+					if(working[order[j]]<=working[c])
+						break;
+					order[j+1]=order[j];
 				}
-			
-			//Count number of 'null' entries in table
-			null_count=0;
-			for(int i=0;i<n;i++)
-				if(working[i]==null)
-					null_count++;
-					
-			//Exit condition for while loop
-			if(null_count>=(n-1))
-				loop=false;
-				
+				order[j+1]=c;
 			}
 			
-			if(null_count==(n-1)){
-				for(int i=0;i<n;i++){
-					if(working[i]!=null){
-						null_index=i;
-						break;
-					}
+			//Find the pivot, the first document that may beat the k-th best score
+			double threshold=top.threshold();
+			double sum=0;
+			int pivot=-1;
+			for(int i=0;i<n && working[order[i]]!=PostingsIterator.NO_MORE_DOCS;i++){
+				sum+=bound[order[i]];
+				if(sum>threshold){
+					pivot=i;
+					break;
 				}
-			while(iter.get(null_index).hasNext()){
-				answers.put(iter.get(null_index).next(), 0);
-			}			
+			}
+			if(pivot<0)
+				break;
+			int doc=working[order[pivot]];
 			
+			if(working[order[0]]==doc){
+				//All cursors up to the pivot are on its document, score it in term order
+				double score=0;
+				for(int t=0;t<n;t++)
+					if(working[t]==doc){
+						score+=scorer.score(idf[t],iter[t].tf(),doc);
+						working[t]=iter[t].nextDoc();
+					}
+				scored++;
+				top.offer(doc,score);
+			}else{
+				//Skip the cursor before the pivot with the highest bound to the pivot document
+				int skip=-1;
+				for(int i=0;i<pivot;i++)
+					if(working[order[i]]<doc && (skip<0 || bound[order[i]]>bound[skip]))
+						skip=order[i];
+				working[skip]=iter[skip].advance(doc);
+			}
 		}
 		
-		System.out.println("Result: "+answers.keys().toString());
+		//Add the comparisons made while skipping
+		for(int i=0;i<n;i++)
+			comparisons+=iter[i].comparisons();
+		long end_time=System.nanoTime();
+		if(metrics!=null){
+			List<Postings> read=new ArrayList<Postings>();
+			for(String t:terms)
+				read.add(daat.get(t));
+			record("rankedQuery",end_time-s_time,queries,top.size(),read);
+		}
 		
+		outfile.write("\n"+scored+" documents are scored");
+		outfile.write("\n"+comparisons+" comparisons are made");
+		writeTime(end_time-s_time);
+		outfile.write("\nResult: "+(n==0 ? "term not found" : top.toString()));
+		store();
+	}
+	
+	/** Performs 'AND' retrieval on every shard of the sharded index at once and merges
+	 * the answers. The result is the one of {@link #DAAT_AND(String[])}
+	 * @param queries A String array containing the query terms
+	 * @return void */
+	public void shardedAND(String[] queries){
+		sharded("shardedQueryAnd",queries,true);
+	}
+	
+	/** Performs 'OR' retrieval on every shard of the sharded index at once and merges
+	 * the answers. The result is the one of {@link #DAAT_OR(String[])}
+	 * @param queries A String array containing the query terms
+	 * @return void */
+	public void shardedOR(String[] queries){
+		sharded("shardedQueryOr",queries,false);
 	}
 	
-	/** Nested class to store token and its corresponding posting list size 
-	 * @author Alizishaan Khatri */
-	private class tok_freq implements Comparator<tok_freq>,Comparable<tok_freq>{
-		private String tok;
-		private int freq;
+	private void sharded(String op,String[] queries,boolean and){
+		if(replay(op,queries))
+			return;
+		long s_time=System.nanoTime();
 		
-		tok_freq(String tok1, int freq1){
-			this.tok=tok1;
-			this.freq=freq1;
+		ShardedIndex.Result r;
+		try{
+			r=and ? shards.and(queries) : shards.or(queries);
+		}catch(IOException e){
+			outfile.write("\nShards failed: "+e.getMessage());
+			store();
+			return;
 		}
-
-		/** Method to describe how to compare two tok_freq objects 
-		 * @param o1 <i>tok_freq</i> First object
-		 * @param o2 <i>tok_freq</i> Second object
-		 * @return Difference between the 'freq' fields of objects 1 & 2 */
-		@Override		
-		public int compare(tok_freq o1, tok_freq o2) {
-			return(o1.freq-o2.freq);			
+		long end_time=System.nanoTime();
+		
+		//A term is missing if no shard has a posting of it
+		int missing=0;
+		long postings=0;
+		for(int df:r.dfs){
+			if(df==0)
+				missing++;
+			postings+=df;
+		}
+		if(metrics!=null)
+			metrics.record(op,end_time-s_time,queries,r.comparisons,r.n,postings);
+		
+		outfile.write("\n"+r.n+" documents are found");
+		outfile.write("\n"+r.comparisons+" comparisons are made");
+		writeTime(end_time-s_time);
+		writeResult(and ? missing==0 : missing<queries.length,r.docs,r.n);
+		store();
+	}
+	
+	/** The given postings lists as bitmaps, if all of them are stored that way
+	 * @param postings Postings lists
+	 * @return Array of the lists, <i>null</i> if a list is not a bitmap or there are none */
+	private static BitmapPostings[] bitmaps(List<Postings> postings){
+		if(postings.isEmpty())
+			return null;
+		BitmapPostings[] b=new BitmapPostings[postings.size()];
+		for(int i=0;i<b.length;i++){
+			if(!(postings.get(i) instanceof BitmapPostings))
+				return null;
+			b[i]=(BitmapPostings)postings.get(i);
+		}
+		return b;
+	}
+	
+	/** The document ID arrays of the given postings lists, if all of them are plain arrays
+	 * @param postings Postings lists
+	 * @return Array of the document ID arrays, <i>null</i> if a list is stored in another form or there are none */
+	private static int[][] arrays(List<Postings> postings){
+		if(postings.isEmpty())
+			return null;
+		int[][] a=new int[postings.size()][];
+		for(int i=0;i<a.length;i++)
+			if((a[i]=postings.get(i).docArray())==null)
+				return null;
+		return a;
+	}
+	
+	
+	/** Record a query in the metrics, if they are on
+	 * @param op Name of the query method
+	 * @param nanos Time the query took
+	 * @param queries Query terms
+	 * @param results Number of documents found
+	 * @param lists Postings lists the query read, <i>null</i> entries for missing terms
+	 * @return void */
+	private void record(String op,long nanos,String[] queries,int results,List<Postings> lists){
+		if(metrics==null)
+			return;
+		long postings=0;
+		for(Postings p:lists)
+			if(p!=null)
+				postings+=p.size();
+		metrics.record(op,nanos,queries,comparisons,results,postings);
+	}
+	
+	/** Write the time used by a query
+	 * @param nanos Elapsed time in nanoseconds
+	 * @return void */
+	private void writeTime(long nanos){
+		if(capture!=null){
+			outfile.flush();
+			time_start=capture.getBuffer().length();
+		}
+		outfile.write("\n"+(nanos/1e9)+" seconds are used"); 	//Converting nanoseconds to seconds
+		if(capture!=null){
+			outfile.flush();
+			time_end=capture.getBuffer().length();
 		}
+	}
+	
+	/** Write the cached output of a query, or start capturing the output of the query if 
+	 * it is not cached. A captured query must end with {@link #store()}.
+	 * @param op Name of the query method
+	 * @param queries Query terms
+	 * @return <i>true</i> if the output was written from the cache */
+	private boolean replay(String op,String[] queries){
+		if(cache==null)
+			return false;
 		
-		/** Method to determine if sorting is in ascending or descending order. 
-		 * Change sign of return value in function definition to sort in Ascending order 
-		 * @param o str_tok Object for comparison */
-		@Override
-		public int compareTo(tok_freq o) {
-			return(o.freq-this.freq);
+		long s_time=System.nanoTime();
+		String key=QueryCache.key((sortedMerge ? "merge:" : "")+(planned ? "plan:" : "")+(kernel!=null ? "kernel:" : "")+op,queries);
+		QueryCache.Entry e=cache.get(key);
+		if(e==null){
+			//Write the query into a buffer so it can be cached
+			direct=outfile;
+			capture=new StringWriter();
+			outfile=new PrintWriter(capture);
+			capture_key=key;
+			time_start=time_end=-1;
+			return false;
+		}
+		
+		outfile.write(e.head);
+		if(e.tail!=null){
+			writeTime(System.nanoTime()-s_time);
+			outfile.write(e.tail);
+		}
+		if(metrics!=null)
+			metrics.recordCacheHit(op.indexOf(':')<0 ? op : op.substring(0,op.indexOf(':')),System.nanoTime()-s_time);
+		return true;
+	}
+	
+	/** Cache the output captured since {@link #replay(String,String[])} and write it to the output file
+	 * @param none
+	 * @return void */
+	private void store(){
+		if(capture==null)
+			return;
+		
+		outfile.flush();
+		String text=capture.toString();
+		outfile=direct;
+		capture=null;
+		direct=null;
+		
+		if(time_start<0)
+			cache.put(capture_key,new QueryCache.Entry(text,null));
+		else
+			cache.put(capture_key,new QueryCache.Entry(text.substring(0,time_start),text.substring(time_end)));
+		outfile.write(text);
+	}
+	
+	/** Write the result line of a query, streaming the document IDs into the output
+	 * @param found Set to false to write "term not found" instead of the documents
+	 * @param data Array of document IDs, not changed after the call
+	 * @param size Number of entries to write
+	 * @return void */
+	private void writeResult(boolean found,int[] data,int size){
+		outfile.write("\nResult: ");
+		if(!found){
+			outfile.write("term not found");
+			return;
+		}
+		try{
+			if(capture==null && results!=null)
+				results.writeDocs(data,size);
+			else
+				ResultWriter.writeDocs(outfile,data,size);
+		}catch(IOException e){
+			System.out.println("Failed to write output file: "+e.getMessage());
+		}
+	}
+	
+	/** Write the document IDs of a postings list in list order
+	 * @param list Postings list
+	 * @return void */
+	private void writeDocs(Postings list){
+		try{
+			if(capture==null && results!=null)
+				results.writeDocs(list);
+			else
+				outfile.write(list.toString());
+		}catch(IOException e){
+			System.out.println("Failed to write output file: "+e.getMessage());
 		}
 	}
 	
@@ -697,4 +1152,168 @@ public class Functions {
 			return false;
 		}
 	}
+	
+	/** Writes the output of an instance created with {@link #Functions(Functions,ResultWriter)}
+	 * @param out Deferred writer holding the output
+	 * @return <i>true</i> if data has been written successfully to file.<br> <i>false</i> in all other cases */
+	public boolean writeFile(ResultWriter out){
+		try{
+			if(capture==null && results!=null)
+				out.transferTo(results);
+			else
+				outfile.write(out.toString());
+			return true;
+		}catch(Exception e){
+			return false;
+		}
+	}
+	
+	/** Document At A Time evaluation of whole postings lists through their iterators.
+	 * <br> Used by DAAT_AND and DAAT_OR for lists that are not all bitmaps or plain arrays,
+	 * and by the shards of a {@link ShardedIndex} and the unions of a {@link WildcardIndex},
+	 * so every caller counts its comparisons the same way */
+	static class IteratorMerge {
+		/** Comparisons made by the merges of this instance */
+		int comparisons=0;
+		
+		/** Documents contained in all of the lists.
+		 * <br> Every list behind the largest current document skips to it with
+		 * {@link PostingsIterator#advance(int)}
+		 * @param postings Document ID ordered lists, at least one and none <i>null</i>
+		 * @param answers Array receiving the Document IDs, as large as the first list
+		 * @return Number of documents written to <i>answers</i> */
+		int and(List<Postings> postings,int[] answers){
+			int n=postings.size();
+			int doc_count=0;
+			boolean loop=true;				//To start the AND loop
+			
+			//Assign iterators to the respective postings list
+			PostingsIterator[] iter=new PostingsIterator[n];
+			for(int i=0;i<n;i++)
+				iter[i]=postings.get(i).iterator();
+			
+			//Initialize workspace with the first element of all the postings list
+			int[] working=new int[n];
+			for(int i=0;i<n;i++)
+				if((working[i]=iter[i].nextDoc())==PostingsIterator.NO_MORE_DOCS)
+					loop=false;
+			
+			while(loop){
+				boolean isSame=true;
+				int temp=working[0];
+				
+				//Check if all values are the same
+				for(int i=1;i<n;i++){
+					comparisons++;
+					if(working[i]!=temp){
+						isSame=false;
+						break;
+					}
+				}
+				
+				if(isSame){//if same, add to answers list and increment pointer of all the postings lists
+					answers[doc_count++]=temp;
+					for(int i=0;i<n;i++)
+						if((working[i]=iter[i].nextDoc())==PostingsIterator.NO_MORE_DOCS)
+							loop=false;
+				}else{
+					//Calculate maximum value, no document before it can be in the answer
+					for(int i=1;i<n;i++){
+						comparisons++;
+						if(working[i]>temp)
+							temp=working[i];
+					}
+					//Skip every list that is behind to its first document at or after the maximum
+					for(int i=0;i<n && loop;i++)
+						if(working[i]<temp && (working[i]=iter[i].advance(temp))==PostingsIterator.NO_MORE_DOCS)
+							loop=false;
+				}
+			}
+			
+			//Add the comparisons made while skipping
+			for(int i=0;i<n;i++)
+				comparisons+=iter[i].comparisons();
+			return doc_count;
+		}
+		
+		/** Documents contained in any of the lists, merged through a min-heap of the list heads
+		 * @param lists Document ID ordered lists, none <i>null</i>
+		 * @param answers Array receiving the Document IDs, as large as all lists together
+		 * @param tfs Array as large as <i>answers</i> receiving the sum of the term frequencies
+		 * of every document over the lists, <i>null</i> when they are not needed
+		 * @return Number of documents written to <i>answers</i> */
+		int or(List<Postings> lists,int[] answers,int[] tfs){
+			int found=lists.size();
+			int doc_count=0;
+			
+			//Attach iterators to the postings lists
+			PostingsIterator[] iter=new PostingsIterator[found];
+			int[] working=new int[found];
+			for(int i=0;i<found;i++){
+				iter[i]=lists.get(i).iterator();
+				working[i]=iter[i].nextDoc();
+			}
+			
+			//Heap of iterator indices, ordered by their current document
+			int[] heap=new int[found];
+			int heap_size=0;
+			for(int i=0;i<found;i++)
+				if(working[i]!=PostingsIterator.NO_MORE_DOCS)
+					heap[heap_size++]=i;
+			for(int i=heap_size/2-1;i>=0;i--)
+				siftDown(heap,heap_size,working,i);
+			
+			while(heap_size>0){
+				int top=heap[0];
+				int doc=working[top];
+				
+				//Copies of a document come out of the heap one after another
+				if(doc_count==0 || answers[doc_count-1]!=doc){
+					answers[doc_count]=doc;
+					if(tfs!=null)
+						tfs[doc_count]=0;
+					doc_count++;
+				}
+				if(tfs!=null)
+					tfs[doc_count-1]+=iter[top].tf();
+				comparisons++;
+				
+				//Move the list forward and restore the heap
+				working[top]=iter[top].nextDoc();
+				if(working[top]==PostingsIterator.NO_MORE_DOCS)
+					heap[0]=heap[--heap_size];
+				siftDown(heap,heap_size,working,0);
+			}
+			return doc_count;
+		}
+		
+		/** Internal method to move a heap entry down until both of its children are larger
+		 * @param heap Heap of iterator indices
+		 * @param size Number of entries in the heap
+		 * @param working Current document of every iterator, the heap key
+		 * @param i Position of the entry to move */
+		private void siftDown(int[] heap,int size,int[] working,int i){
+			int entry=heap[i];
+			int key=working[entry];
+			while(true){
+				int child=2*i+1;
+				if(child>=size)
+					break;
+				
+				//Pick the smaller child
+				if(child+1<size){
+					comparisons++;
+					if(working[heap[child+1]]<working[heap[child]])
+						child++;
+				}
+				
+				comparisons++;
+				if(working[heap[child]]>=key)
+					break;
+				heap[i]=heap[child];
+				i=child;
+			}
+			heap[i]=entry;
+		}
+	}
 }
@@ -0,0 +1,381 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/** Binary on-disk form of the index, read through memory mapped files.
+ * <br> A segment is written once from the Hashtables built by {@link BuildIndex}
+ * and can then be opened in constant time, no matter how large it is.
+ * Postings are read straight from the mapped file and never copied onto the heap.
+ * <br><br> File layout (all numbers big endian):
+ * <br> 1. Header: magic, version, number of terms, padding, offset of the term table
+ * <br> 2. Term table: for every term, in unsigned UTF-8 byte order, the offset of its
+ * name and the offset of its postings
+ * <br> 3. Names: length followed by the UTF-8 bytes of the term
+ * <br> 4. Postings: size n followed by DAAT doc IDs, DAAT term frequencies,
+ * TAAT doc IDs and TAAT term frequencies, n ints each
+ * <br><br> No entry crosses a 1 GB boundary, so the file can be mapped in 1 GB windows. */
+public class IndexSegment {
+	
+	private static final int MAGIC=0x42535331;			//"BSS1"
+	private static final int VERSION=1;
+	private static final int HEADER_BYTES=24;
+	private static final int TABLE_ENTRY_BYTES=16;
+	
+	/** Size of one mapped window */
+	private static final int WINDOW_BITS=30;
+	private static final long WINDOW=1L<<WINDOW_BITS;
+	
+	/** Mapped windows of the file, window i starts at byte i*WINDOW */
+	private MappedByteBuffer[] windows;
+	
+	/** Number of terms in the segment */
+	private int terms;
+	
+	/** Offset of the term table */
+	private long table;
+	
+	/** Views of the segment ordered by term frequency and by Document ID */
+	private Map<String,Postings> taat,daat;
+	
+	/** Map the given segment file. Only the header is read.
+	 * @param path Path of a segment written by {@link #write(Map,Map,String)}
+	 * @throws IOException If the file can not be mapped or is not a segment */
+	IndexSegment(String path) throws IOException{
+		RandomAccessFile file=new RandomAccessFile(path,"r");
+		try{
+			FileChannel channel=file.getChannel();
+			long length=channel.size();
+			
+			//Map the file window by window, the mappings stay valid after the channel is closed
+			windows=new MappedByteBuffer[(int)((length+WINDOW-1)>>>WINDOW_BITS)];
+			for(int i=0;i<windows.length;i++){
+				long start=(long)i<<WINDOW_BITS;
+				windows[i]=channel.map(FileChannel.MapMode.READ_ONLY,start,Math.min(WINDOW,length-start));
+			}
+		}finally{
+			file.close();
+		}
+		
+		if(windows.length==0 || getInt(0)!=MAGIC)
+			throw new IOException(path+" is not an index segment");
+		if(getInt(4)!=VERSION)
+			throw new IOException(path+" has unsupported segment version "+getInt(4));
+		
+		terms=getInt(8);
+		table=getLong(16);
+		
+		taat=new View(false);
+		daat=new View(true);
+	}
+	
+	/** Get the segment ordered by term frequency (Term At A Time)
+	 * @return Read only Map<String,Postings>
+	 * @param none */
+	public Map<String,Postings> getTAAT(){
+		return this.taat;
+	}
+	
+	/** Get the segment ordered by Document ID (Document At A Time)
+	 * @return Read only Map<String,Postings>
+	 * @param none */
+	public Map<String,Postings> getDAAT(){
+		return this.daat;
+	}
+	
+	/** Write both indices to a segment file
+	 * @param taat Index ordered by decreasing term frequencies
+	 * @param daat Index ordered by increasing document IDs, with the same terms as <i>taat</i>
+	 * @param path Path of the segment file to create
+	 * @throws IOException If the file can not be written */
+	public static void write(Map<String,Postings> taat,Map<String,Postings> daat,String path) throws IOException{
+		
+		//Sort the terms in unsigned byte order of their UTF-8 form, which is the order used for lookups
+		byte[][] names=new byte[daat.size()][];
+		int n=0;
+		for(String term:daat.keySet())
+			names[n++]=term.getBytes(StandardCharsets.UTF_8);
+		Arrays.sort(names,new Comparator<byte[]>(){
+			@Override
+			public int compare(byte[] a,byte[] b){
+				return compareBytes(a,b);
+			}
+		});
+		
+		//First pass: lay out names and postings so that no entry crosses a window boundary
+		long[] name_pos=new long[n];
+		long[] post_pos=new long[n];
+		long table=HEADER_BYTES;
+		long pos=table+(long)n*TABLE_ENTRY_BYTES;
+		for(int i=0;i<n;i++){
+			name_pos[i]=pos=place(pos,4+names[i].length);
+			pos+=4+names[i].length;
+		}
+		pos=(pos+3)&~3L;
+		for(int i=0;i<n;i++){
+			long bytes=4+16L*daat.get(new String(names[i],StandardCharsets.UTF_8)).size();
+			if(bytes>WINDOW)
+				throw new IOException("Postings list of a term is larger than "+WINDOW+" bytes");
+			post_pos[i]=pos=place(pos,bytes);
+			pos+=bytes;
+		}
+		
+		//Second pass: write everything, padding up to the planned offsets
+		CountingOutput counter=new CountingOutput(new BufferedOutputStream(new FileOutputStream(path),1<<16));
+		DataOutputStream out=new DataOutputStream(counter);
+		try{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(n);
+			out.writeInt(0);
+			out.writeLong(table);
+			for(int i=0;i<n;i++){
+				out.writeLong(name_pos[i]);
+				out.writeLong(post_pos[i]);
+			}
+			for(int i=0;i<n;i++){
+				counter.padTo(name_pos[i]);
+				out.writeInt(names[i].length);
+				out.write(names[i]);
+			}
+			for(int i=0;i<n;i++){
+				String term=new String(names[i],StandardCharsets.UTF_8);
+				Postings d=daat.get(term);
+				Postings t=taat.get(term);
+				counter.padTo(post_pos[i]);
+				out.writeInt(d.size());
+				PostingsIterator it=d.iterator();
+				while(it.nextDoc()!=PostingsIterator.NO_MORE_DOCS)
+					out.writeInt(it.doc());
+				it=d.iterator();
+				while(it.nextDoc()!=PostingsIterator.NO_MORE_DOCS)
+					out.writeInt(it.tf());
+				for(int j=0;j<t.size();j++)
+					out.writeInt(t.doc(j));
+				for(int j=0;j<t.size();j++)
+					out.writeInt(t.tf(j));
+			}
+		}finally{
+			out.close();
+		}
+	}
+	
+	/** Offline compile step: build the index from a postings file and write it as a segment.
+	 * <br> Usage: java IndexSegment &lt;term_file&gt; &lt;segment_file&gt; [threads] */
+	public static void main(String[] ip) throws IOException{
+		if(ip.length<2){
+			System.out.println("\n Correct usage is: \n java IndexSegment <term_file> <segment_file> [threads]");
+			System.exit(-1);
+		}
+		
+		BuildIndex b=new BuildIndex(ip[0]);
+		if(!b.construct(ip.length>2 ? Integer.parseInt(ip[2]) : 1)){
+			System.out.println("Failed to construct index");
+			System.exit(-1);
+		}
+		write(b.getTAAT(),b.getDAAT(),ip[1]);
+	}
+	
+	/** Find a term with a binary search over the term table
+	 * @param term Term to look up
+	 * @return Offset of the postings of the term, -1 if it is not in the segment */
+	private long find(String term){
+		byte[] key=term.getBytes(StandardCharsets.UTF_8);
+		int lo=0,hi=terms-1;
+		while(lo<=hi){
+			int mid=(lo+hi)>>>1;
+			int c=compareName(getLong(table+(long)mid*TABLE_ENTRY_BYTES),key);
+			if(c<0)
+				lo=mid+1;
+			else if(c>0)
+				hi=mid-1;
+			else
+				return getLong(table+(long)mid*TABLE_ENTRY_BYTES+8);
+		}
+		return -1;
+	}
+	
+	/** Compare the stored name at the given offset with a UTF-8 encoded term */
+	private int compareName(long pos,byte[] key){
+		int len=getInt(pos);
+		ByteBuffer w=windows[(int)(pos>>>WINDOW_BITS)];
+		int at=(int)(pos&(WINDOW-1))+4;
+		for(int i=0;i<len && i<key.length;i++){
+			int c=(w.get(at+i)&0xff)-(key[i]&0xff);
+			if(c!=0)
+				return c;
+		}
+		return len-key.length;
+	}
+	
+	/** Read the name of the term with the given position in the term table */
+	private String name(int ord){
+		long pos=getLong(table+(long)ord*TABLE_ENTRY_BYTES);
+		byte[] b=new byte[getInt(pos)];
+		ByteBuffer w=windows[(int)(pos>>>WINDOW_BITS)].duplicate();
+		w.position((int)(pos&(WINDOW-1))+4);
+		w.get(b);
+		return new String(b,StandardCharsets.UTF_8);
+	}
+	
+	/** Create a view of the postings stored at the given offset
+	 * @param pos Offset of the postings block
+	 * @param byDoc <i>true</i> for the DAAT order, <i>false</i> for the TAAT order */
+	private Postings postings(long pos,boolean byDoc){
+		int n=getInt(pos);
+		ByteBuffer w=windows[(int)(pos>>>WINDOW_BITS)].duplicate();
+		int start=(int)(pos&(WINDOW-1))+4+(byDoc ? 0 : 8*n);
+		w.position(start);
+		w.limit(start+8*n);
+		return new MappedPostings(w.slice().asIntBuffer(),n);
+	}
+	
+	private int getInt(long pos){
+		return windows[(int)(pos>>>WINDOW_BITS)].getInt((int)(pos&(WINDOW-1)));
+	}
+	
+	private long getLong(long pos){
+		return windows[(int)(pos>>>WINDOW_BITS)].getLong((int)(pos&(WINDOW-1)));
+	}
+	
+	/** Move an entry to the start of the next window if it would cross a window boundary */
+	private static long place(long pos,long bytes){
+		if((pos&(WINDOW-1))+bytes>WINDOW)
+			return (pos|(WINDOW-1))+1;
+		return pos;
+	}
+	
+	/** Unsigned lexicographic comparison of two byte arrays */
+	private static int compareBytes(byte[] a,byte[] b){
+		for(int i=0;i<a.length && i<b.length;i++){
+			int c=(a[i]&0xff)-(b[i]&0xff);
+			if(c!=0)
+				return c;
+		}
+		return a.length-b.length;
+	}
+	
+	/** Postings list backed by a region of the mapped file.
+	 * The first n ints are the doc IDs, the next n ints the term frequencies */
+	private static class MappedPostings extends Postings {
+		private IntBuffer data;
+		private int n;
+		
+		MappedPostings(IntBuffer data,int n){
+			this.data=data;
+			this.n=n;
+		}
+		
+		@Override
+		public int size(){
+			return n;
+		}
+		
+		@Override
+		public int doc(int i){
+			if(i>=n)
+				throw new IndexOutOfBoundsException("Index: "+i+", Size: "+n);
+			return data.get(i);
+		}
+		
+		@Override
+		public int tf(int i){
+			if(i>=n)
+				throw new IndexOutOfBoundsException("Index: "+i+", Size: "+n);
+			return data.get(n+i);
+		}
+		
+		@Override
+		public long memoryBytes(){
+			return 24+48;								//This object and its IntBuffer, the postings stay in the file
+		}
+	}
+	
+	/** Read only Map over one of the two orderings of the segment */
+	private class View extends AbstractMap<String,Postings> {
+		private boolean byDoc;
+		
+		View(boolean byDoc){
+			this.byDoc=byDoc;
+		}
+		
+		@Override
+		public Postings get(Object key){
+			if(!(key instanceof String))
+				return null;
+			long pos=find((String)key);
+			return pos<0 ? null : postings(pos,byDoc);
+		}
+		
+		@Override
+		public boolean containsKey(Object key){
+			return key instanceof String && find((String)key)>=0;
+		}
+		
+		@Override
+		public int size(){
+			return terms;
+		}
+		
+		@Override
+		public Set<Map.Entry<String,Postings>> entrySet(){
+			return new AbstractSet<Map.Entry<String,Postings>>(){
+				@Override
+				public int size(){
+					return terms;
+				}
+				
+				@Override
+				public Iterator<Map.Entry<String,Postings>> iterator(){
+					return new Iterator<Map.Entry<String,Postings>>(){
+						private int ord=0;
+						
+						@Override
+						public boolean hasNext(){
+							return ord<terms;
+						}
+						
+						@Override
+						public Map.Entry<String,Postings> next(){
+							if(ord>=terms)
+								throw new NoSuchElementException();
+							long pos=getLong(table+(long)ord*TABLE_ENTRY_BYTES+8);
+							String term=name(ord++);
+							return new AbstractMap.SimpleImmutableEntry<String,Postings>(term,postings(pos,byDoc));
+						}
+					};
+				}
+			};
+		}
+	}
+	
+	/** Output stream that keeps track of the number of bytes written, to pad up to planned offsets */
+	private static class CountingOutput extends FilterOutputStream {
+		private long count=0;
+		
+		CountingOutput(OutputStream out){
+			super(out);
+		}
+		
+		@Override
+		public void write(int b) throws IOException{
+			out.write(b);
+			count++;
+		}
+		
+		@Override
+		public void write(byte[] b,int off,int len) throws IOException{
+			out.write(b,off,len);
+			count+=len;
+		}
+		
+		/** Write zeros up to the given offset */
+		void padTo(long pos) throws IOException{
+			if(count>pos)
+				throw new IOException("Segment layout mismatch at "+count);
+			while(count<pos)
+				write(0);
+		}
+	}
+}
@@ -0,0 +1,142 @@
+/** Intersection and union of two sorted arrays of document IDs.
+ * <br> The scalar kernel walks both arrays with one pointer each. A kernel using the
+ * Java Vector API is kept in <i>vector/VectorIntersection.java</i>, outside of the
+ * default sources, because the <i>jdk.incubator.vector</i> module has to be added when
+ * it is compiled and run:
+ * <pre>
+ * javac -d . *.java
+ * javac --add-modules jdk.incubator.vector -cp . -d . vector/VectorIntersection.java
+ * java --add-modules jdk.incubator.vector CSE535Assignment ... --simd
+ * </pre>
+ * {@link #create()} returns the vector kernel when it can be loaded and the scalar one
+ * otherwise. An instance counts its comparisons and must not be shared by threads. */
+public abstract class IntersectionKernel {
+
+	/** Class name of the vector kernel */
+	private static final String VECTOR_KERNEL="VectorIntersection";
+
+	/** Number of comparisons made, a vector compare counts as one */
+	public int comparisons=0;
+
+	/** Intersect two arrays sorted by increasing document ID.
+	 * <i>out</i> may be the same array as <i>a</i>, the result is then compacted to its front
+	 * @param a First array
+	 * @param na Number of valid entries in <i>a</i>
+	 * @param b Second array
+	 * @param nb Number of valid entries in <i>b</i>
+	 * @param out Array the sorted intersection is written to, at least min(na,nb) long
+	 * @return Number of entries written to <i>out</i> */
+	public abstract int and(int[] a,int na,int[] b,int nb,int[] out);
+
+	/** Union of two arrays sorted by increasing document ID
+	 * @param a First array
+	 * @param na Number of valid entries in <i>a</i>
+	 * @param b Second array
+	 * @param nb Number of valid entries in <i>b</i>
+	 * @param out Array the sorted union is written to, at least na+nb long. Must not be <i>a</i> or <i>b</i>
+	 * @return Number of entries written to <i>out</i> */
+	public abstract int or(int[] a,int na,int[] b,int nb,int[] out);
+
+	/** @return Short name of the kernel, for reports */
+	public abstract String name();
+
+	/** New kernel of the same kind, with its own comparison counter
+	 * @param none
+	 * @return Kernel */
+	public IntersectionKernel fork(){
+		try{
+			return getClass().getDeclaredConstructor().newInstance();
+		}catch(ReflectiveOperationException e){
+			return new Scalar();
+		}
+	}
+
+	/** Best kernel available in this JVM
+	 * @param none
+	 * @return The vector kernel if its class and module can be loaded, the scalar kernel otherwise */
+	public static IntersectionKernel create(){
+		IntersectionKernel v=vector();
+		return v!=null ? v : new Scalar();
+	}
+
+	/** The vector kernel
+	 * @param none
+	 * @return Kernel, <i>null</i> if the class is not compiled or <i>jdk.incubator.vector</i> is not added */
+	public static IntersectionKernel vector(){
+		try{
+			return (IntersectionKernel)Class.forName(VECTOR_KERNEL).getDeclaredConstructor().newInstance();
+		}catch(ReflectiveOperationException | LinkageError e){
+			return null;
+		}
+	}
+
+	/** Kernel comparing one pair of document IDs at a time */
+	public static class Scalar extends IntersectionKernel {
+
+		@Override
+		public int and(int[] a,int na,int[] b,int nb,int[] out){
+			return and(a,0,na,b,0,nb,out,0,this);
+		}
+
+		@Override
+		public int or(int[] a,int na,int[] b,int nb,int[] out){
+			return or(a,0,na,b,0,nb,out,0,this);
+		}
+
+		@Override
+		public String name(){
+			return "scalar";
+		}
+
+		/** Intersect a[i..na) and b[j..nb), appending to out from position k.
+		 * Also finishes the tails left by the vector kernel
+		 * @return New number of entries in <i>out</i> */
+		static int and(int[] a,int i,int na,int[] b,int j,int nb,int[] out,int k,IntersectionKernel counter){
+			int c=0;
+			while(i<na && j<nb){
+				c++;
+				int x=a[i],y=b[j];
+				if(x==y){
+					out[k++]=x;
+					i++;
+					j++;
+				}else if(x<y){
+					i++;
+				}else{
+					j++;
+				}
+			}
+			counter.comparisons+=c;
+			return k;
+		}
+
+		/** Union of a[i..na) and b[j..nb), appending to out from position k.
+		 * Also finishes the tails left by the vector kernel
+		 * @return New number of entries in <i>out</i> */
+		static int or(int[] a,int i,int na,int[] b,int j,int nb,int[] out,int k,IntersectionKernel counter){
+			int c=0;
+			while(i<na && j<nb){
+				c++;
+				int x=a[i],y=b[j];
+				if(x==y){
+					out[k++]=x;
+					i++;
+					j++;
+				}else if(x<y){
+					out[k++]=x;
+					i++;
+				}else{
+					out[k++]=y;
+					j++;
+				}
+			}
+			counter.comparisons+=c;
+
+			//Copy whatever is left of the longer array
+			System.arraycopy(a,i,out,k,na-i);
+			k+=na-i;
+			System.arraycopy(b,j,out,k,nb-j);
+			return k+nb-j;
+		}
+	}
+}
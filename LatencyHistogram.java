@@ -0,0 +1,78 @@
+import java.util.concurrent.atomic.*;
+
+/** Histogram of latencies in nanoseconds with a bounded relative error, in the style of HdrHistogram.
+ * <br> Values below 2^(SUB_BITS+1) have a bucket each. Above that every power of two is split
+ * into 2^SUB_BITS buckets of equal width, so a value is known to within 1/2^SUB_BITS of itself
+ * (about 3%) over the whole range of a long, in a fixed array of about two thousand counters.
+ * <br> Recording is lock free and can be done by several threads at once. */
+public class LatencyHistogram {
+	
+	/** Buckets per power of two are 2^SUB_BITS */
+	private static final int SUB_BITS=5;
+	private static final int SUB=1<<SUB_BITS;
+	
+	private final AtomicLongArray counts=new AtomicLongArray((64-SUB_BITS)*SUB);
+	private final LongAdder count=new LongAdder();
+	private final LongAdder sum=new LongAdder();
+	private final LongAccumulator max=new LongAccumulator(Math::max,0);
+	
+	/** Add a value
+	 * @param nanos Latency in nanoseconds, negative values count as 0
+	 * @return void */
+	public void record(long nanos){
+		long v=Math.max(nanos,0);
+		counts.incrementAndGet(index(v));
+		count.increment();
+		sum.add(v);
+		max.accumulate(v);
+	}
+	
+	/** Bucket of a value */
+	private static int index(long v){
+		if(v<2*SUB)
+			return (int)v;
+		int shift=63-Long.numberOfLeadingZeros(v)-SUB_BITS;
+		return shift*SUB+(int)(v>>>shift);
+	}
+	
+	/** Highest value that falls into a bucket */
+	private static long highest(int index){
+		if(index<2*SUB)
+			return index;
+		int shift=index/SUB-1;
+		long lowest=(long)(index%SUB+SUB)<<shift;
+		return lowest+(1L<<shift)-1;
+	}
+	
+	/** @return Number of recorded values */
+	public long count(){
+		return count.sum();
+	}
+	
+	/** @return Sum of the recorded values */
+	public long sum(){
+		return sum.sum();
+	}
+	
+	/** @return Largest recorded value, exact */
+	public long max(){
+		return max.get();
+	}
+	
+	/** Value at a percentile, reported as the highest value of its bucket like HdrHistogram does
+	 * @param p Percentile between 0 and 100
+	 * @return Value, 0 if nothing is recorded */
+	public long percentile(double p){
+		long total=count();
+		if(total==0)
+			return 0;
+		long rank=Math.max(1,(long)Math.ceil(p/100*total));
+		long seen=0;
+		for(int i=0;i<counts.length();i++){
+			seen+=counts.get(i);
+			if(seen>=rank)
+				return Math.min(highest(i),max());
+		}
+		return max();
+	}
+}
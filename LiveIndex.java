@@ -0,0 +1,492 @@
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Index that accepts new postings while it is being queried.
+ * <br> New (term, document, term frequency) postings go to an in-memory write buffer. A flush
+ * turns the buffer into an immutable segment holding both orderings of every list, the way
+ * {@link BuildIndex} does for a whole file. Flushes happen when the buffer is full, on
+ * {@link #flush()}, and every refresh interval on a background thread, so new postings become
+ * searchable within that interval without rebuilding the index.
+ * <br> The Hashtables returned by {@link #getTAAT()} and {@link #getDAAT()} read across all
+ * segments. A term found in several segments is merged into one list on first access and
+ * kept until the segments change. Every lookup sees the segments current at that time.
+ * <br> A tiered merge policy keeps the number of segments bounded: segments are grouped by
+ * size in tiers a factor of {@link #MERGE_FACTOR} apart, and as soon as a tier holds
+ * {@link #MERGE_FACTOR} segments they are merged into one on a background thread.
+ * <br> Postings of a term for a document it already has add to its term frequency. */
+public class LiveIndex {
+	
+	/** Number of segments of one tier that are merged together */
+	public static final int MERGE_FACTOR=4;
+	
+	/** Segments up to this many postings are in the lowest tier */
+	private static final long TIER_BASE=1<<12;
+	
+	/** Number of buffered postings that triggers a flush */
+	private static final int MAX_BUFFERED=1<<16;
+	
+	/** Immutable part of the index */
+	private static class Segment {
+		final Map<String,Postings> taat,daat;
+		final long postings;
+		
+		Segment(Map<String,Postings> taat,Map<String,Postings> daat){
+			this.taat=taat;
+			this.daat=daat;
+			long n=0;
+			for(Postings p:daat.values())
+				n+=p.size();
+			this.postings=n;
+		}
+		
+		/** Tier of the merge policy, 0 for the smallest segments */
+		int tier(){
+			int t=0;
+			for(long size=TIER_BASE;size<postings;size*=MERGE_FACTOR)
+				t++;
+			return t;
+		}
+	}
+	
+	/** Segments visible to queries at one point in time, with the lists merged across them */
+	private static class Snapshot {
+		final List<Segment> segments;
+		final ConcurrentHashMap<String,SortArr.Sorted> merged=new ConcurrentHashMap<String,SortArr.Sorted>();
+		private volatile Set<String> terms;
+		
+		Snapshot(List<Segment> segments){
+			this.segments=Collections.unmodifiableList(new ArrayList<Segment>(segments));
+		}
+		
+		/** Segments after a flush or a merge, keeping the merged lists of the previous
+		 * segments that are still valid: a merge of segments does not change any list, a
+		 * flushed segment only changes the lists of its own terms
+		 * @param previous Snapshot replaced by this one
+		 * @param added Segment added by a flush, <i>null</i> after a merge */
+		Snapshot(List<Segment> segments,Snapshot previous,Segment added){
+			this(segments);
+			for(Map.Entry<String,SortArr.Sorted> e:previous.merged.entrySet()){
+				String t=e.getKey();
+				if(added!=null && added.daat.containsKey(t))
+					continue;
+				int found=0;
+				for(Segment s:this.segments)
+					if(s.daat.containsKey(t))
+						found++;
+				if(found>1)
+					merged.put(t,e.getValue());
+			}
+		}
+		
+		/** List of a term in the given order, <i>null</i> if no segment has the term */
+		Postings get(Object term,boolean byDoc){
+			Segment only=null;
+			Postings first=null;
+			int found=0;
+			for(Segment s:segments){
+				Postings p=s.daat.get(term);
+				if(p!=null && found++==0){
+					only=s;
+					first=p;
+				}
+			}
+			if(found==0)
+				return null;
+			if(found==1)
+				return byDoc ? first : only.taat.get(term);
+			
+			SortArr.Sorted m=merged.get(term);
+			if(m==null){
+				List<Postings> lists=new ArrayList<Postings>(found);
+				for(Segment s:segments){
+					Postings p=s.daat.get(term);
+					if(p!=null)
+						lists.add(p);
+				}
+				m=mergeLists(lists);
+				merged.putIfAbsent((String)term,m);
+			}
+			return byDoc ? m.asc : m.dsc;
+		}
+		
+		/** All terms of all segments, in segment order */
+		Set<String> terms(){
+			Set<String> t=terms;
+			if(t==null){
+				t=new LinkedHashSet<String>();
+				for(Segment s:segments)
+					t.addAll(s.daat.keySet());
+				terms=t=Collections.unmodifiableSet(t);
+			}
+			return t;
+		}
+	}
+	
+	/** Postings of one term waiting in the write buffer, in arrival order */
+	private static class Buffered {
+		int[] docs=new int[4];
+		int[] tfs=new int[4];
+		int size=0;
+	}
+	
+	/** Write buffer */
+	private HashMap<String,Buffered> buffer=new HashMap<String,Buffered>();
+	private int buffered=0;
+	
+	/** Current segments. Changed under the lock of this object, read without it */
+	private volatile Snapshot current;
+	
+	private ExecutorService merger;
+	private ScheduledExecutorService refresher;
+	private volatile int merges=0;
+	
+	/** Start from an existing index, which becomes the first segment. The maps are not copied
+	 * and must not be changed afterwards
+	 * @param taat Index ordered by decreasing term frequencies
+	 * @param daat Index ordered by increasing document IDs
+	 * @param refresh_ms Interval in milliseconds at which buffered postings are flushed, 0 to flush only when the buffer is full or on request */
+	LiveIndex(Map<String,Postings> taat,Map<String,Postings> daat,long refresh_ms){
+		List<Segment> s=new ArrayList<Segment>();
+		if(!daat.isEmpty())
+			s.add(new Segment(taat,daat));
+		current=new Snapshot(s);
+		
+		merger=Executors.newSingleThreadExecutor(daemon("index-merger"));
+		if(refresh_ms>0){
+			refresher=Executors.newSingleThreadScheduledExecutor(daemon("index-refresh"));
+			refresher.scheduleWithFixedDelay(new Runnable(){
+				@Override
+				public void run(){
+					flush();
+				}
+			},refresh_ms,refresh_ms,TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/** Add one posting
+	 * @param term Term
+	 * @param doc Document ID
+	 * @param tf Frequency of the term in the document
+	 * @return void */
+	public void add(String term,int doc,int tf){
+		boolean full;
+		synchronized(this){
+			Buffered b=buffer.get(term);
+			if(b==null)
+				buffer.put(term,b=new Buffered());
+			if(b.size==b.docs.length){
+				b.docs=Arrays.copyOf(b.docs,2*b.size);
+				b.tfs=Arrays.copyOf(b.tfs,2*b.size);
+			}
+			b.docs[b.size]=doc;
+			b.tfs[b.size++]=tf;
+			full=++buffered>=MAX_BUFFERED;
+		}
+		if(full)
+			flush();
+	}
+	
+	/** Add all postings of a list
+	 * @param term Term
+	 * @param p Postings of the term
+	 * @return void */
+	public void add(String term,Postings p){
+		PostingsIterator it=p.iterator();
+		for(int d=it.nextDoc();d!=PostingsIterator.NO_MORE_DOCS;d=it.nextDoc())
+			add(term,d,it.tf());
+	}
+	
+	/** Add all postings of a file in the format read by {@link BuildIndex}. The postings
+	 * read before a malformed line stay added
+	 * @param file Path of the postings file
+	 * @return void
+	 * @throws IOException if the file can not be read or is malformed */
+	public void addFile(String file) throws IOException{
+		try{
+			new PostingsReader(file).read(new PostingsReader.Sink(){
+				@Override
+				public void term(String term,int[] docs,int[] tfs,int n){
+					for(int i=0;i<n;i++)
+						add(term,docs[i],tfs[i]);
+				}
+			});
+		}catch(IOException e){
+			throw e;
+		}catch(Exception e){
+			throw new IOException("Failed to add "+file,e);
+		}
+	}
+	
+	/** Turn the buffered postings into a segment, making them searchable
+	 * @param none
+	 * @return void */
+	public void flush(){
+		HashMap<String,Buffered> b;
+		synchronized(this){
+			if(buffered==0)
+				return;
+			b=buffer;
+			buffer=new HashMap<String,Buffered>();
+			buffered=0;
+		}
+		
+		//Sort the buffered lists outside of the lock, writers go on filling the new buffer
+		HashMap<String,Postings> taat=new HashMap<String,Postings>(b.size()*2);
+		HashMap<String,Postings> daat=new HashMap<String,Postings>(b.size()*2);
+		for(Map.Entry<String,Buffered> e:b.entrySet()){
+			Buffered l=e.getValue();
+			SortArr.Sorted s=combine(SortArr.sort(Arrays.copyOf(l.docs,l.size),Arrays.copyOf(l.tfs,l.size)));
+			daat.put(e.getKey(),s.asc);
+			taat.put(e.getKey(),s.dsc);
+		}
+		
+		synchronized(this){
+			List<Segment> s=new ArrayList<Segment>(current.segments);
+			Segment added=new Segment(taat,daat);
+			s.add(added);
+			current=new Snapshot(s,current,added);
+		}
+		scheduleMerge();
+	}
+	
+	/** Let the merge thread check the tiers */
+	private void scheduleMerge(){
+		try{
+			merger.execute(new Runnable(){
+				@Override
+				public void run(){
+					mergeTiers();
+				}
+			});
+		}catch(RejectedExecutionException e){
+			//Closed, the segments stay as they are
+		}
+	}
+	
+	/** Merge the segments of every tier that holds {@link #MERGE_FACTOR} of them, lowest tier first.
+	 * Runs on the merge thread only, so two merges never pick the same segment */
+	private void mergeTiers(){
+		while(true){
+			List<Segment> group=null;
+			Map<Integer,List<Segment>> tiers=new TreeMap<Integer,List<Segment>>();
+			for(Segment s:current.segments){
+				List<Segment> t=tiers.get(s.tier());
+				if(t==null)
+					tiers.put(s.tier(),t=new ArrayList<Segment>());
+				t.add(s);
+			}
+			for(List<Segment> t:tiers.values())
+				if(t.size()>=MERGE_FACTOR){
+					group=t;
+					break;
+				}
+			if(group==null)
+				return;
+			
+			Segment m=merge(group);
+			
+			//Flushes only ever append, so the merged segments are all still there
+			synchronized(this){
+				List<Segment> s=new ArrayList<Segment>(current.segments);
+				int at=s.indexOf(group.get(0));
+				s.removeAll(group);
+				s.add(at,m);
+				current=new Snapshot(s,current,null);
+				merges++;
+			}
+		}
+	}
+	
+	/** Merge segments into one */
+	private static Segment merge(List<Segment> group){
+		Set<String> terms=new LinkedHashSet<String>();
+		for(Segment s:group)
+			terms.addAll(s.daat.keySet());
+		HashMap<String,Postings> taat=new HashMap<String,Postings>(terms.size()*2);
+		HashMap<String,Postings> daat=new HashMap<String,Postings>(terms.size()*2);
+		for(String t:terms){
+			List<Postings> lists=new ArrayList<Postings>();
+			for(Segment s:group){
+				Postings p=s.daat.get(t);
+				if(p!=null)
+					lists.add(p);
+			}
+			SortArr.Sorted m=lists.size()==1 ? new SortArr.Sorted(lists.get(0),segment(group,t).taat.get(t)) : mergeLists(lists);
+			daat.put(t,m.asc);
+			taat.put(t,m.dsc);
+		}
+		return new Segment(taat,daat);
+	}
+	
+	/** The segment of a group that holds a term */
+	private static Segment segment(List<Segment> group,String term){
+		for(Segment s:group)
+			if(s.daat.containsKey(term))
+				return s;
+		return null;
+	}
+	
+	/** Merge the lists of one term from several segments.
+	 * <br> The lists are already sorted, so they are merged through a heap of their iterators
+	 * and the term frequencies of a document found in several segments are added up on the way
+	 * @param lists Document ID ordered lists, in segment order
+	 * @return Both orderings of the merged list */
+	private static SortArr.Sorted mergeLists(List<Postings> lists){
+		int n=0;
+		for(Postings p:lists)
+			n+=p.size();
+		int[] docs=new int[n];
+		int[] tfs=new int[n];
+		n=new Functions.IteratorMerge().or(lists,docs,tfs);
+		return SortArr.sortedByDoc(docs,tfs,n);
+	}
+	
+	/** Add up the term frequencies of entries with the same document
+	 * @param s Sorted postings, possibly with repeated documents
+	 * @return Sorted postings with every document once */
+	private static SortArr.Sorted combine(SortArr.Sorted s){
+		Postings asc=s.asc;
+		int n=asc.size(),k=0;
+		for(int i=1;i<n;i++)
+			if(asc.doc(i)==asc.doc(i-1))
+				k++;
+		if(k==0)
+			return s;
+		
+		int[] docs=new int[n-k];
+		int[] tfs=new int[n-k];
+		k=0;
+		for(int i=0;i<n;i++){
+			if(i>0 && asc.doc(i)==asc.doc(i-1)){
+				tfs[k-1]+=asc.tf(i);
+			}else{
+				docs[k]=asc.doc(i);
+				tfs[k++]=asc.tf(i);
+			}
+		}
+		return SortArr.sort(docs,tfs);
+	}
+	
+	/** Wait until the merges scheduled so far are done
+	 * @param none
+	 * @return void */
+	public void awaitMerges() throws InterruptedException{
+		try{
+			merger.submit(new Runnable(){
+				@Override
+				public void run(){
+				}
+			}).get();
+		}catch(ExecutionException e){
+			throw new IllegalStateException(e.getCause());
+		}catch(RejectedExecutionException e){
+			//Closed, nothing is pending
+		}
+	}
+	
+	/** Stop the refresh and merge threads. Buffered postings are flushed first
+	 * @param none
+	 * @return void */
+	public void close(){
+		if(refresher!=null)
+			refresher.shutdown();
+		flush();
+		merger.shutdown();
+	}
+	
+	/** Segment count and sizes
+	 * @param none
+	 * @return Human readable summary */
+	public String report(){
+		Snapshot s=current;
+		StringBuilder sb=new StringBuilder("Live index: "+s.segments.size()+" segments (");
+		for(int i=0;i<s.segments.size();i++){
+			if(i!=0)
+				sb.append(", ");
+			sb.append(s.segments.get(i).postings);
+		}
+		return sb.append(" postings), ").append(merges).append(" merges").toString();
+	}
+	
+	/** Get current Hashtable (Term At A Time), read across all segments
+	 * @param none
+	 * @return Read only view of the index ordered by decreasing term frequencies */
+	public Map<String,Postings> getTAAT(){
+		return new View(false);
+	}
+	
+	/** Get current Hashtable (Document At A Time), read across all segments
+	 * @param none
+	 * @return Read only view of the index ordered by increasing document IDs */
+	public Map<String,Postings> getDAAT(){
+		return new View(true);
+	}
+	
+	/** Read only Hashtable over the segments current at every lookup */
+	private class View extends AbstractMap<String,Postings> {
+		private boolean byDoc;
+		
+		View(boolean byDoc){
+			this.byDoc=byDoc;
+		}
+		
+		@Override
+		public Postings get(Object term){
+			return current.get(term,byDoc);
+		}
+		
+		@Override
+		public boolean containsKey(Object term){
+			for(Segment s:current.segments)
+				if(s.daat.containsKey(term))
+					return true;
+			return false;
+		}
+		
+		@Override
+		public int size(){
+			return current.terms().size();
+		}
+		
+		@Override
+		public Set<Map.Entry<String,Postings>> entrySet(){
+			final Snapshot s=current;
+			return new AbstractSet<Map.Entry<String,Postings>>(){
+				@Override
+				public int size(){
+					return s.terms().size();
+				}
+				
+				@Override
+				public Iterator<Map.Entry<String,Postings>> iterator(){
+					final Iterator<String> it=s.terms().iterator();
+					return new Iterator<Map.Entry<String,Postings>>(){
+						@Override
+						public boolean hasNext(){
+							return it.hasNext();
+						}
+						
+						@Override
+						public Map.Entry<String,Postings> next(){
+							String t=it.next();
+							return new AbstractMap.SimpleImmutableEntry<String,Postings>(t,s.get(t,byDoc));
+						}
+					};
+				}
+			};
+		}
+	}
+	
+	/** Factory of daemon threads, so an open index does not keep the JVM alive */
+	private static ThreadFactory daemon(final String name){
+		return new ThreadFactory(){
+			@Override
+			public Thread newThread(Runnable r){
+				Thread t=new Thread(r,name);
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+}
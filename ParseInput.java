@@ -25,7 +25,8 @@ public class ParseInput {
 		}
 	}	
 	
-	/**Function to return the terms of each query line
+	/**Function to return the terms of each query line.
+	 * Terms are returned as written, a trailing '*' is expanded by {@link WildcardIndex}
 	 * @param none
 	 * @return An array containing all the terms in the query line */
 	public String[] getQueryTerms(){
@@ -35,6 +36,13 @@ public class ParseInput {
 		return(queries);			//return the query terms to the calling method		
 	}
 	
+	/**Function to return the next query line as it is, for Boolean expression queries
+	 * @param none
+	 * @return The query line */
+	public String getQueryLine(){
+		return s.nextLine();
+	}
+	
 	/**Checks if there are any unread query lines in the file.
 	 * @param none
 	 * @return True,if query lines are yet to be read. False, otherwise. */
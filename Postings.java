@@ -0,0 +1,118 @@
+/** Compact postings list of a single term.
+ * Document IDs and their term frequencies are stored in two parallel
+ * primitive arrays instead of a list of boxed Strings.
+ * The order of the entries is decided by whoever builds the list
+ * (increasing document IDs for DAAT, decreasing term frequencies for TAAT). */
+public class Postings {
+	
+	/** Document IDs */
+	private int[] docs;
+	
+	/** Term frequencies, docs[i] has term frequency tfs[i] */
+	private int[] tfs;
+	
+	/** Shared instance for terms without any documents */
+	public static final Postings EMPTY=new Postings(new int[0],new int[0]);
+	
+	/** Wrap the given arrays. The arrays are not copied.
+	 * @param docs Document IDs
+	 * @param tfs Term frequencies, must be as long as <i>docs</i> */
+	Postings(int[] docs,int[] tfs){
+		if(docs.length!=tfs.length)
+			throw new IllegalArgumentException("docs and tfs must be of the same length");
+		this.docs=docs;
+		this.tfs=tfs;
+	}
+	
+	/** Constructor for subclasses that keep the postings outside of the two arrays.
+	 * Such subclasses must override {@link #size()}, {@link #doc(int)} and {@link #tf(int)} */
+	protected Postings(){
+	}
+	
+	/** Number of documents in the list
+	 * @param none
+	 * @return Size of the postings list */
+	public int size(){
+		return docs.length;
+	}
+	
+	/** Document ID at the given position
+	 * @param i Position in the list
+	 * @return Document ID */
+	public int doc(int i){
+		return docs[i];
+	}
+	
+	/** Term frequency at the given position
+	 * @param i Position in the list
+	 * @return Term frequency of the term in document <i>doc(i)</i> */
+	public int tf(int i){
+		return tfs[i];
+	}
+	
+	/** The document ID array itself, for kernels that work on plain arrays. It must not be modified
+	 * @param none
+	 * @return Document IDs, <i>null</i> if a subclass keeps them in another form */
+	int[] docArray(){
+		return docs;
+	}
+
+	/** Cursor over the list, in list order
+	 * @param none
+	 * @return New iterator positioned before the first document */
+	public PostingsIterator iterator(){
+		return new PostingsIterator(this);
+	}
+	
+	/** Estimated heap footprint of this object, assuming a 64 bit JVM with compressed oops
+	 * @param none
+	 * @return Size in bytes */
+	public long memoryBytes(){
+		//Object header + 2 references, plus the two arrays (header + length + data)
+		return 16+2*align(16+4L*size());
+	}
+	
+	/** Estimated heap footprint of the same list stored as a LinkedList of Strings,
+	 * which is how postings used to be stored.
+	 * @param none
+	 * @return Size in bytes */
+	public long linkedListBytes(){
+		long bytes=32;							//LinkedList object
+		PostingsIterator it=iterator();
+		for(int d=it.nextDoc();d!=PostingsIterator.NO_MORE_DOCS;d=it.nextDoc()){
+			bytes+=24;							//LinkedList.Node
+			bytes+=24;							//String object
+			bytes+=align(16+digits(d));			//Latin-1 backing byte[]
+		}
+		return bytes;
+	}
+	
+	/** Comma separated document IDs, in list order
+	 * @return String in the form "1, 2, 3" */
+	@Override
+	public String toString(){
+		StringBuilder sb=new StringBuilder(size()*6);
+		PostingsIterator it=iterator();
+		for(int d=it.nextDoc();d!=PostingsIterator.NO_MORE_DOCS;d=it.nextDoc()){
+			if(sb.length()!=0)
+				sb.append(", ");
+			sb.append(d);
+		}
+		return sb.toString();
+	}
+	
+	/** Round up to the 8 byte object alignment */
+	static long align(long bytes){
+		return (bytes+7)&~7L;
+	}
+	
+	/** Number of characters needed to print a non-negative int */
+	private static int digits(int n){
+		int d=1;
+		while(n>=10){
+			n/=10;
+			d++;
+		}
+		return d;
+	}
+}
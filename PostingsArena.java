@@ -0,0 +1,115 @@
+import java.nio.*;
+import java.util.*;
+
+/** Off-heap store of postings lists, so that the garbage collector does not have to trace them.
+ * <br> Postings are copied into large direct buffers, the blocks of the arena, which are filled
+ * one after another and never freed one list at a time. A list is stored as its document IDs
+ * followed by its term frequencies, in native byte order, and never crosses a block. The heap
+ * keeps only the term dictionary: per term one small {@link Postings} object holding the block
+ * and the position its list starts at.
+ * <br> Direct buffers count against -XX:MaxDirectMemorySize, which defaults to the maximum heap size.
+ * They are released when the arena is no longer reachable, there is no way to free them earlier.
+ * Lists can be added by several threads at once. */
+public class PostingsArena {
+	
+	/** Size of a block, lists larger than a block get a block of their own */
+	private static final int BLOCK_BYTES=1<<26;
+	
+	/** Blocks in order of allocation, and the one being filled with the number of ints used in it */
+	private List<IntBuffer> blocks=new ArrayList<IntBuffer>();
+	private IntBuffer current;
+	private int filled;
+	
+	/** Bytes handed out to lists and bytes allocated */
+	private long used=0,allocated=0;
+	
+	/** Postings list read straight from a block of the arena */
+	private static class ArenaPostings extends Postings {
+		private IntBuffer block;
+		private int start,n;
+		
+		ArenaPostings(IntBuffer block,int start,int n){
+			this.block=block;
+			this.start=start;
+			this.n=n;
+		}
+		
+		@Override
+		public int size(){
+			return n;
+		}
+		
+		@Override
+		public int doc(int i){
+			if(i>=n)
+				throw new IndexOutOfBoundsException("Index: "+i+", Size: "+n);
+			return block.get(start+i);
+		}
+		
+		@Override
+		public int tf(int i){
+			if(i>=n)
+				throw new IndexOutOfBoundsException("Index: "+i+", Size: "+n);
+			return block.get(start+n+i);
+		}
+		
+		@Override
+		public long memoryBytes(){
+			return 32;									//This object, the block and the postings are off-heap
+		}
+	}
+	
+	/** Copy a postings list into the arena
+	 * @param p Postings list, in the order it is to be kept in
+	 * @return List with the same entries, read from the arena */
+	public Postings copy(Postings p){
+		int n=p.size();
+		if(n==0)
+			return Postings.EMPTY;
+		ArenaPostings a=allocate(n);
+		
+		//Absolute puts, so threads can fill their lists of the same block at once
+		PostingsIterator it=p.iterator();
+		int i=a.start;
+		for(int d=it.nextDoc();d!=PostingsIterator.NO_MORE_DOCS;d=it.nextDoc()){
+			a.block.put(i,d);
+			a.block.put(n+i,it.tf());
+			i++;
+		}
+		return a;
+	}
+	
+	/** Room for a list. Only the allocation is locked, lists are copied in parallel
+	 * @param n Number of postings
+	 * @return List of that size, not filled yet */
+	private synchronized ArenaPostings allocate(int n){
+		if(n>(Integer.MAX_VALUE-8)/8)
+			throw new IllegalArgumentException("Postings list of "+n+" entries is too large for the arena");
+		int ints=2*n;
+		used+=4L*ints;
+		if(4L*ints>BLOCK_BYTES)
+			return new ArenaPostings(block(4*ints),0,n);
+		
+		if(current==null || filled+ints>current.capacity()){
+			current=block(BLOCK_BYTES);
+			filled=0;
+		}
+		ArenaPostings a=new ArenaPostings(current,filled,n);
+		filled+=ints;
+		return a;
+	}
+	
+	private IntBuffer block(int bytes){
+		IntBuffer b=ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder()).asIntBuffer();
+		blocks.add(b);
+		allocated+=bytes;
+		return b;
+	}
+	
+	/** Blocks and bytes of the arena
+	 * @param none
+	 * @return Human readable summary */
+	public synchronized String report(){
+		return "Off-heap postings: "+(used>>10)+" KB in "+blocks.size()+" direct blocks of "+(allocated>>10)+" KB";
+	}
+}
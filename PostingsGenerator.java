@@ -0,0 +1,120 @@
+import java.io.*;
+import java.util.*;
+
+/** Writes synthetic postings files in the format read by {@link BuildIndex}.
+ * <br> Document frequencies follow a Zipf distribution over the term ranks: the term of
+ * rank r appears in about maxDf/r^s documents. Documents are drawn uniformly, term
+ * frequencies follow a Zipf distribution of their own, and the pairs of a line are
+ * written in random order like in a real postings file.
+ * <br> Usage: java PostingsGenerator &lt;file&gt; &lt;terms&gt; &lt;documents&gt; [zipf exponent] [seed] */
+public class PostingsGenerator {
+	
+	/** Largest term frequency generated */
+	private static final int MAX_TF=50;
+	
+	private int terms;
+	private int docs;
+	private double s;
+	private long seed;
+	
+	/** @param terms Number of distinct terms
+	 * @param docs Number of documents, document IDs run from 1 to <i>docs</i>
+	 * @param s Zipf exponent of the document frequencies
+	 * @param seed Random seed, the same parameters always give the same file */
+	PostingsGenerator(int terms,int docs,double s,long seed){
+		this.terms=terms;
+		this.docs=docs;
+		this.s=s;
+		this.seed=seed;
+	}
+	
+	/** Name of the term of the given rank */
+	public static String term(int rank){
+		return "t"+rank;
+	}
+	
+	/** Document frequency of the term of the given rank
+	 * @param rank Term rank, 0 is the most frequent term
+	 * @return Number of documents containing the term */
+	public int df(int rank){
+		//The most frequent term appears in half of the documents
+		return Math.max(1,(int)(docs/2/Math.pow(rank+1,s)));
+	}
+	
+	/** Write the postings file
+	 * @param path Path of the file to create
+	 * @throws IOException If the file can not be written */
+	public void write(String path) throws IOException{
+		Random r=new Random(seed);
+		boolean[] taken=new boolean[docs+1];
+		int[] chosen=new int[docs];
+		double[] tf_cdf=cdf(MAX_TF,1.5);
+		
+		PrintWriter out=new PrintWriter(new BufferedWriter(new FileWriter(path),1<<16));
+		try{
+			StringBuilder sb=new StringBuilder();
+			for(int t=0;t<terms;t++){
+				int df=df(t);
+				
+				//Draw df distinct documents
+				int n=0;
+				while(n<df){
+					int d=1+r.nextInt(docs);
+					if(!taken[d]){
+						taken[d]=true;
+						chosen[n++]=d;
+					}
+				}
+				for(int i=0;i<n;i++)
+					taken[chosen[i]]=false;
+				
+				sb.setLength(0);
+				sb.append(term(t)).append("\\c").append(df).append("\\m[");
+				for(int i=0;i<n;i++){
+					if(i!=0)
+						sb.append(", ");
+					sb.append(chosen[i]).append('/').append(1+sample(tf_cdf,r));
+				}
+				sb.append(']');
+				out.println(sb);
+			}
+		}finally{
+			out.close();
+		}
+	}
+	
+	/** Cumulative distribution of a Zipf distribution over n ranks
+	 * @param n Number of ranks
+	 * @param s Exponent
+	 * @return cdf[i] is the probability of a rank up to i */
+	public static double[] cdf(int n,double s){
+		double[] c=new double[n];
+		double sum=0;
+		for(int i=0;i<n;i++){
+			sum+=1/Math.pow(i+1,s);
+			c[i]=sum;
+		}
+		for(int i=0;i<n;i++)
+			c[i]/=sum;
+		return c;
+	}
+	
+	/** Draw a rank from a cumulative distribution
+	 * @param cdf Distribution created by {@link #cdf(int,double)}
+	 * @param r Random source
+	 * @return Rank, 0 based */
+	public static int sample(double[] cdf,Random r){
+		int i=Arrays.binarySearch(cdf,r.nextDouble());
+		return Math.min(cdf.length-1,i<0 ? -i-1 : i);
+	}
+	
+	public static void main(String[] ip) throws IOException{
+		if(ip.length<3){
+			System.out.println("\n Correct usage is: \n java PostingsGenerator <file> <terms> <documents> [zipf exponent] [seed]");
+			System.exit(-1);
+		}
+		new PostingsGenerator(Integer.parseInt(ip[1]),Integer.parseInt(ip[2]),
+				ip.length>3 ? Double.parseDouble(ip[3]) : 1.0,
+				ip.length>4 ? Long.parseLong(ip[4]) : 42).write(ip[0]);
+	}
+}
@@ -0,0 +1,91 @@
+/** Cursor over a postings list, moving forward one document at a time or skipping
+ * ahead to a target document.
+ * <br> The cursor starts before the first document; call {@link #nextDoc()} to move
+ * onto it. Postings stored in a compressed form provide their own subclass that decodes
+ * the list piece by piece while it is being walked. */
+public class PostingsIterator {
+	
+	/** Returned by {@link #nextDoc()} once the list is exhausted */
+	public static final int NO_MORE_DOCS=Integer.MAX_VALUE;
+	
+	private Postings p;
+	private int pos=-1;
+	
+	/** Distance between skip pointers, about the square root of the list size */
+	private int skip;
+	
+	/** Comparisons made while skipping */
+	protected int comparisons=0;
+	
+	/** Iterate over the given postings in list order
+	 * @param p Postings list */
+	PostingsIterator(Postings p){
+		this.p=p;
+		this.skip=(int)Math.sqrt(p.size());
+	}
+	
+	/** Constructor for subclasses that override {@link #nextDoc()}, {@link #doc()} and {@link #tf()} */
+	protected PostingsIterator(){
+	}
+	
+	/** Move to the next document
+	 * @param none
+	 * @return Document ID, <i>NO_MORE_DOCS</i> if there are no documents left */
+	public int nextDoc(){
+		if(++pos<p.size())
+			return p.doc(pos);
+		pos=p.size();
+		return NO_MORE_DOCS;
+	}
+	
+	/** Move past the current document to the first document at or after the target.
+	 * The target must be larger than the current document and the list must be ordered by Document ID.
+	 * <br> Every sqrt(n)-th posting carries a skip pointer to the posting sqrt(n) places further on.
+	 * It is followed whenever it does not pass the target.
+	 * @param target Document ID to look for
+	 * @return Document ID the cursor is on, <i>NO_MORE_DOCS</i> if there are no documents left */
+	public int advance(int target){
+		int n=p.size();
+		pos++;
+		
+		while(pos<n){
+			//Follow the skip pointer of the current posting, if it has one
+			if(skip>1 && pos%skip==0 && pos+skip<n){
+				comparisons++;
+				if(p.doc(pos+skip)<=target){
+					pos+=skip;
+					continue;
+				}
+			}
+			
+			comparisons++;
+			int d=p.doc(pos);
+			if(d>=target)
+				return d;
+			pos++;
+		}
+		pos=n;
+		return NO_MORE_DOCS;
+	}
+	
+	/** Number of comparisons made by {@link #advance(int)} so far
+	 * @param none
+	 * @return Comparison count */
+	public int comparisons(){
+		return comparisons;
+	}
+	
+	/** Current document
+	 * @param none
+	 * @return Document ID the cursor is on */
+	public int doc(){
+		return p.doc(pos);
+	}
+	
+	/** Term frequency of the current document
+	 * @param none
+	 * @return Term frequency */
+	public int tf(){
+		return p.tf(pos);
+	}
+}
@@ -0,0 +1,209 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Arrays;
+
+/** Streaming reader of postings files.
+ * <br> Every line of a postings file holds one term as <i>term\cN\m[docId/tf, docId/tf, ...]</i>.
+ * The file is read through a large buffer on a file channel and tokenized byte by byte: only
+ * the term becomes a String, the document IDs and term frequencies are parsed straight into
+ * primitive arrays that are reused from one line to the next. No line Strings, substrings or
+ * regular expressions are created.
+ * <br> The reader counts the bytes it reads and the time it takes apart from the time spent
+ * in the sink, see {@link #report()}. */
+public class PostingsReader {
+	
+	/** Size of the read buffer */
+	private static final int BUFFER_BYTES=1<<22;
+	
+	/** Receives the parsed lines */
+	public interface Sink {
+		/** One line of the postings file. The arrays are reused for the next line,
+		 * the sink has to copy what it keeps
+		 * @param term Term
+		 * @param docs Document IDs in file order, the first <i>n</i> entries are valid
+		 * @param tfs Term frequencies, docs[i] has term frequency tfs[i]
+		 * @param n Number of postings */
+		void term(String term,int[] docs,int[] tfs,int n) throws Exception;
+	}
+	
+	private Path path;
+	private FileChannel channel;
+	private ByteBuffer buffer=ByteBuffer.allocate(BUFFER_BYTES);
+	private byte[] buf=buffer.array();
+	private int pos=0,limit=0;
+	
+	private long bytes=0;
+	
+	/** Size of the file, read once when it is opened */
+	private long size=0;
+	private long nanos=0;
+	private long sink_nanos=0;
+	private int lines=0;
+	
+	/** Postings of the current line */
+	private int[] docs=new int[1024];
+	private int[] tfs=new int[1024];
+	
+	/** Bytes of the current term */
+	private byte[] term=new byte[64];
+	
+	/** @param path Path of the postings file */
+	PostingsReader(String path){
+		this.path=Paths.get(path);
+	}
+	
+	/** Parse the whole file and hand every line to the sink. Empty lines are skipped
+	 * @param sink Receiver of the parsed lines
+	 * @return void
+	 * @throws Exception if the file can not be read, a line is malformed or the sink fails */
+	public void read(Sink sink) throws Exception{
+		long start=System.nanoTime();
+		channel=FileChannel.open(path,StandardOpenOption.READ);
+		size=channel.size();
+		try{
+			int c;
+			while((c=next())>=0){
+				if(c=='\n' || c=='\r')
+					continue;
+				lines++;
+				
+				//Term, up to the first "\c"
+				int len=0;
+				while(true){
+					if(c<0 || c=='\n')
+						throw malformed("missing \\c");
+					if(c=='\\'){
+						c=next();
+						if(c=='c')
+							break;
+						len=append(len,'\\');
+						continue;
+					}
+					len=append(len,c);
+					c=next();
+				}
+				String t=new String(term,0,len,StandardCharsets.UTF_8);
+				
+				//Document count, followed by "\m[". The arrays are presized from it, but never
+				//beyond the postings the rest of the file can hold, at least 4 bytes each
+				long count=0;
+				while((c=next())>='0' && c<='9')
+					count=Math.min(count*10+(c-'0'),Integer.MAX_VALUE);
+				if(c!='\\' || next()!='m' || next()!='[')
+					throw malformed("missing \\m[");
+				long left=size-bytes+(limit-pos);
+				int hint=(int)Math.min(count,left/4+1);
+				if(hint>docs.length){
+					docs=new int[hint];
+					tfs=new int[hint];
+				}
+				
+				//"docId/tf" pairs separated by ", ", up to ']'. Most of the file is here, 
+				//so the buffer is walked with local copies of its position
+				int n=0,value=0,doc=-1;
+				int p=pos,lim=limit;
+				byte[] b=buf;
+				while(true){
+					if(p==lim){
+						pos=p;
+						if(fill()<0)
+							throw malformed("missing ]");
+						p=pos;
+						lim=limit;
+					}
+					int d=b[p++]-'0';
+					if(d>=0 && d<=9){
+						value=value*10+d;
+					}else if(d=='/'-'0'){
+						doc=value;
+						value=0;
+					}else if(d==','-'0'){
+						n=add(n,doc,value);
+						doc=-1;
+						value=0;
+					}else if(d==']'-'0'){
+						break;
+					}else if(d=='\n'-'0'){
+						pos=p;
+						throw malformed("missing ]");
+					}
+				}
+				pos=p;
+				if(doc>=0)
+					n=add(n,doc,value);				//Last pair is not followed by a comma
+				
+				//Rest of the line
+				while((c=next())>=0 && c!='\n')
+					;
+				
+				long s=System.nanoTime();
+				sink.term(t,docs,tfs,n);
+				sink_nanos+=System.nanoTime()-s;
+			}
+		}finally{
+			channel.close();
+			nanos+=System.nanoTime()-start;
+		}
+	}
+	
+	/** Next byte of the file, refilling the buffer when it is used up
+	 * @return Byte value, -1 at the end of the file */
+	private int next() throws IOException{
+		if(pos==limit && fill()<0)
+			return -1;
+		return buf[pos++]&0xff;
+	}
+	
+	/** Read the next part of the file into the buffer
+	 * @return Number of bytes read, -1 at the end of the file */
+	private int fill() throws IOException{
+		buffer.clear();
+		int r;
+		do{
+			r=channel.read(buffer);
+		}while(r==0);
+		if(r<0)
+			return -1;
+		bytes+=r;
+		pos=0;
+		limit=r;
+		return r;
+	}
+	
+	/** Append a byte to the current term */
+	private int append(int len,int c){
+		if(len==term.length)
+			term=Arrays.copyOf(term,2*len);
+		term[len]=(byte)c;
+		return len+1;
+	}
+	
+	/** Append a posting to the current line, the count in the file is only a size hint */
+	private int add(int n,int doc,int tf){
+		if(n==docs.length){
+			docs=Arrays.copyOf(docs,2*n);
+			tfs=Arrays.copyOf(tfs,2*n);
+		}
+		docs[n]=doc;
+		tfs[n]=tf;
+		return n+1;
+	}
+	
+	private IOException malformed(String what){
+		return new IOException(path+": line "+lines+" is malformed, "+what);
+	}
+	
+	/** Amount read, throughput of reading and parsing, and the time spent in the sink
+	 * @param none
+	 * @return Human readable summary */
+	public String report(){
+		double mb=bytes/1048576.0;
+		double s=(nanos-sink_nanos)/1e9;
+		return "Postings file: "+lines+" terms, "+String.format("%.1f",mb)+" MB read and parsed in "
+				+String.format("%.3f",s)+" s ("+String.format("%.1f",mb/Math.max(s,1e-9))+" MB/s), "
+				+String.format("%.3f",sink_nanos/1e9)+" s building the index";
+	}
+}
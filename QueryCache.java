@@ -0,0 +1,99 @@
+import java.util.*;
+
+/** Output of earlier queries, kept so repeated queries do not touch the postings again.
+ * <br> Entries are kept in least recently used order and evicted once their estimated
+ * heap footprint exceeds the byte budget. The cache can be shared by several threads.
+ * <br> An entry is the text a query method wrote, split around its "seconds are used"
+ * line so that a hit can report its own time. */
+public class QueryCache {
+	
+	/** Estimated heap bytes of an entry besides its strings */
+	private static final int ENTRY_OVERHEAD=96;
+	
+	/** Text written by one query method */
+	static class Entry {
+		/** Text before and after the timing line. <i>tail</i> is <i>null</i> without a timing line */
+		final String head,tail;
+		
+		Entry(String head,String tail){
+			this.head=head;
+			this.tail=tail;
+		}
+		
+		long bytes(){
+			return 2L*(head.length()+(tail==null ? 0 : tail.length()));
+		}
+	}
+	
+	private long budget;
+	private long bytes=0;
+	private long hits=0,misses=0,evictions=0;
+	
+	/** Entries in access order, the eldest is evicted first */
+	private LinkedHashMap<String,Entry> map=new LinkedHashMap<String,Entry>(16,0.75f,true);
+	
+	/** @param budget Maximum estimated heap bytes of the cached entries */
+	QueryCache(long budget){
+		this.budget=budget;
+	}
+	
+	/** Key of a query: the operator followed by the query terms in query order.
+	 * <br> Every query method writes comparison counts that depend on the order of the terms
+	 * and on repeated terms, so a query only shares an entry with the same terms in the same
+	 * order and the output of a hit is the one the query would have written
+	 * @param op Name of the query method
+	 * @param queries Query terms
+	 * @return Key */
+	public static String key(String op,String[] queries){
+		StringBuilder sb=new StringBuilder(op);
+		for(String t:queries)
+			sb.append('\n').append(t);
+		return sb.toString();
+	}
+	
+	/** Look up a query and count the hit or miss
+	 * @param key Key created by {@link #key(String,String[])}
+	 * @return Cached entry, <i>null</i> if the query is not cached */
+	public synchronized Entry get(String key){
+		Entry e=map.get(key);
+		if(e==null)
+			misses++;
+		else
+			hits++;
+		return e;
+	}
+	
+	/** Add an entry and evict the least recently used ones until the cache fits its budget.
+	 * Entries larger than the whole budget are not kept
+	 * @param key Key created by {@link #key(String,String[])}
+	 * @param e Output of the query
+	 * @return void */
+	public synchronized void put(String key,Entry e){
+		long size=ENTRY_OVERHEAD+2L*key.length()+e.bytes();
+		if(size>budget)
+			return;
+		
+		Entry old=map.put(key,e);
+		if(old!=null)
+			bytes-=ENTRY_OVERHEAD+2L*key.length()+old.bytes();
+		bytes+=size;
+		
+		Iterator<Map.Entry<String,Entry>> it=map.entrySet().iterator();
+		while(bytes>budget && it.hasNext()){
+			Map.Entry<String,Entry> eldest=it.next();
+			bytes-=ENTRY_OVERHEAD+2L*eldest.getKey().length()+eldest.getValue().bytes();
+			it.remove();
+			evictions++;
+		}
+	}
+	
+	/** Hit and miss counters and the memory used
+	 * @param none
+	 * @return Human readable summary */
+	public synchronized String report(){
+		long total=hits+misses;
+		return "Query cache: "+hits+" hits, "+misses+" misses ("
+				+String.format("%.1f",100.0*hits/Math.max(total,1))+"% hit rate), "
+				+map.size()+" entries, "+(bytes/1024)+" KB of "+(budget/1024)+" KB, "+evictions+" evictions";
+	}
+}
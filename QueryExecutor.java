@@ -0,0 +1,143 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Runs the query lines of a query file, optionally on a pool of worker threads.
+ * <br> Every query is evaluated on its own {@link Functions} instance that shares the
+ * index but has its own comparison counter and deferred {@link ResultWriter}.
+ * <br> The writers are flushed to the output file in the order of the query file, so the
+ * output is the same as the one of a serial run apart from the timings. */
+public class QueryExecutor {
+	
+	/** Queries in flight per worker thread, bounds the buffered output */
+	private static final int WINDOW_PER_THREAD=16;
+	
+	private Functions f;
+	private int threads;
+	
+	/** When set, every query line is a Boolean expression, see {@link BooleanQuery} */
+	private boolean expressions=false;
+	
+	/** @param f Functions instance writing to the output file
+	 * @param threads Number of worker threads. Values below 2 run the queries on the calling thread */
+	QueryExecutor(Functions f,int threads){
+		this.f=f;
+		this.threads=threads;
+	}
+	
+	/** Switch between query lines of space separated terms, which are run through all
+	 * four query algorithms, and query lines holding one Boolean expression each
+	 * @param b Set to true for Boolean expressions
+	 * @return void */
+	public void setBooleanQueries(boolean b){
+		this.expressions=b;
+	}
+	
+	/** Run all queries of the query file
+	 * @param p Query file
+	 * @return <i>true</i> If all queries were run <br> <i>false</i> In all other cases */
+	public boolean run(ParseInput p){
+		if(threads<2){
+			while(p.hasQueries()){
+				if(expressions)
+					expression(f,p.getQueryLine());
+				else
+					query(f,p.getQueryTerms());
+			}
+			return true;
+		}
+		
+		ExecutorService pool=Executors.newFixedThreadPool(threads);
+		try{
+			//Results in query order, the reader waits for the oldest once the window is full
+			ArrayDeque<Future<ResultWriter>> pending=new ArrayDeque<Future<ResultWriter>>();
+			int window=threads*WINDOW_PER_THREAD;
+			
+			while(p.hasQueries()){
+				final String line=expressions ? p.getQueryLine() : null;
+				final String[] queries=expressions ? null : p.getQueryTerms();
+				pending.add(pool.submit(new Callable<ResultWriter>(){
+					@Override
+					public ResultWriter call(){
+						ResultWriter out=new ResultWriter();
+						if(expressions)
+							expression(new Functions(f,out),line);
+						else
+							query(new Functions(f,out),queries);
+						return out;
+					}
+				}));
+				
+				if(pending.size()>=window)
+					f.writeFile(pending.poll().get());
+			}
+			while(!pending.isEmpty())
+				f.writeFile(pending.poll().get());
+			
+			pool.shutdown();
+			return true;
+		
+		}catch(Exception e){
+			pool.shutdownNow();
+			e.printStackTrace();
+			return false;
+		}
+	}
+	
+	/** Run one query line: postings of every term followed by the four Boolean queries,
+	 * the sharded queries when sharding is on and the ranked query when ranking is on.
+	 * <br> Without the whole index only the sharded queries are run
+	 * @param f Functions instance to run the query on
+	 * @param queries Terms of the query line
+	 * @return void */
+	static void query(Functions f,String[] queries){
+		//Build function header and write to file (TAAT_AND and TAAT_OR)
+		StringBuilder query_line=new StringBuilder();
+		for(int i=0;i<queries.length;i++){
+			query_line.append(queries[i]);
+			if(i!=(queries.length-1)){
+				query_line.append(", ");
+			}
+		}
+		
+		if(f.hasIndex()){
+			//Postings list of every query term
+			for(int i=0;i<queries.length;i++)
+				f.getPostings(queries[i]);					//Get Postings list for each query
+			
+			f.writeFile("\nFUNCTION: termAtATimeQueryAnd "+query_line);
+			f.TAAT_AND(queries,false);
+			
+			f.writeFile("\nFUNCTION: termAtATimeQueryOr "+query_line);
+			f.TAAT_OR(queries, false);
+			
+			f.writeFile("\nFUNCTION: docAtATimeQueryAnd "+query_line);
+			f.DAAT_AND(queries);
+			
+			f.writeFile("\nFUNCTION: docAtATimeQueryOr "+query_line);
+			f.DAAT_OR(queries);
+		}
+		
+		if(f.isSharded()){
+			f.writeFile("\nFUNCTION: shardedQueryAnd "+query_line);
+			f.shardedAND(queries);
+			
+			f.writeFile("\nFUNCTION: shardedQueryOr "+query_line);
+			f.shardedOR(queries);
+		}
+		
+		if(f.isRanked()){
+			f.writeFile("\nFUNCTION: rankedQuery "+query_line);
+			f.rankedQuery(queries);
+		}
+	}
+	
+	/** Run one Boolean expression query line
+	 * @param f Functions instance to run the query on
+	 * @param line Query line
+	 * @return void */
+	static void expression(Functions f,String line){
+		f.writeFile("\nFUNCTION: booleanQuery "+line);
+		f.booleanQuery(line);
+	}
+}
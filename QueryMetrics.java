@@ -0,0 +1,297 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import javax.management.*;
+
+/** Counters and latency histograms of the index build and of every query method.
+ * <br> For each operation, named like the FUNCTION headers of the output file, the metrics
+ * keep a {@link LatencyHistogram} and the totals of comparisons, result documents, postings
+ * read and cache hits. Postings bytes are counted as 8 bytes per posting read, the size
+ * of a document ID and a term frequency, whatever form the list is stored in.
+ * The slowest queries are kept with their terms.
+ * <br> The metrics are written to a file in the Prometheus text format, or as JSON when the
+ * file name ends in .json, and can be registered as a JMX MBean.
+ * <br> All methods can be called by several threads at once. */
+public class QueryMetrics {
+	
+	/** Number of slowest queries kept */
+	private static final int SLOW_QUERIES=10;
+	
+	/** Metrics of one operation */
+	private static class Op {
+		final LatencyHistogram latency=new LatencyHistogram();
+		final LongAdder comparisons=new LongAdder();
+		final LongAdder results=new LongAdder();
+		final LongAdder postings=new LongAdder();
+		final LongAdder cache_hits=new LongAdder();
+	}
+	
+	/** Query kept as one of the slowest */
+	private static class Slow {
+		final long nanos;
+		final String op,query;
+		
+		Slow(long nanos,String op,String query){
+			this.nanos=nanos;
+			this.op=op;
+			this.query=query;
+		}
+	}
+	
+	private final ConcurrentHashMap<String,Op> ops=new ConcurrentHashMap<String,Op>();
+	
+	/** Slowest queries, the fastest of them first */
+	private final PriorityQueue<Slow> slow=new PriorityQueue<Slow>(SLOW_QUERIES+1,new Comparator<Slow>(){
+		@Override
+		public int compare(Slow a,Slow b){
+			return Long.compare(a.nanos,b.nanos);
+		}
+	});
+	private volatile long slow_min=0;
+	
+	/** Index build, 0 until {@link #recordBuild} is called */
+	private volatile long build_nanos,build_bytes,index_terms,index_postings,index_bytes;
+	
+	private Op op(String name){
+		Op o=ops.get(name);
+		if(o==null){
+			ops.putIfAbsent(name,new Op());
+			o=ops.get(name);
+		}
+		return o;
+	}
+	
+	/** Record one evaluated query
+	 * @param op Name of the query method
+	 * @param nanos Time the query took
+	 * @param queries Query terms, only turned into text if the query is among the slowest
+	 * @param comparisons Comparisons made
+	 * @param results Number of documents found
+	 * @param postings Number of postings in the lists the query read
+	 * @return void */
+	public void record(String op,long nanos,String[] queries,long comparisons,long results,long postings){
+		Op o=op(op);
+		o.latency.record(nanos);
+		o.comparisons.add(comparisons);
+		o.results.add(results);
+		o.postings.add(postings);
+		slow(op,nanos,queries);
+	}
+	
+	/** Record a query answered from the {@link QueryCache}
+	 * @param op Name of the query method
+	 * @param nanos Time the lookup took
+	 * @return void */
+	public void recordCacheHit(String op,long nanos){
+		Op o=op(op);
+		o.latency.record(nanos);
+		o.cache_hits.increment();
+	}
+	
+	/** Record the index build
+	 * @param nanos Time the build took
+	 * @param file_bytes Size of the postings file read, 0 if none was read
+	 * @param taat Index ordered by term frequency
+	 * @param daat Index ordered by Document ID
+	 * @return void */
+	public void recordBuild(long nanos,long file_bytes,Map<String,Postings> taat,Map<String,Postings> daat){
+		long n=0,heap=0;
+		for(Postings p:daat.values()){
+			n+=p.size();
+			heap+=p.memoryBytes();
+		}
+		for(Postings p:taat.values())
+			heap+=p.memoryBytes();
+		build_nanos=nanos;
+		build_bytes=file_bytes;
+		index_terms=daat.size();
+		index_postings=n;
+		index_bytes=heap;
+	}
+	
+	/** Keep a query if it is among the slowest */
+	private void slow(String op,long nanos,String[] queries){
+		if(nanos<=slow_min)
+			return;
+		synchronized(slow){
+			slow.add(new Slow(nanos,op,String.join(" ",queries)));
+			if(slow.size()>SLOW_QUERIES)
+				slow.poll();
+			if(slow.size()==SLOW_QUERIES)
+				slow_min=slow.peek().nanos;
+		}
+	}
+	
+	/** Slowest queries, slowest first
+	 * @param none
+	 * @return Lines of the form "op: seconds: terms" */
+	public String[] slowQueries(){
+		List<Slow> l;
+		synchronized(slow){
+			l=new ArrayList<Slow>(slow);
+		}
+		Collections.sort(l,Collections.reverseOrder(slow.comparator()));
+		String[] s=new String[l.size()];
+		for(int i=0;i<s.length;i++)
+			s[i]=l.get(i).op+": "+(l.get(i).nanos/1e9)+" s: "+l.get(i).query;
+		return s;
+	}
+	
+	/** Write the metrics to a file, as JSON if its name ends in .json and in the Prometheus text format otherwise
+	 * @param file Path of the file
+	 * @return void */
+	public void write(String file) throws IOException{
+		PrintWriter out=new PrintWriter(file,"UTF-8");
+		try{
+			out.write(file.endsWith(".json") ? json() : prometheus());
+		}finally{
+			out.close();
+		}
+	}
+	
+	/** Metrics in the Prometheus text exposition format
+	 * @param none
+	 * @return Text */
+	public String prometheus(){
+		StringBuilder sb=new StringBuilder();
+		gauge(sb,"bss_build_seconds","Time taken to build the index",build_nanos/1e9);
+		gauge(sb,"bss_build_read_bytes","Size of the postings file read by the build",build_bytes);
+		gauge(sb,"bss_index_terms","Number of terms in the index",index_terms);
+		gauge(sb,"bss_index_postings","Number of postings in the index",index_postings);
+		gauge(sb,"bss_index_heap_bytes","Heap used by the postings of both orderings",index_bytes);
+		
+		TreeMap<String,Op> sorted=new TreeMap<String,Op>(ops);
+		sb.append("# HELP bss_query_seconds Latency of the query methods\n# TYPE bss_query_seconds summary\n");
+		for(Map.Entry<String,Op> e:sorted.entrySet()){
+			LatencyHistogram h=e.getValue().latency;
+			for(String q:new String[]{"0.5","0.9","0.99","0.999"})
+				sb.append("bss_query_seconds{op=\"").append(e.getKey()).append("\",quantile=\"").append(q).append("\"} ")
+						.append(h.percentile(100*Double.parseDouble(q))/1e9).append('\n');
+			sb.append("bss_query_seconds_sum{op=\"").append(e.getKey()).append("\"} ").append(h.sum()/1e9).append('\n');
+			sb.append("bss_query_seconds_count{op=\"").append(e.getKey()).append("\"} ").append(h.count()).append('\n');
+		}
+		counter(sb,sorted,"bss_query_max_seconds","gauge","Slowest query",o->o.latency.max()/1e9);
+		counter(sb,sorted,"bss_query_comparisons_total","counter","Comparisons made",o->o.comparisons.sum());
+		counter(sb,sorted,"bss_query_results_total","counter","Documents found",o->o.results.sum());
+		counter(sb,sorted,"bss_query_postings_total","counter","Postings in the lists read",o->o.postings.sum());
+		counter(sb,sorted,"bss_query_postings_bytes_total","counter","Postings bytes read, 8 per posting",o->8*o.postings.sum());
+		counter(sb,sorted,"bss_query_cache_hits_total","counter","Queries answered from the cache",o->o.cache_hits.sum());
+		return sb.toString();
+	}
+	
+	private static void gauge(StringBuilder sb,String name,String help,double value){
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(" gauge\n");
+		sb.append(name).append(' ').append(value).append('\n');
+	}
+	
+	/** One line per operation of the value given by <i>value</i> */
+	private static void counter(StringBuilder sb,Map<String,Op> sorted,String name,String type,String help,Function<Op,Number> value){
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+		for(Map.Entry<String,Op> e:sorted.entrySet())
+			sb.append(name).append("{op=\"").append(e.getKey()).append("\"} ").append(value.apply(e.getValue())).append('\n');
+	}
+	
+	/** Metrics as a JSON object, latencies in microseconds
+	 * @param none
+	 * @return Text */
+	public String json(){
+		StringBuilder sb=new StringBuilder("{\n");
+		sb.append("  \"build\": {\"seconds\": ").append(build_nanos/1e9).append(", \"read_bytes\": ").append(build_bytes)
+				.append(", \"terms\": ").append(index_terms).append(", \"postings\": ").append(index_postings)
+				.append(", \"heap_bytes\": ").append(index_bytes).append("},\n");
+		sb.append("  \"operations\": {");
+		boolean first=true;
+		for(Map.Entry<String,Op> e:new TreeMap<String,Op>(ops).entrySet()){
+			Op o=e.getValue();
+			LatencyHistogram h=o.latency;
+			sb.append(first ? "\n" : ",\n");
+			first=false;
+			sb.append("    ").append(quote(e.getKey())).append(": {\"count\": ").append(h.count())
+					.append(", \"mean_us\": ").append(h.count()==0 ? 0 : h.sum()/1e3/h.count())
+					.append(", \"p50_us\": ").append(h.percentile(50)/1e3)
+					.append(", \"p90_us\": ").append(h.percentile(90)/1e3)
+					.append(", \"p99_us\": ").append(h.percentile(99)/1e3)
+					.append(", \"p999_us\": ").append(h.percentile(99.9)/1e3)
+					.append(", \"max_us\": ").append(h.max()/1e3)
+					.append(", \"comparisons\": ").append(o.comparisons.sum())
+					.append(", \"results\": ").append(o.results.sum())
+					.append(", \"postings\": ").append(o.postings.sum())
+					.append(", \"postings_bytes\": ").append(8*o.postings.sum())
+					.append(", \"cache_hits\": ").append(o.cache_hits.sum()).append('}');
+		}
+		sb.append("\n  },\n  \"slowest\": [");
+		String[] s=slowQueries();
+		for(int i=0;i<s.length;i++)
+			sb.append(i==0 ? "\n    " : ",\n    ").append(quote(s[i]));
+		return sb.append("\n  ]\n}\n").toString();
+	}
+	
+	/** JSON string literal */
+	private static String quote(String s){
+		StringBuilder sb=new StringBuilder(s.length()+2).append('"');
+		for(int i=0;i<s.length();i++){
+			char c=s.charAt(i);
+			if(c=='"' || c=='\\')
+				sb.append('\\').append(c);
+			else if(c<0x20)
+				sb.append(String.format("\\u%04x",(int)c));
+			else
+				sb.append(c);
+		}
+		return sb.append('"').toString();
+	}
+	
+	/** Attributes shown by JMX clients such as jconsole */
+	public interface MBean {
+		/** @return Number of queries recorded, including cache hits */
+		long getQueries();
+		
+		/** @return 99th percentile latency over all operations, in microseconds */
+		double getWorstP99Micros();
+		
+		/** @return Slowest queries, slowest first */
+		String[] getSlowQueries();
+		
+		/** @return All metrics as JSON */
+		String getJson();
+	}
+	
+	/** Register the metrics with the platform MBean server as BooleanSearch:type=QueryMetrics
+	 * @param none
+	 * @return void */
+	public void register() throws JMException{
+		final QueryMetrics m=this;
+		ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(new MBean(){
+			@Override
+			public long getQueries(){
+				long n=0;
+				for(Op o:ops.values())
+					n+=o.latency.count();
+				return n;
+			}
+			
+			@Override
+			public double getWorstP99Micros(){
+				long p=0;
+				for(Op o:ops.values())
+					p=Math.max(p,o.latency.percentile(99));
+				return p/1e3;
+			}
+			
+			@Override
+			public String[] getSlowQueries(){
+				return m.slowQueries();
+			}
+			
+			@Override
+			public String getJson(){
+				return m.json();
+			}
+		},MBean.class),new ObjectName("BooleanSearch:type=QueryMetrics"));
+	}
+}
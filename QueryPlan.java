@@ -0,0 +1,41 @@
+import java.util.*;
+
+/** Evaluation order of the terms of a query, chosen from their document frequencies.
+ * <br> Terms are ordered by increasing postings list size, so intersections start with
+ * the shortest list and unions grow the answer as late as possible. Terms missing from
+ * the index come first: an AND fails on them before any postings are read, and an OR
+ * skips them at no cost. Terms with the same size keep their order from the query. */
+public class QueryPlan {
+	
+	/** Query terms in evaluation order */
+	private String[] terms;
+	
+	/** Plan a query against the given index. Only the sizes of the postings lists are read
+	 * @param queries Query terms, in query order
+	 * @param index Index the query is evaluated on */
+	QueryPlan(String[] queries,Map<String,Postings> index){
+		int n=queries.length;
+		
+		/* Sort keys carry the document frequency in the upper 32 bits and the position in
+		 * the query in the lower 32 bits, so a plain sort of longs is stable */
+		long[] keys=new long[n];
+		for(int i=0;i<n;i++){
+			Postings p=index.get(queries[i]);
+			long df=p==null ? -1 : p.size();
+			keys[i]=(df<<32)|i;
+		}
+		Arrays.sort(keys);
+		
+		terms=new String[n];
+		for(int i=0;i<n;i++)
+			terms[i]=queries[(int)keys[i]];
+	}
+	
+	/** Query terms in evaluation order
+	 * @param none
+	 * @return Terms, missing ones first, then by increasing document frequency */
+	public String[] terms(){
+		return terms.clone();
+	}
+
+}
@@ -0,0 +1,404 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/** Output stage of the query results.
+ * <br> Text is collected in a large buffer that is reused for the whole run, and document IDs
+ * are written digit by digit from the result arrays or postings lists into that buffer, so
+ * no String of a whole result is ever built.
+ * <br> The writer works in one of three modes: <br> 1. Direct: full buffers are written to
+ * the target on the calling thread
+ * <br> 2. Asynchronous, see {@link #setAsync(boolean)}: full buffers and the result arrays
+ * themselves are handed to a background thread through a bounded queue. The document IDs are
+ * formatted and written by that thread, the query thread only blocks when the queue is full
+ * <br> 3. Deferred, without a target: the output is kept as buffers and result arrays until
+ * {@link #transferTo(ResultWriter)} passes it on, for queries evaluated out of order
+ * <br> A writer is used by one thread at a time. */
+public class ResultWriter extends Writer {
+	
+	/** Size of the reused text buffer */
+	private static final int BUFFER_CHARS=1<<16;
+	
+	/** Initial buffer of a deferred writer, which usually holds the output of a single query */
+	private static final int DEFERRED_CHARS=1<<10;
+	
+	/** Buffers and results waiting for the background thread */
+	private static final int QUEUE_ITEMS=64;
+	
+	/** Room for ", " and the longest int */
+	private static final int DOC_CHARS=13;
+	
+	/** Text written before a result */
+	private static class Chunk {
+		final char[] chars;
+		final int n;
+		
+		Chunk(char[] chars,int n){
+			this.chars=chars;
+			this.n=n;
+		}
+	}
+	
+	/** Result written as document IDs, either the first n entries of an array or a whole list */
+	private static class Docs {
+		final int[] docs;
+		final int n;
+		final Postings list;
+		
+		Docs(int[] docs,int n,Postings list){
+			this.docs=docs;
+			this.n=n;
+			this.list=list;
+		}
+	}
+	
+	/** Queue entries telling the background thread to flush the target and to stop */
+	private static final Object FLUSH=new Object(),END=new Object();
+	
+	/** Receives the output, <i>null</i> for a deferred writer */
+	private Writer target;
+	
+	private char[] buf;
+	private int len=0;
+	
+	/** Output of a deferred writer */
+	private ArrayList<Object> items;
+	
+	/** Asynchronous mode: queue to the background thread, the buffers it has written and
+	 * the direct writer it writes through. The first error of the thread is kept and thrown
+	 * by the next call on this writer */
+	private ArrayBlockingQueue<Object> queue;
+	private ArrayBlockingQueue<char[]> free;
+	private ResultWriter sink;
+	private Thread thread;
+	private volatile IOException failure;
+	
+	/** Direct writer
+	 * @param target Writer receiving the output, closed with this writer */
+	ResultWriter(Writer target){
+		this.target=target;
+		this.buf=new char[BUFFER_CHARS];
+	}
+	
+	/** Deferred writer, see {@link #transferTo(ResultWriter)} */
+	ResultWriter(){
+		this.items=new ArrayList<Object>();
+		this.buf=new char[DEFERRED_CHARS];
+	}
+	
+	/** Move the writing to a background thread, or back to the calling thread.
+	 * <br> Output written so far keeps its place. Turning it off waits for the thread to
+	 * write everything queued
+	 * @param async Set to true to write on a background thread
+	 * @return void
+	 * @throws IOException if the output can not be written */
+	public void setAsync(boolean async) throws IOException{
+		if(target==null || async==(queue!=null))
+			return;
+		if(async){
+			emit();
+			sink=new ResultWriter(target);
+			queue=new ArrayBlockingQueue<Object>(QUEUE_ITEMS);
+			free=new ArrayBlockingQueue<char[]>(QUEUE_ITEMS);
+			thread=new Thread(new Runnable(){
+				@Override
+				public void run(){
+					drain();
+				}
+			},"ResultWriter");
+			thread.setDaemon(true);
+			thread.start();
+		}else{
+			stop();
+			sink.emit();
+			sink=null;
+			queue=null;
+			free=null;
+		}
+	}
+	
+	/** Loop of the background thread */
+	private void drain(){
+		while(true){
+			Object o;
+			try{
+				o=queue.take();
+			}catch(InterruptedException e){
+				failure=new InterruptedIOException("ResultWriter interrupted");
+				return;
+			}
+			if(o==END)
+				return;
+			if(failure!=null)
+				continue;					//Keep taking so the query thread never blocks for good
+			try{
+				if(o==FLUSH){
+					sink.flush();
+				}else if(o instanceof Chunk){
+					Chunk c=(Chunk)o;
+					sink.write(c.chars,0,c.n);
+					if(c.chars.length==BUFFER_CHARS)
+						free.offer(c.chars);
+				}else{
+					sink.docs((Docs)o);
+				}
+			}catch(IOException e){
+				failure=e;
+			}
+		}
+	}
+	
+	/** Wait until the background thread has written everything queued and stop it */
+	private void stop() throws IOException{
+		emit();
+		put(END);
+		try{
+			thread.join();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while writing the results");
+		}
+		thread=null;
+		check();
+	}
+	
+	private void check() throws IOException{
+		if(failure!=null)
+			throw failure;
+	}
+	
+	/** Hand an entry to the background thread, waiting while the queue is full */
+	private void put(Object o) throws IOException{
+		check();
+		try{
+			queue.put(o);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while writing the results");
+		}
+	}
+	
+	/** Pass the buffered text on and start an empty buffer */
+	private void emit() throws IOException{
+		if(len==0)
+			return;
+		if(queue!=null){
+			put(new Chunk(buf,len));
+			buf=free.poll();
+			if(buf==null)
+				buf=new char[BUFFER_CHARS];
+		}else if(target!=null){
+			target.write(buf,0,len);
+		}else{
+			items.add(new Chunk(Arrays.copyOf(buf,len),len));
+		}
+		len=0;
+	}
+	
+	/** Make room for <i>n</i> more characters, a deferred buffer grows up to the full size first */
+	private void ensure(int n) throws IOException{
+		if(len+n<=buf.length)
+			return;
+		if(target==null && buf.length<BUFFER_CHARS)
+			buf=Arrays.copyOf(buf,Math.min(BUFFER_CHARS,Math.max(2*buf.length,len+n)));
+		else
+			emit();
+	}
+	
+	@Override
+	public void write(char[] c,int off,int n) throws IOException{
+		if(n>=BUFFER_CHARS && target!=null && queue==null){
+			emit();
+			target.write(c,off,n);
+			return;
+		}
+		while(n>0){
+			ensure(Math.min(n,BUFFER_CHARS));
+			int m=Math.min(n,buf.length-len);
+			System.arraycopy(c,off,buf,len,m);
+			len+=m;
+			off+=m;
+			n-=m;
+		}
+	}
+	
+	@Override
+	public void write(String s,int off,int n) throws IOException{
+		while(n>0){
+			ensure(Math.min(n,BUFFER_CHARS));
+			int m=Math.min(n,buf.length-len);
+			s.getChars(off,off+m,buf,len);
+			len+=m;
+			off+=m;
+			n-=m;
+		}
+	}
+	
+	@Override
+	public void write(int c) throws IOException{
+		ensure(1);
+		buf[len++]=(char)c;
+	}
+	
+	/** Write document IDs separated by ", ".
+	 * <br> An asynchronous or deferred writer keeps the array until it is written,
+	 * so the caller must not change it afterwards
+	 * @param docs Document IDs
+	 * @param n Number of entries to write
+	 * @return void
+	 * @throws IOException if the output can not be written */
+	public void writeDocs(int[] docs,int n) throws IOException{
+		docs(new Docs(docs,n,null));
+	}
+	
+	/** Write the document IDs of a postings list, in list order, separated by ", ".
+	 * <br> An asynchronous or deferred writer reads the list when it is written
+	 * @param list Postings list, not changed afterwards
+	 * @return void
+	 * @throws IOException if the output can not be written */
+	public void writeDocs(Postings list) throws IOException{
+		docs(new Docs(null,0,list));
+	}
+	
+	private void docs(Docs d) throws IOException{
+		if(queue!=null){
+			emit();
+			put(d);
+		}else if(target==null){
+			emit();
+			items.add(d);
+		}else if(d.list==null){
+			int[] docs=d.docs;
+			for(int i=0;i<d.n;i++){
+				if(len+DOC_CHARS>buf.length)
+					emit();
+				if(i!=0){
+					buf[len++]=',';
+					buf[len++]=' ';
+				}
+				len=digits(buf,len,docs[i]);
+			}
+		}else{
+			PostingsIterator it=d.list.iterator();
+			boolean first=true;
+			for(int doc=it.nextDoc();doc!=PostingsIterator.NO_MORE_DOCS;doc=it.nextDoc()){
+				if(len+DOC_CHARS>buf.length)
+					emit();
+				if(!first){
+					buf[len++]=',';
+					buf[len++]=' ';
+				}
+				first=false;
+				len=digits(buf,len,doc);
+			}
+		}
+	}
+	
+	/** Write the decimal digits of a value
+	 * @return Position after the last digit */
+	private static int digits(char[] b,int p,int v){
+		if(v<0){
+			if(v==Integer.MIN_VALUE){
+				"-2147483648".getChars(0,11,b,p);
+				return p+11;
+			}
+			b[p++]='-';
+			v=-v;
+		}
+		int end=p+1;
+		for(int x=v;x>=10;x/=10)
+			end++;
+		int q=end;
+		do{
+			b[--q]=(char)('0'+v%10);
+			v/=10;
+		}while(v!=0);
+		return end;
+	}
+	
+	/** Write document IDs to any writer, through a small local buffer
+	 * @param out Writer
+	 * @param docs Document IDs
+	 * @param n Number of entries to write
+	 * @return void */
+	static void writeDocs(Writer out,int[] docs,int n) throws IOException{
+		char[] b=new char[1024];
+		int p=0;
+		for(int i=0;i<n;i++){
+			if(p+DOC_CHARS>b.length){
+				out.write(b,0,p);
+				p=0;
+			}
+			if(i!=0){
+				b[p++]=',';
+				b[p++]=' ';
+			}
+			p=digits(b,p,docs[i]);
+		}
+		out.write(b,0,p);
+	}
+	
+	/** Pass the output of a deferred writer on, in the order it was written
+	 * @param out Writer receiving the output
+	 * @return void
+	 * @throws IOException if the output can not be written */
+	public void transferTo(ResultWriter out) throws IOException{
+		replay(out);
+		items.clear();
+	}
+	
+	private void replay(ResultWriter out) throws IOException{
+		emit();
+		for(Object o:items){
+			if(o instanceof Chunk)
+				out.write(((Chunk)o).chars,0,((Chunk)o).n);
+			else
+				out.docs((Docs)o);
+		}
+	}
+	
+	/** Output of a deferred writer as text, built only when the output has no {@link ResultWriter} to be transferred to
+	 * @param none
+	 * @return Output written so far */
+	@Override
+	public String toString(){
+		if(target!=null)
+			return super.toString();
+		StringWriter s=new StringWriter();
+		try{
+			ResultWriter w=new ResultWriter(s);
+			replay(w);
+			w.flush();
+		}catch(IOException e){
+			throw new UncheckedIOException(e);
+		}
+		return s.toString();
+	}
+	
+	/** Write the buffered output, on the background thread in asynchronous mode
+	 * @param none
+	 * @return void */
+	@Override
+	public void flush() throws IOException{
+		if(target==null)
+			return;
+		emit();
+		if(queue!=null)
+			put(FLUSH);
+		else
+			target.flush();
+	}
+	
+	/** Write everything, stop the background thread and close the target
+	 * @param none
+	 * @return void */
+	@Override
+	public void close() throws IOException{
+		if(target==null)
+			return;
+		if(queue!=null)
+			setAsync(false);
+		emit();
+		target.close();
+	}
+}
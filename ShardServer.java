@@ -0,0 +1,157 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/** Serves one shard of a {@link ShardedIndex} to coordinators on the loopback interface.
+ * <br> The server reads the whole postings file but keeps only the postings of the documents
+ * of its shard. Once loaded it writes "READY port" on the first line of its output. Every
+ * connection is served by its own thread and the process ends when its standard input is closed,
+ * so it does not outlive the coordinator that started it.
+ * <br> Requests are a one byte operation followed by its arguments, written with
+ * DataOutputStream: AND and OR take the number of terms and the terms, POSTINGS takes nothing
+ * and QUIT closes the connection. An answer is the comparisons made, the number of postings of
+ * every term, the number of documents and the Document IDs as gaps to the previous one.
+ * <br><br> Usage: java ShardServer &lt;postings_file&gt; &lt;shard&gt; &lt;shards&gt; [range] [port]
+ * <br> range is the number of documents per shard for range partitioning, 0 (the default) partitions by hash.
+ * Port 0, the default, picks a free port. */
+public class ShardServer {
+	
+	/** Operations of the protocol */
+	static final int AND=1,OR=2,POSTINGS=3,QUIT=4;
+	
+	/** Start of the line announcing the port */
+	static final String READY="READY ";
+	
+	private Map<String,Postings> daat;
+	
+	/** @param daat Document ID ordered postings of the documents of the shard */
+	ShardServer(Map<String,Postings> daat){
+		this.daat=daat;
+	}
+	
+	public static void main(String[] ip) throws Exception{
+		if(ip.length<3){
+			System.out.println("Usage: java ShardServer <postings_file> <shard> <shards> [range] [port]");
+			System.exit(-1);
+		}
+		int shard=Integer.parseInt(ip[1]);
+		ShardedIndex.Partition partition=new ShardedIndex.Partition(Integer.parseInt(ip[2]),ip.length>3 ? Integer.parseInt(ip[3]) : 0);
+		int port=ip.length>4 ? Integer.parseInt(ip[4]) : 0;
+		
+		ShardServer server=new ShardServer(load(ip[0],shard,partition));
+		final ServerSocket socket=new ServerSocket(port,50,InetAddress.getLoopbackAddress());
+		System.out.println(READY+socket.getLocalPort());
+		System.out.flush();
+		
+		//Stop once the coordinator is gone
+		Thread watch=new Thread(new Runnable(){
+			@Override
+			public void run(){
+				try{
+					while(System.in.read()>=0)
+						;
+				}catch(IOException e){
+					//Treated like the end of the input
+				}
+				System.exit(0);
+			}
+		},"ShardServer.stdin");
+		watch.setDaemon(true);
+		watch.start();
+		
+		while(true){
+			final Socket s=socket.accept();
+			Thread t=new Thread(new Runnable(){
+				@Override
+				public void run(){
+					server.serve(s);
+				}
+			},"ShardServer");
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+	
+	/** Read the postings of the documents of one shard from a postings file
+	 * @param file Postings file
+	 * @param shard Number of the shard
+	 * @param partition Assignment of documents to shards
+	 * @return Document ID ordered index of the shard */
+	static Map<String,Postings> load(String file,int shard,ShardedIndex.Partition partition) throws Exception{
+		return ShardedIndex.read(file,partition,shard,null).get(shard);
+	}
+	
+	/** Answer the requests of one connection until it is closed */
+	private void serve(Socket s){
+		try{
+			s.setTcpNoDelay(true);
+			DataInputStream in=new DataInputStream(new BufferedInputStream(s.getInputStream(),1<<16));
+			DataOutputStream out=new DataOutputStream(new BufferedOutputStream(s.getOutputStream(),1<<16));
+			while(true){
+				int op=in.read();
+				if(op<0 || op==QUIT)
+					break;
+				if(op==POSTINGS){
+					out.writeLong(new ShardedIndex.Local(daat).postings());
+				}else if(op==AND || op==OR){
+					String[] terms=new String[in.readInt()];
+					for(int i=0;i<terms.length;i++)
+						terms[i]=in.readUTF();
+					writeResult(out,op==AND ? ShardedIndex.and(daat,terms) : ShardedIndex.or(daat,terms));
+				}else{
+					throw new IOException("Unknown operation "+op);
+				}
+				out.flush();
+			}
+		}catch(IOException e){
+			System.err.println("Shard connection failed: "+e.getMessage());
+		}finally{
+			try{
+				s.close();
+			}catch(IOException e){
+				//Already closed
+			}
+		}
+	}
+	
+	/** Write an answer, Document IDs as variable length gaps since they are increasing */
+	static void writeResult(DataOutputStream out,ShardedIndex.Result r) throws IOException{
+		out.writeLong(r.comparisons);
+		out.writeInt(r.dfs.length);
+		for(int df:r.dfs)
+			out.writeInt(df);
+		out.writeInt(r.n);
+		int prev=0;
+		for(int i=0;i<r.n;i++){
+			int gap=r.docs[i]-prev;
+			prev=r.docs[i];
+			while((gap&~0x7f)!=0){
+				out.write((gap&0x7f)|0x80);
+				gap>>>=7;
+			}
+			out.write(gap);
+		}
+	}
+	
+	/** Read an answer written by {@link #writeResult(DataOutputStream,ShardedIndex.Result)} */
+	static ShardedIndex.Result readResult(DataInputStream in) throws IOException{
+		long comparisons=in.readLong();
+		int[] dfs=new int[in.readInt()];
+		for(int i=0;i<dfs.length;i++)
+			dfs[i]=in.readInt();
+		int n=in.readInt();
+		int[] docs=new int[n];
+		int prev=0;
+		for(int i=0;i<n;i++){
+			int gap=0,shift=0,b;
+			do{
+				b=in.readUnsignedByte();
+				gap|=(b&0x7f)<<shift;
+				shift+=7;
+			}while((b&0x80)!=0);
+			prev+=gap;
+			docs[i]=prev;
+		}
+		return new ShardedIndex.Result(docs,n,comparisons,dfs);
+	}
+}
@@ -0,0 +1,504 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Index partitioned by Document ID into shards, queried by scatter-gather.
+ * <br> Every document belongs to exactly one shard, chosen by a hash of its ID or by ID range,
+ * see {@link Partition}. Each shard holds the document ID ordered postings of its documents
+ * and evaluates AND and OR queries over them on its own. The coordinator sends a query to all
+ * shards at once and merges their sorted answers, which are disjoint, into one sorted answer.
+ * <br> Shards either live in this JVM or in separate local JVM processes started from the same
+ * class path, see {@link ShardServer}. A process reads the postings file itself and keeps only
+ * its own documents, so the shards together can hold more than one heap.
+ * <br> Queries can be sent by several threads at once. */
+public class ShardedIndex {
+	
+	/** Assignment of documents to shards */
+	public static class Partition {
+		/** Number of shards */
+		public final int shards;
+		
+		/** Documents per shard when partitioning by range, 0 when partitioning by hash */
+		public final int range;
+		
+		/** @param shards Number of shards
+		 * @param range Documents per shard for range partitioning, 0 to partition by hash */
+		Partition(int shards,int range){
+			if(shards<1 || range<0)
+				throw new IllegalArgumentException("Invalid partition: "+shards+" shards, range "+range);
+			this.shards=shards;
+			this.range=range;
+		}
+		
+		/** Range partition covering the documents of an index evenly
+		 * @param daat Index ordered by Document ID
+		 * @param shards Number of shards
+		 * @return Partition with consecutive Document ID ranges, the last one open ended */
+		static Partition byRange(Map<String,Postings> daat,int shards){
+			int max=0;
+			for(Postings p:daat.values())
+				if(p.size()>0)
+					max=Math.max(max,p.doc(p.size()-1));
+			return byRange(max,shards);
+		}
+		
+		/** Range partition of the Document IDs up to a largest one, see {@link ShardedIndex#scan(String,TopK)}
+		 * @param max Largest Document ID
+		 * @param shards Number of shards
+		 * @return Partition with consecutive Document ID ranges, the last one open ended */
+		static Partition byRange(int max,int shards){
+			return new Partition(shards,max/shards+1);
+		}
+		
+		/** Shard of a document
+		 * @param doc Document ID
+		 * @return Shard number between 0 and shards-1 */
+		public int shard(int doc){
+			if(range>0)
+				return Math.min(doc/range,shards-1);
+			return Integer.remainderUnsigned(doc*0x9E3779B1,shards);		//Fibonacci hashing spreads strided IDs
+		}
+		
+		/** @return "hash" or "range of N" */
+		@Override
+		public String toString(){
+			return range>0 ? "range of "+range : "hash";
+		}
+	}
+	
+	/** Answer of one shard, or of all shards after merging */
+	public static class Result {
+		/** Document IDs in increasing order, the first n entries are valid */
+		public final int[] docs;
+		public final int n;
+		
+		/** Comparisons made */
+		public final long comparisons;
+		
+		/** Number of postings of every query term */
+		public final int[] dfs;
+		
+		Result(int[] docs,int n,long comparisons,int[] dfs){
+			this.docs=docs;
+			this.n=n;
+			this.comparisons=comparisons;
+			this.dfs=dfs;
+		}
+	}
+	
+	/** One partition of the index */
+	public interface Shard {
+		/** Documents containing all terms
+		 * @param terms Query terms
+		 * @return Answer of this shard */
+		Result and(String[] terms) throws IOException;
+		
+		/** Documents containing any of the terms
+		 * @param terms Query terms
+		 * @return Answer of this shard */
+		Result or(String[] terms) throws IOException;
+		
+		/** @return Number of postings held by the shard */
+		long postings() throws IOException;
+		
+		/** Release the shard */
+		void close();
+	}
+	
+	/** Shard held in this JVM */
+	static class Local implements Shard {
+		private Map<String,Postings> daat;
+		
+		/** @param daat Document ID ordered postings of the documents of the shard */
+		Local(Map<String,Postings> daat){
+			this.daat=daat;
+		}
+		
+		@Override
+		public Result and(String[] terms){
+			return ShardedIndex.and(daat,terms);
+		}
+		
+		@Override
+		public Result or(String[] terms){
+			return ShardedIndex.or(daat,terms);
+		}
+		
+		@Override
+		public long postings(){
+			long n=0;
+			for(Postings p:daat.values())
+				n+=p.size();
+			return n;
+		}
+		
+		@Override
+		public void close(){
+			daat=null;
+		}
+	}
+	
+	/** Shard served by a {@link ShardServer} over a loopback socket. Requests on one
+	 * connection are sent one at a time */
+	static class Remote implements Shard {
+		private Socket socket;
+		private DataInputStream in;
+		private DataOutputStream out;
+		
+		/** @param port Port of the shard server on the loopback interface */
+		Remote(int port) throws IOException{
+			socket=new Socket(InetAddress.getLoopbackAddress(),port);
+			socket.setTcpNoDelay(true);
+			in=new DataInputStream(new BufferedInputStream(socket.getInputStream(),1<<16));
+			out=new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(),1<<16));
+		}
+		
+		@Override
+		public synchronized Result and(String[] terms) throws IOException{
+			return query(ShardServer.AND,terms);
+		}
+		
+		@Override
+		public synchronized Result or(String[] terms) throws IOException{
+			return query(ShardServer.OR,terms);
+		}
+		
+		private Result query(int op,String[] terms) throws IOException{
+			out.writeByte(op);
+			out.writeInt(terms.length);
+			for(String t:terms)
+				out.writeUTF(t);
+			out.flush();
+			return ShardServer.readResult(in);
+		}
+		
+		@Override
+		public synchronized long postings() throws IOException{
+			out.writeByte(ShardServer.POSTINGS);
+			out.flush();
+			return in.readLong();
+		}
+		
+		@Override
+		public synchronized void close(){
+			try{
+				out.writeByte(ShardServer.QUIT);
+				out.flush();
+				socket.close();
+			}catch(IOException e){
+				//The server is gone already
+			}
+		}
+	}
+	
+	private Partition partition;
+	private Shard[] shards;
+	private List<Process> processes=new ArrayList<Process>();
+	
+	/** Sends the query to every shard, one thread per shard */
+	private ExecutorService pool;
+	
+	private ShardedIndex(Partition partition){
+		this.partition=partition;
+		this.shards=new Shard[partition.shards];
+		this.pool=Executors.newFixedThreadPool(partition.shards,new ThreadFactory(){
+			@Override
+			public Thread newThread(Runnable r){
+				Thread t=new Thread(r,"ShardedIndex");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+	
+	/** Split an index into shards held in this JVM
+	 * @param daat Index ordered by Document ID
+	 * @param partition Assignment of documents to shards
+	 * @return Sharded index */
+	static ShardedIndex local(Map<String,Postings> daat,Partition partition){
+		ShardedIndex s=new ShardedIndex(partition);
+		List<Map<String,Postings>> parts=new ArrayList<Map<String,Postings>>();
+		for(int i=0;i<partition.shards;i++)
+			parts.add(new HashMap<String,Postings>());
+		int[][] docs=new int[partition.shards][16],tfs=new int[partition.shards][16];
+		int[] n=new int[partition.shards];
+		for(Map.Entry<String,Postings> e:daat.entrySet()){
+			Arrays.fill(n,0);
+			PostingsIterator it=e.getValue().iterator();
+			for(int d=it.nextDoc();d!=PostingsIterator.NO_MORE_DOCS;d=it.nextDoc()){
+				int i=partition.shard(d);
+				if(n[i]==docs[i].length){
+					docs[i]=Arrays.copyOf(docs[i],2*n[i]);
+					tfs[i]=Arrays.copyOf(tfs[i],2*n[i]);
+				}
+				docs[i][n[i]]=d;
+				tfs[i][n[i]++]=it.tf();
+			}
+			for(int i=0;i<partition.shards;i++)
+				if(n[i]>0)
+					parts.get(i).put(e.getKey(),new Postings(Arrays.copyOf(docs[i],n[i]),Arrays.copyOf(tfs[i],n[i])));
+		}
+		for(int i=0;i<partition.shards;i++)
+			s.shards[i]=new Local(parts.get(i));
+		return s;
+	}
+	
+	/** Read the shards held in this JVM straight from a postings file, in one pass and
+	 * without building the whole index first
+	 * @param file Postings file
+	 * @param partition Assignment of documents to shards
+	 * @param top Top terms to offer every term to, or <i>null</i>
+	 * @return Sharded index
+	 * @throws Exception if the file can not be read or parsed */
+	static ShardedIndex load(String file,Partition partition,TopK top) throws Exception{
+		ShardedIndex s=new ShardedIndex(partition);
+		List<Map<String,Postings>> parts=read(file,partition,-1,top);
+		for(int i=0;i<partition.shards;i++)
+			s.shards[i]=new Local(parts.get(i));
+		return s;
+	}
+	
+	/** Read the postings of the documents of some shards from a postings file. Only the
+	 * postings of the shards kept are stored, a list at a time
+	 * @param file Postings file
+	 * @param partition Assignment of documents to shards
+	 * @param only Shard to keep, -1 to keep every shard
+	 * @param top Top terms to offer every term to with the size of its whole list, or <i>null</i>
+	 * @return Document ID ordered index of every shard, the shards not kept stay empty
+	 * @throws Exception if the file can not be read or parsed */
+	static List<Map<String,Postings>> read(String file,final Partition partition,final int only,final TopK top) throws Exception{
+		final List<Map<String,Postings>> parts=new ArrayList<Map<String,Postings>>();
+		for(int i=0;i<partition.shards;i++)
+			parts.add(new HashMap<String,Postings>());
+		final int[][] docs=new int[partition.shards][16],tfs=new int[partition.shards][16];
+		final int[] n=new int[partition.shards];
+		new PostingsReader(file).read(new PostingsReader.Sink(){
+			@Override
+			public void term(String term,int[] d,int[] t,int m){
+				if(top!=null)
+					top.offer(term,m);
+				Arrays.fill(n,0);
+				for(int j=0;j<m;j++){
+					int i=partition.shard(d[j]);
+					if(only>=0 && i!=only)
+						continue;
+					if(n[i]==docs[i].length){
+						docs[i]=Arrays.copyOf(docs[i],2*n[i]);
+						tfs[i]=Arrays.copyOf(tfs[i],2*n[i]);
+					}
+					docs[i][n[i]]=d[j];
+					tfs[i][n[i]++]=t[j];
+				}
+				for(int i=0;i<partition.shards;i++)
+					if(n[i]>0)
+						parts.get(i).put(term,SortArr.sort(docs[i],tfs[i],n[i]).asc);
+			}
+		});
+		return parts;
+	}
+	
+	/** Read a postings file without keeping any postings, for the coordinator of shards in
+	 * other processes and for range partitioning before the shards are read
+	 * @param file Postings file
+	 * @param top Top terms to offer every term to, or <i>null</i>
+	 * @return Largest Document ID, 0 for an empty file
+	 * @throws Exception if the file can not be read or parsed */
+	static int scan(String file,final TopK top) throws Exception{
+		final int[] max={0};
+		new PostingsReader(file).read(new PostingsReader.Sink(){
+			@Override
+			public void term(String term,int[] d,int[] t,int m){
+				if(top!=null)
+					top.offer(term,m);
+				for(int j=0;j<m;j++)
+					max[0]=Math.max(max[0],d[j]);
+			}
+		});
+		return max[0];
+	}
+	
+	/** Start one {@link ShardServer} process per shard and connect to them. The processes
+	 * read the postings file at the same time, each keeping only its own documents
+	 * @param file Postings file
+	 * @param partition Assignment of documents to shards
+	 * @return Sharded index, {@link #close()} stops the processes
+	 * @throws IOException if a process can not be started or does not come up */
+	static ShardedIndex spawn(String file,Partition partition) throws IOException{
+		ShardedIndex s=new ShardedIndex(partition);
+		String java=System.getProperty("java.home")+File.separator+"bin"+File.separator+"java";
+		try{
+			for(int i=0;i<partition.shards;i++){
+				ProcessBuilder pb=new ProcessBuilder(java,"-cp",System.getProperty("java.class.path"),"ShardServer",
+						file,String.valueOf(i),String.valueOf(partition.shards),String.valueOf(partition.range),"0");
+				pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+				s.processes.add(pb.start());
+			}
+			//Every server writes its port on the first line of its output once it is loaded
+			for(int i=0;i<partition.shards;i++){
+				BufferedReader r=new BufferedReader(new InputStreamReader(s.processes.get(i).getInputStream(),"UTF-8"));
+				String line=r.readLine();
+				if(line==null || !line.startsWith(ShardServer.READY))
+					throw new IOException("Shard "+i+" did not start");
+				s.shards[i]=new Remote(Integer.parseInt(line.substring(ShardServer.READY.length()).trim()));
+			}
+			return s;
+		}catch(IOException e){
+			s.close();
+			throw e;
+		}
+	}
+	
+	/** Documents containing all terms, from all shards
+	 * @param terms Query terms
+	 * @return Merged answer, with the comparisons and postings counts summed over the shards
+	 * @throws IOException if a shard fails */
+	public Result and(final String[] terms) throws IOException{
+		return gather(terms,true);
+	}
+	
+	/** Documents containing any of the terms, from all shards
+	 * @param terms Query terms
+	 * @return Merged answer, with the comparisons and postings counts summed over the shards
+	 * @throws IOException if a shard fails */
+	public Result or(final String[] terms) throws IOException{
+		return gather(terms,false);
+	}
+	
+	private Result gather(final String[] terms,final boolean and) throws IOException{
+		List<Future<Result>> futures=new ArrayList<Future<Result>>(shards.length);
+		for(final Shard shard:shards)
+			futures.add(pool.submit(new Callable<Result>(){
+				@Override
+				public Result call() throws IOException{
+					return and ? shard.and(terms) : shard.or(terms);
+				}
+			}));
+		
+		Result[] parts=new Result[shards.length];
+		try{
+			for(int i=0;i<parts.length;i++)
+				parts[i]=futures.get(i).get();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the shards");
+		}catch(ExecutionException e){
+			throw e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(e.getCause());
+		}
+		return merge(parts,terms.length,partition.range>0);
+	}
+	
+	/** Merge the disjoint sorted answers of the shards
+	 * @param ordered Set to true if every shard only holds documents after those of the shards before it */
+	static Result merge(Result[] parts,int terms,boolean ordered){
+		int total=0;
+		long comparisons=0;
+		int[] dfs=new int[terms];
+		for(Result r:parts){
+			total+=r.n;
+			comparisons+=r.comparisons;
+			for(int t=0;t<terms;t++)
+				dfs[t]+=r.dfs[t];
+		}
+		int[] docs=new int[total];
+		
+		if(ordered){
+			//Range shards follow each other
+			int n=0;
+			for(Result r:parts){
+				System.arraycopy(r.docs,0,docs,n,r.n);
+				n+=r.n;
+			}
+		}else{
+			//Take the smallest head of the few shard answers until all are used up
+			int[] pos=new int[parts.length];
+			for(int n=0;n<total;n++){
+				int best=-1;
+				for(int i=0;i<parts.length;i++)
+					if(pos[i]<parts[i].n && (best<0 || parts[i].docs[pos[i]]<parts[best].docs[pos[best]]))
+						best=i;
+				docs[n]=parts[best].docs[pos[best]++];
+			}
+		}
+		return new Result(docs,total,comparisons,dfs);
+	}
+	
+	/** Intersect the postings of the terms with the iterator evaluation of {@link Functions#DAAT_AND(String[])}
+	 * @param daat Index ordered by Document ID
+	 * @param terms Query terms
+	 * @return Answer, empty if a term is missing */
+	static Result and(Map<String,Postings> daat,String[] terms){
+		int[] dfs=dfs(daat,terms);
+		List<Postings> lists=new ArrayList<Postings>(terms.length);
+		for(String t:terms){
+			Postings p=daat.get(t);
+			if(p==null)
+				return new Result(new int[0],0,0,dfs);
+			lists.add(p);
+		}
+		if(lists.isEmpty())
+			return new Result(new int[0],0,0,dfs);
+		Functions.IteratorMerge m=new Functions.IteratorMerge();
+		int[] answers=new int[lists.get(0).size()];
+		int n=m.and(lists,answers);
+		return new Result(answers,n,m.comparisons,dfs);
+	}
+	
+	/** Unite the postings of the terms with the iterator evaluation of {@link Functions#DAAT_OR(String[])}
+	 * @param daat Index ordered by Document ID
+	 * @param terms Query terms
+	 * @return Answer, missing terms are skipped */
+	static Result or(Map<String,Postings> daat,String[] terms){
+		int[] dfs=dfs(daat,terms);
+		List<Postings> lists=new ArrayList<Postings>(terms.length);
+		int capacity=0;
+		for(String t:terms){
+			Postings p=daat.get(t);
+			if(p!=null){
+				lists.add(p);
+				capacity+=p.size();
+			}
+		}
+		Functions.IteratorMerge m=new Functions.IteratorMerge();
+		int[] answers=new int[capacity];
+		int n=m.or(lists,answers,null);
+		return new Result(answers,n,m.comparisons,dfs);
+	}
+	
+	private static int[] dfs(Map<String,Postings> daat,String[] terms){
+		int[] dfs=new int[terms.length];
+		for(int t=0;t<terms.length;t++){
+			Postings p=daat.get(terms[t]);
+			dfs[t]=p==null ? 0 : p.size();
+		}
+		return dfs;
+	}
+	
+	/** Partitioning, placement and size of the shards
+	 * @param none
+	 * @return Human readable summary */
+	public String report(){
+		StringBuilder sb=new StringBuilder("Sharded index: "+shards.length+" shards by "+partition
+				+(processes.isEmpty() ? " in this process" : " in "+processes.size()+" processes")+", postings per shard:");
+		for(int i=0;i<shards.length;i++){
+			try{
+				sb.append(i==0 ? " " : ", ").append(shards[i].postings());
+			}catch(IOException e){
+				sb.append(i==0 ? " " : ", ").append("unavailable");
+			}
+		}
+		return sb.toString();
+	}
+	
+	/** Close the shards and stop their processes
+	 * @param none
+	 * @return void */
+	public void close(){
+		for(Shard s:shards)
+			if(s!=null)
+				s.close();
+		for(Process p:processes)
+			p.destroy();
+		pool.shutdownNow();
+	}
+}
@@ -1,72 +1,149 @@
 import java.util.*;
 
-/** Class to sort Strings based on term frequency and document ID */
+/** Class to sort postings based on term frequency and document ID */
 public class SortArr {
 	
+	/** Both orderings of one postings list entry */
+	public static class Sorted {
+		/** Postings in ascending order of Document IDs */
+		public final Postings asc;
 		
-	/** Method to sort terms in ascending order of Document IDs 
-	 * @param posting Enter the posting list entry
-	 * @return A sorted LinkedList of Strings */
-	public static LinkedList<String> sortAsc(String posting){
-		
-		/** Array to hold strings to be sorted */
-		String[] data=posting.split(", ");				//Creating an array of input strings
+		/** Postings in descending order of term Frequencies */
+		public final Postings dsc;
 		
-		//Sorting data by using Bubble Sort
-		for(int i=0;i<data.length;i++){
-			for(int j=0;j<data.length-1;j++){
-				String[] arr1=data[j].split("/");
-				String[] arr2=data[j+1].split("/");
-				
-				if(Integer.parseInt(arr1[0])>Integer.parseInt(arr2[0])){
-					String tmp=data[j+1];
-					data[j+1]=data[j];
-					data[j]=tmp;
-				}
-			}			
-		}		
-		/** Create a Linked list corresponding to given data */
-		LinkedList<String> l=new LinkedList<String>();
-		for(int i=0;i<data.length;i++){
-			String[] t=data[i].split("/");
-			l.add(t[0]);
+		Sorted(Postings asc,Postings dsc){
+			this.asc=asc;
+			this.dsc=dsc;
 		}
-		return(l);		
 	}
 	
-	/** Method to sort terms in descending order of term Frequencies 
-	 * @param posting Enter the posting list entry
-	 * @return A sorted LinkedList of Strings */	 
-	public static LinkedList<String> sortDsc(String posting){
+	/** Parse the postings list entry once and build both sort orders from it.
+	 * Entries with equal keys keep their order from the postings file.
+	 * @param posting Enter the posting list entry, "docId/tf" pairs separated by ", "
+	 * @return Postings sorted by Document ID and by term Frequency */
+	public static Sorted sort(String posting){
 		
-		/** Array to hold strings to be sorted */
-		String[] data=posting.split(", ");				//Creating an array of input strings
+		//Parse every "docId/tf" pair into primitives
+		int n=count(posting);
+		int[] docs=new int[n];
+		int[] tfs=new int[n];
+		parse(posting,docs,tfs);
 		
-		//Sorting data by using Bubble Sort
-		for(int i=0;i<data.length;i++){
-			for(int j=0;j<data.length-1;j++){
-				String[] arr1=data[j].split("/");
-				String[] arr2=data[j+1].split("/");
-				
-				if(Integer.parseInt(arr1[1])<Integer.parseInt(arr2[1])){
-					String tmp=data[j+1];
-					data[j+1]=data[j];
-					data[j]=tmp;
-				}
-			}			
-		}
+		return(sort(docs,tfs));
+	}
+	
+	/** Build both sort orders of postings that are already parsed.
+	 * Entries with equal keys keep their order from the arrays.
+	 * @param docs Document IDs, not modified
+	 * @param tfs Term Frequencies, docs[i] has term frequency tfs[i]
+	 * @return Postings sorted by Document ID and by term Frequency */
+	public static Sorted sort(int[] docs,int[] tfs){
+		return(sort(docs,tfs,docs.length));
+	}
+	
+	/** Build both sort orders of the first <i>n</i> parsed postings. The arrays are not kept,
+	 * so they can be reused for the next list.
+	 * @param docs Document IDs, not modified
+	 * @param tfs Term Frequencies, docs[i] has term frequency tfs[i]
+	 * @param n Number of valid entries
+	 * @return Postings sorted by Document ID and by term Frequency */
+	public static Sorted sort(int[] docs,int[] tfs,int n){
 		
-		//Create a Linked list corresponding to given data
-		LinkedList<String> l=new LinkedList<String>();
-		for(int i=0;i<data.length;i++){
-			String[] t=data[i].split("/");
-			l.add(t[0]);
-		}
-			
+		/* Sort keys carry the sort value in the upper 32 bits and the position in the
+		 * arrays in the lower 32 bits, so a plain sort of longs is stable */
+		long[] keys=new long[n];
+		
+		//Sorting data by Document ID
+		for(int i=0;i<n;i++)
+			keys[i]=((long)docs[i]<<32)|i;
+		Arrays.sort(keys);
+		Postings asc=reorder(keys,docs,tfs);
 		
-		return(l);		
+		//Sorting data by decreasing term Frequency
+		for(int i=0;i<n;i++)
+			keys[i]=((long)(Integer.MAX_VALUE-tfs[i])<<32)|i;
+		Arrays.sort(keys);
+		Postings dsc=reorder(keys,docs,tfs);
+		
+		return(new Sorted(asc,dsc));
+	}
+	
+	/** Build both sort orders of postings already in increasing order of Document IDs,
+	 * such as the merge of sorted lists. Only the term frequency order is sorted.
+	 * @param docs Document IDs in increasing order, not modified
+	 * @param tfs Term Frequencies, docs[i] has term frequency tfs[i]
+	 * @param n Number of valid entries
+	 * @return Postings sorted by Document ID and by term Frequency */
+	public static Sorted sortedByDoc(int[] docs,int[] tfs,int n){
+		long[] keys=new long[n];
+		for(int i=0;i<n;i++)
+			keys[i]=((long)(Integer.MAX_VALUE-tfs[i])<<32)|i;
+		Arrays.sort(keys);
+		return(new Sorted(new Postings(Arrays.copyOf(docs,n),Arrays.copyOf(tfs,n)),reorder(keys,docs,tfs)));
+	}
+	
+	/** Method to sort terms in ascending order of Document IDs
+	 * @param posting Enter the posting list entry
+	 * @return A sorted Postings list */
+	public static Postings sortAsc(String posting){
+		return(sort(posting).asc);
+	}
+	
+	/** Method to sort terms in descending order of term Frequencies
+	 * @param posting Enter the posting list entry
+	 * @return A sorted Postings list */
+	public static Postings sortDsc(String posting){
+		return(sort(posting).dsc);
+	}
+	
+	/** Count the "docId/tf" pairs in a postings list entry
+	 * @param posting Enter the posting list entry
+	 * @return Number of pairs */
+	private static int count(String posting){
+		int n=0;
+		for(int i=0;i<posting.length();i++)
+			if(posting.charAt(i)=='/')
+				n++;
+		return(n);
+	}
+	
+	/** Parse the "docId/tf" pairs of a postings list entry in a single pass
+	 * @param posting Enter the posting list entry
+	 * @param docs Array to receive the Document IDs
+	 * @param tfs Array to receive the term Frequencies */
+	private static void parse(String posting,int[] docs,int[] tfs){
+		int value=0;
+		int entry=0;
+		for(int i=0;i<posting.length();i++){
+			char c=posting.charAt(i);
+			if(c>='0' && c<='9'){
+				value=value*10+(c-'0');
+			}else if(c=='/'){						//End of document ID
+				docs[entry]=value;
+				value=0;
+			}else if(c==','){						//End of term frequency
+				tfs[entry++]=value;
+				value=0;
+			}
+		}
+		if(entry<docs.length)
+			tfs[entry]=value;						//Last pair is not followed by a comma
+	}
+	
+	/** Create a Postings list in the order given by sorted keys
+	 * @param keys Sorted keys, the lower 32 bits hold the position of the entry
+	 * @param docs Document IDs in file order
+	 * @param tfs Term Frequencies in file order
+	 * @return Postings list in key order */
+	private static Postings reorder(long[] keys,int[] docs,int[] tfs){
+		int[] d=new int[keys.length];
+		int[] t=new int[keys.length];
+		for(int i=0;i<keys.length;i++){
+			int from=(int)keys[i];
+			d[i]=docs[from];
+			t[i]=tfs[from];
+		}
+		return(new Postings(d,t));
 	}
 
 }
-
-
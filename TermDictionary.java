@@ -0,0 +1,356 @@
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/** Immutable sorted term dictionary, front-coded in blocks, mapping terms to ordinals.
+ * <br> Terms are sorted in unsigned UTF-8 byte order, the order of {@link IndexSegment}, and
+ * numbered from 0. They are stored in blocks of {@value #BLOCK} terms in a single byte array:
+ * the first term of a block in full, every following term as the length of the prefix it
+ * shares with the term before it and the rest of its bytes. A lookup binary searches the first
+ * terms of the blocks and then scans one block.
+ * <br> The postings of a term are found at its ordinal in one array per ordering, so both
+ * orderings share the one dictionary instead of a Hashtable of Strings each, see {@link #view(Postings[])}.
+ * <br> The dictionary is never changed after it is built, so any number of threads can look
+ * up terms at once without locking. */
+public class TermDictionary {
+	
+	/** Terms per block */
+	private static final int BLOCK=16;
+	
+	/** Number of terms */
+	private int size;
+	
+	/** Front-coded blocks, and the offset of every block in it */
+	private byte[] data;
+	private int[] blocks;
+	
+	private TermDictionary(int size,byte[] data,int[] blocks){
+		this.size=size;
+		this.data=data;
+		this.blocks=blocks;
+	}
+	
+	/** Build the dictionary of a set of terms
+	 * @param terms Distinct terms, in any order
+	 * @return Dictionary numbering the terms in unsigned UTF-8 byte order */
+	public static TermDictionary build(Collection<String> terms){
+		byte[][] keys=new byte[terms.size()][];
+		int n=0;
+		for(String t:terms)
+			keys[n++]=t.getBytes(StandardCharsets.UTF_8);
+		Arrays.sort(keys,new Comparator<byte[]>(){
+			@Override
+			public int compare(byte[] a,byte[] b){
+				return Arrays.compareUnsigned(a,b);
+			}
+		});
+		
+		ByteArray out=new ByteArray();
+		int[] blocks=new int[(n+BLOCK-1)/BLOCK];
+		for(int i=0;i<n;i++){
+			if(i>0 && Arrays.equals(keys[i],keys[i-1]))
+				throw new IllegalArgumentException("Duplicate term "+new String(keys[i],StandardCharsets.UTF_8));
+			if(i%BLOCK==0){
+				blocks[i/BLOCK]=out.size;
+				out.vint(keys[i].length);
+				out.bytes(keys[i],0,keys[i].length);
+			}else{
+				int shared=Arrays.mismatch(keys[i],keys[i-1]);
+				out.vint(shared);
+				out.vint(keys[i].length-shared);
+				out.bytes(keys[i],shared,keys[i].length-shared);
+			}
+		}
+		return new TermDictionary(n,Arrays.copyOf(out.buf,out.size),blocks);
+	}
+	
+	/** Growable byte array the blocks are written to */
+	private static class ByteArray {
+		byte[] buf=new byte[1024];
+		int size=0;
+		
+		void vint(int v){
+			while((v&~0x7f)!=0){
+				write((v&0x7f)|0x80);
+				v>>>=7;
+			}
+			write(v);
+		}
+		
+		void write(int b){
+			if(size==buf.length)
+				buf=Arrays.copyOf(buf,2*buf.length);
+			buf[size++]=(byte)b;
+		}
+		
+		void bytes(byte[] b,int off,int len){
+			if(size+len>buf.length)
+				buf=Arrays.copyOf(buf,Math.max(2*buf.length,size+len));
+			System.arraycopy(b,off,buf,size,len);
+			size+=len;
+		}
+	}
+	
+	/** Sequential reader of the terms from the start of a block. Each reader keeps its own
+	 * position and term bytes, so readers of different threads do not interfere */
+	private class Cursor {
+		private int pos;
+		private int ord;
+		private byte[] term=new byte[64];
+		private int len=0;
+		
+		/** @param block Block to start at, the cursor is before its first term */
+		Cursor(int block){
+			pos=block<blocks.length ? blocks[block] : data.length;
+			ord=block*BLOCK-1;
+		}
+		
+		/** Move to the next term
+		 * @return <i>false</i> at the end of the dictionary */
+		boolean next(){
+			if(ord+1>=size)
+				return false;
+			ord++;
+			int shared=ord%BLOCK==0 ? 0 : vint();
+			int rest=vint();
+			len=shared+rest;
+			if(len>term.length)
+				term=Arrays.copyOf(term,Math.max(len,2*term.length));
+			System.arraycopy(data,pos,term,shared,rest);
+			pos+=rest;
+			return true;
+		}
+		
+		private int vint(){
+			int v=0,shift=0,b;
+			do{
+				b=data[pos++];
+				v|=(b&0x7f)<<shift;
+				shift+=7;
+			}while((b&0x80)!=0);
+			return v;
+		}
+		
+		/** Compare the current term with a key in unsigned byte order */
+		int compareTo(byte[] key){
+			return Arrays.compareUnsigned(term,0,len,key,0,key.length);
+		}
+		
+		String term(){
+			return new String(term,0,len,StandardCharsets.UTF_8);
+		}
+	}
+	
+	/** Compare the first term of a block with a key */
+	private int compareBlock(int block,byte[] key){
+		int pos=blocks[block];
+		int len=0,shift=0,b;
+		do{
+			b=data[pos++];
+			len|=(b&0x7f)<<shift;
+			shift+=7;
+		}while((b&0x80)!=0);
+		return Arrays.compareUnsigned(data,pos,pos+len,key,0,key.length);
+	}
+	
+	/** Ordinal of the first term at or after a key */
+	private int ceiling(byte[] key){
+		//Last block whose first term is at or before the key
+		int lo=0,hi=blocks.length-1,block=-1;
+		while(lo<=hi){
+			int mid=(lo+hi)>>>1;
+			if(compareBlock(mid,key)<=0){
+				block=mid;
+				lo=mid+1;
+			}else{
+				hi=mid-1;
+			}
+		}
+		if(block<0)
+			return 0;
+		Cursor c=new Cursor(block);
+		while(c.next())
+			if(c.compareTo(key)>=0)
+				return c.ord;
+		return size;
+	}
+	
+	/** Ordinal of a term
+	 * @param term Term
+	 * @return Ordinal, -1 if the term is not in the dictionary */
+	public int ordinal(String term){
+		byte[] key=term.getBytes(StandardCharsets.UTF_8);
+		int block=-1,lo=0,hi=blocks.length-1;
+		while(lo<=hi){
+			int mid=(lo+hi)>>>1;
+			int c=compareBlock(mid,key);
+			if(c==0)
+				return mid*BLOCK;
+			if(c<0){
+				block=mid;
+				lo=mid+1;
+			}else{
+				hi=mid-1;
+			}
+		}
+		if(block<0)
+			return -1;
+		Cursor c=new Cursor(block);
+		c.next();
+		for(int i=1;i<BLOCK && c.next();i++){
+			int cmp=c.compareTo(key);
+			if(cmp==0)
+				return c.ord;
+			if(cmp>0)
+				break;
+		}
+		return -1;
+	}
+	
+	/** Term of an ordinal
+	 * @param ord Ordinal between 0 and size()-1
+	 * @return Term */
+	public String term(int ord){
+		if(ord<0 || ord>=size)
+			throw new IndexOutOfBoundsException("Ordinal: "+ord+", Size: "+size);
+		Cursor c=new Cursor(ord/BLOCK);
+		while(c.ord<ord)
+			c.next();
+		return c.term();
+	}
+	
+	/** Ordinals of the terms starting with a prefix, which are consecutive
+	 * @param prefix Prefix, the empty String matches every term
+	 * @return {from, to}: the terms have the ordinals from <i>from</i> up to, not including, <i>to</i> */
+	public int[] prefixRange(String prefix){
+		byte[] key=prefix.getBytes(StandardCharsets.UTF_8);
+		byte[] end=Arrays.copyOf(key,key.length+1);
+		end[key.length]=(byte)0xff;				//Never part of UTF-8, so it sorts after every term with the prefix
+		return new int[]{ceiling(key),ceiling(end)};
+	}
+	
+	/** Terms starting with a prefix, in dictionary order, decoded one after another
+	 * @param prefix Prefix, the empty String enumerates every term
+	 * @return Iterator over the terms */
+	public Iterator<String> prefix(String prefix){
+		final int[] range=prefixRange(prefix);
+		return terms(range[0],range[1]);
+	}
+	
+	/** Terms of a range of ordinals, in dictionary order
+	 * @param from First ordinal
+	 * @param to Ordinal after the last one
+	 * @return Iterator over the terms */
+	public Iterator<String> terms(final int from,final int to){
+		final Cursor c=new Cursor(from/BLOCK);
+		while(c.ord<from-1 && c.next())
+			;
+		return new Iterator<String>(){
+			@Override
+			public boolean hasNext(){
+				return c.ord+1<to;
+			}
+			
+			@Override
+			public String next(){
+				if(!hasNext() || !c.next())
+					throw new NoSuchElementException();
+				return c.term();
+			}
+		};
+	}
+	
+	/** @return Number of terms */
+	public int size(){
+		return size;
+	}
+	
+	/** Estimated heap footprint, assuming a 64 bit JVM with compressed oops
+	 * @param none
+	 * @return Size in bytes */
+	public long memoryBytes(){
+		return 24+Postings.align(16+data.length)+Postings.align(16+4L*blocks.length);
+	}
+	
+	/** Estimated heap footprint of the two Hashtables the dictionary replaces: a node and a table
+	 * slot per term in each of them, and one String per term shared by both
+	 * @param none
+	 * @return Size in bytes */
+	public long hashtableBytes(){
+		long bytes=2*(48+Postings.align(16+4L*size*4/3));
+		Iterator<String> it=terms(0,size);
+		while(it.hasNext())
+			bytes+=2*32+24+Postings.align(16+it.next().length());
+		return bytes;
+	}
+	
+	/** Number of terms and memory compared with two Hashtables
+	 * @param none
+	 * @return Human readable summary */
+	public String report(){
+		long m=memoryBytes(),h=hashtableBytes();
+		return "Term dictionary: "+size+" terms in "+(m/1024)+" KB front-coded vs "+(h/1024)+" KB as two Hashtables ("
+				+String.format("%.1f",h/(double)Math.max(m,1))+"x smaller)";
+	}
+	
+	/** Read only Map from the terms to the postings of one ordering
+	 * @param postings Postings of every ordinal, shared with the map
+	 * @return Map over the dictionary. Its entries can be given new postings, which changes the array */
+	public Map<String,Postings> view(final Postings[] postings){
+		if(postings.length!=size)
+			throw new IllegalArgumentException("Expected "+size+" postings lists, got "+postings.length);
+		return new AbstractMap<String,Postings>(){
+			@Override
+			public Postings get(Object key){
+				if(!(key instanceof String))
+					return null;
+				int ord=ordinal((String)key);
+				return ord<0 ? null : postings[ord];
+			}
+			
+			@Override
+			public boolean containsKey(Object key){
+				return key instanceof String && ordinal((String)key)>=0;
+			}
+			
+			@Override
+			public int size(){
+				return size;
+			}
+			
+			@Override
+			public Set<Map.Entry<String,Postings>> entrySet(){
+				return new AbstractSet<Map.Entry<String,Postings>>(){
+					@Override
+					public int size(){
+						return size;
+					}
+					
+					@Override
+					public Iterator<Map.Entry<String,Postings>> iterator(){
+						final Iterator<String> terms=terms(0,size);
+						return new Iterator<Map.Entry<String,Postings>>(){
+							private int ord=0;
+							
+							@Override
+							public boolean hasNext(){
+								return terms.hasNext();
+							}
+							
+							@Override
+							public Map.Entry<String,Postings> next(){
+								final int o=ord++;
+								return new AbstractMap.SimpleEntry<String,Postings>(terms.next(),postings[o]){
+									@Override
+									public Postings setValue(Postings value){
+										postings[o]=value;
+										return super.setValue(value);
+									}
+								};
+							}
+						};
+					}
+				};
+			}
+		};
+	}
+}
@@ -0,0 +1,164 @@
+import java.util.*;
+
+/** The 'k' terms with the longest postings lists among the terms offered so far.
+ * <br> The terms are kept in a min-heap of at most k entries with the weakest term at
+ * the root, so offering V terms takes O(V log k) time and O(k) memory instead of
+ * sorting all of them. Among terms with the same postings list size the one offered
+ * first ranks higher, which is the order a stable sort of the offered terms gives. */
+public class TopK {
+	
+	private int k;
+	
+	/** Heap entries, term toks[i] has a postings list of size freqs[i] */
+	private String[] toks;
+	private int[] freqs;
+	
+	/** Order in which the entries were offered, breaks ties between equal sizes */
+	private long[] seqs;
+	
+	private int size=0;
+	private long offered=0;
+	
+	/** @param k Number of terms to keep */
+	TopK(int k){
+		if(k<0)
+			throw new IllegalArgumentException("k must not be negative");
+		this.k=k;
+		this.toks=new String[k];
+		this.freqs=new int[k];
+		this.seqs=new long[k];
+	}
+	
+	/** Number of terms kept
+	 * @param none
+	 * @return k */
+	public int k(){
+		return k;
+	}
+	
+	/** Number of terms offered so far
+	 * @param none
+	 * @return Count of calls to {@link #offer(String,int)} */
+	public long offered(){
+		return offered;
+	}
+	
+	/** Offer a term. It is kept if it ranks among the top k terms seen so far
+	 * @param tok Term
+	 * @param freq Size of its postings list
+	 * @return void */
+	public void offer(String tok,int freq){
+		long seq=offered++;
+		if(size<k){
+			toks[size]=tok;
+			freqs[size]=freq;
+			seqs[size]=seq;
+			siftUp(size++);
+		}else if(k>0 && freq>freqs[0]){
+			//Later terms only beat the root with a strictly longer list
+			toks[0]=tok;
+			freqs[0]=freq;
+			seqs[0]=seq;
+			siftDown(0);
+		}
+	}
+	
+	/** Offer every term kept by another instance, best first. The terms the other
+	 * instance dropped count as offered here as well
+	 * @param o Other top terms
+	 * @return void */
+	public void offerAll(TopK o){
+		String[] t=o.terms();
+		int[] f=o.sizes();
+		for(int i=0;i<t.length;i++)
+			offer(t[i],f[i]);
+		offered+=o.offered()-t.length;
+	}
+	
+	/** Terms kept, best first
+	 * @param none
+	 * @return Up to k terms in descending order of postings list size */
+	public String[] terms(){
+		int[] order=order();
+		String[] r=new String[size];
+		for(int i=0;i<size;i++)
+			r[i]=toks[order[i]];
+		return r;
+	}
+	
+	/** Postings list sizes of the terms returned by {@link #terms()}, in the same order
+	 * @param none
+	 * @return Up to k sizes in descending order */
+	public int[] sizes(){
+		int[] order=order();
+		int[] r=new int[size];
+		for(int i=0;i<size;i++)
+			r[i]=freqs[order[i]];
+		return r;
+	}
+	
+	/** Heap positions sorted best first
+	 * @return Positions of the kept entries */
+	private int[] order(){
+		Integer[] o=new Integer[size];
+		for(int i=0;i<size;i++)
+			o[i]=i;
+		Arrays.sort(o,new Comparator<Integer>(){
+			@Override
+			public int compare(Integer a,Integer b){
+				return weaker(a,b) ? 1 : weaker(b,a) ? -1 : 0;
+			}
+		});
+		int[] r=new int[size];
+		for(int i=0;i<size;i++)
+			r[i]=o[i];
+		return r;
+	}
+	
+	/** Whether entry a ranks below entry b */
+	private boolean weaker(int a,int b){
+		if(freqs[a]!=freqs[b])
+			return freqs[a]<freqs[b];
+		return seqs[a]>seqs[b];
+	}
+	
+	/** Move an entry up until its parent is weaker */
+	private void siftUp(int i){
+		while(i>0){
+			int parent=(i-1)/2;
+			if(!weaker(i,parent))
+				break;
+			swap(i,parent);
+			i=parent;
+		}
+	}
+	
+	/** Move an entry down until both of its children are stronger */
+	private void siftDown(int i){
+		while(true){
+			int child=2*i+1;
+			if(child>=size)
+				break;
+			
+			//Pick the weaker child
+			if(child+1<size && weaker(child+1,child))
+				child++;
+			if(!weaker(child,i))
+				break;
+			swap(i,child);
+			i=child;
+		}
+	}
+	
+	private void swap(int a,int b){
+		String t=toks[a];
+		toks[a]=toks[b];
+		toks[b]=t;
+		int f=freqs[a];
+		freqs[a]=freqs[b];
+		freqs[b]=f;
+		long s=seqs[a];
+		seqs[a]=seqs[b];
+		seqs[b]=s;
+	}
+}
@@ -0,0 +1,216 @@
+import java.util.*;
+
+/** Prefix queries over an index: a query term ending in '*', such as "comput*", stands for
+ * every indexed term starting with the characters before the '*'.
+ * <br> The pattern is expanded against a sorted {@link TermDictionary}, where the terms of a
+ * prefix are one range of ordinals, and the postings of the expanded terms are unioned once
+ * into a single list per ordering: document IDs in increasing order, the term frequencies of
+ * a document summed over the expanded terms. Every query method then treats the pattern like
+ * any other term through the Maps of {@link #getTAAT()} and {@link #getDAAT()}, instead of
+ * evaluating a large OR of the expanded terms.
+ * <br> A pattern expands to at most {@link #setMaxExpansions(int) max} terms, the first ones
+ * in dictionary order. Unions are kept in a small least recently used cache, so the several
+ * query methods run for one query line expand a pattern once. The unions of short prefixes,
+ * which match the most terms, can be computed in advance with {@link #precompute(int)}.
+ * <br> The index is read only and can be shared by several threads. */
+public class WildcardIndex {
+	
+	/** Marks a query term as a prefix pattern when it is the last character */
+	static final char WILDCARD='*';
+	
+	/** Default limit on the terms a pattern expands to */
+	static final int MAX_EXPANSIONS=1024;
+	
+	/** Unions of patterns kept after use */
+	private static final int CACHED_UNIONS=64;
+	
+	private Map<String,Postings> taat,daat;
+	private TermDictionary dictionary;
+	private int max=MAX_EXPANSIONS;
+	
+	/** Cached in place of the union of a pattern that matches no term */
+	private static final SortArr.Sorted NONE=new SortArr.Sorted(null,null);
+	
+	/** Unions computed by {@link #precompute(int)}, not changed afterwards */
+	private Map<String,SortArr.Sorted> precomputed=new HashMap<String,SortArr.Sorted>();
+	
+	/** Recently used unions in access order, the eldest is evicted first */
+	private LinkedHashMap<String,SortArr.Sorted> recent=new LinkedHashMap<String,SortArr.Sorted>(16,0.75f,true){
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String,SortArr.Sorted> eldest){
+			return size()>CACHED_UNIONS;
+		}
+	};
+	
+	/** Patterns expanded, patterns cut at the limit and cache hits */
+	private long expanded=0,truncated=0,hits=0;
+	
+	/** @param taat Index ordered by decreasing term frequencies
+	 * @param daat Index ordered by increasing document IDs
+	 * @param dictionary Terms of both indices, <i>null</i> to build it from the terms of <i>daat</i> */
+	WildcardIndex(Map<String,Postings> taat,Map<String,Postings> daat,TermDictionary dictionary){
+		this.taat=taat;
+		this.daat=daat;
+		this.dictionary=dictionary!=null ? dictionary : TermDictionary.build(daat.keySet());
+	}
+	
+	/** Limit the number of terms a pattern expands to
+	 * @param max Maximum number of terms, at least 1
+	 * @return void */
+	public void setMaxExpansions(int max){
+		if(max<1)
+			throw new IllegalArgumentException("Expansion limit must be at least 1, got "+max);
+		this.max=max;
+	}
+	
+	/** Whether a query term is a prefix pattern
+	 * @param term Query term
+	 * @return <i>true</i> if the term ends in '*' */
+	public static boolean isPattern(String term){
+		return term.length()>0 && term.charAt(term.length()-1)==WILDCARD;
+	}
+	
+	/** Terms a pattern expands to, in dictionary order and cut at the expansion limit
+	 * @param pattern Query term ending in '*'
+	 * @return Indexed terms starting with the prefix of the pattern */
+	public String[] expand(String pattern){
+		int[] range=dictionary.prefixRange(pattern.substring(0,pattern.length()-1));
+		synchronized(this){
+			expanded++;
+			if(range[1]-range[0]>max)
+				truncated++;
+		}
+		return terms(range);
+	}
+	
+	/** The first terms of a range of ordinals, up to the expansion limit */
+	private String[] terms(int[] range){
+		String[] terms=new String[Math.min(range[1]-range[0],max)];
+		Iterator<String> it=dictionary.terms(range[0],range[0]+terms.length);
+		for(int i=0;i<terms.length;i++)
+			terms[i]=it.next();
+		return terms;
+	}
+	
+	/** Both orderings of the union of the expanded terms
+	 * @return Union, <i>null</i> if no term starts with the prefix */
+	private SortArr.Sorted union(String pattern){
+		SortArr.Sorted u=precomputed.get(pattern);
+		if(u==null){
+			synchronized(this){
+				u=recent.get(pattern);
+				if(u!=null)
+					hits++;
+			}
+		}else{
+			synchronized(this){
+				hits++;
+			}
+		}
+		if(u==null){
+			//Computed outside of the lock, two threads may both compute a new pattern
+			u=compute(expand(pattern));
+			if(u==null)
+				u=NONE;
+			synchronized(this){
+				recent.put(pattern,u);
+			}
+		}
+		return u==NONE ? null : u;
+	}
+	
+	/** Merge the document ID ordered lists of the terms, see {@link Functions.IteratorMerge} */
+	private SortArr.Sorted compute(String[] terms){
+		if(terms.length==0)
+			return null;
+		if(terms.length==1)
+			return new SortArr.Sorted(daat.get(terms[0]),taat.get(terms[0]));
+		
+		List<Postings> lists=new ArrayList<Postings>(terms.length);
+		int capacity=0;
+		for(String t:terms){
+			Postings p=daat.get(t);
+			if(p!=null){
+				lists.add(p);
+				capacity+=p.size();
+			}
+		}
+		int[] docs=new int[capacity],tfs=new int[capacity];
+		int n=new Functions.IteratorMerge().or(lists,docs,tfs);
+		return SortArr.sortedByDoc(docs,tfs,n);
+	}
+	
+	/** Compute the unions of all prefixes of up to <i>length</i> characters that match more than one term.
+	 * <br> These are the patterns with the most terms to merge. Their unions are kept for the
+	 * life of the index, each as large as the postings of its terms together, so a length of 1
+	 * or 2 is usually enough. Must be called before the index is shared with other threads
+	 * @param length Longest prefix to compute, in characters
+	 * @return void */
+	public void precompute(int length){
+		Set<String> prefixes=new TreeSet<String>();
+		Iterator<String> it=dictionary.terms(0,dictionary.size());
+		while(it.hasNext()){
+			String t=it.next();
+			for(int l=1;l<=Math.min(length,t.length());l++)
+				if(!Character.isHighSurrogate(t.charAt(l-1)))
+					prefixes.add(t.substring(0,l));
+		}
+		for(String p:prefixes){
+			int[] range=dictionary.prefixRange(p);
+			if(range[1]-range[0]>1)
+				precomputed.put(p+WILDCARD,compute(terms(range)));
+		}
+	}
+	
+	/** Index ordered by decreasing term frequencies, which also answers patterns
+	 * @param none
+	 * @return Read only Map */
+	public Map<String,Postings> getTAAT(){
+		return view(taat,false);
+	}
+	
+	/** Index ordered by increasing document IDs, which also answers patterns
+	 * @param none
+	 * @return Read only Map */
+	public Map<String,Postings> getDAAT(){
+		return view(daat,true);
+	}
+	
+	/** Map that looks patterns up as their union and every other term in the index. A term
+	 * ending in '*' that is itself indexed is looked up as the term. Its size and entries are those of the index, patterns are not listed */
+	private Map<String,Postings> view(final Map<String,Postings> index,final boolean byDoc){
+		return new AbstractMap<String,Postings>(){
+			@Override
+			public Postings get(Object key){
+				Postings p=index.get(key);
+				if(p!=null || !(key instanceof String) || !isPattern((String)key))
+					return p;
+				SortArr.Sorted u=union((String)key);
+				return u==null ? null : byDoc ? u.asc : u.dsc;
+			}
+			
+			@Override
+			public boolean containsKey(Object key){
+				return get(key)!=null;
+			}
+			
+			@Override
+			public int size(){
+				return index.size();
+			}
+			
+			@Override
+			public Set<Map.Entry<String,Postings>> entrySet(){
+				return Collections.unmodifiableMap(index).entrySet();
+			}
+		};
+	}
+	
+	/** Patterns expanded and served from the precomputed and recent unions
+	 * @param none
+	 * @return Human readable summary */
+	public synchronized String report(){
+		return "Wildcards: "+expanded+" patterns expanded ("+truncated+" cut at "+max+" terms), "+hits+" served from "
+				+precomputed.size()+" precomputed and "+recent.size()+" recent unions";
+	}
+}
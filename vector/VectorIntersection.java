@@ -0,0 +1,85 @@
+import jdk.incubator.vector.*;
+
+/** Intersection and union kernel using the Java Vector API.
+ * <br> This class needs the incubating <i>jdk.incubator.vector</i> module, so it is not
+ * part of the default sources. Compile it after the other classes with
+ * <pre>
+ * javac --add-modules jdk.incubator.vector -cp . -d . vector/VectorIntersection.java
+ * </pre>
+ * and add the module when running. {@link IntersectionKernel#create()} falls back to the
+ * scalar kernel when either step is missing.
+ * <br> The intersection compares a block of one array against a block of the other, one
+ * broadcast element at a time, and moves on from the block with the smaller last element.
+ * The union copies whole blocks that lie before the other array's next element. */
+public class VectorIntersection extends IntersectionKernel {
+
+	private static final VectorSpecies<Integer> SPECIES=IntVector.SPECIES_PREFERRED;
+	private static final int LANES=SPECIES.length();
+
+	@Override
+	public int and(int[] a,int na,int[] b,int nb,int[] out){
+		int i=0,j=0,k=0,c=0;
+		while(i+LANES<=na && j+LANES<=nb){
+			c++;
+			int amax=a[i+LANES-1],bmax=b[j+LANES-1];
+			IntVector va=IntVector.fromArray(SPECIES,a,i);
+
+			//Lanes of the a block equal to some element of the b block
+			VectorMask<Integer> m=va.eq(b[j]);
+			for(int t=1;t<LANES;t++)
+				m=m.or(va.eq(b[j+t]));
+
+			//The matches are in increasing order, and out never overtakes a
+			for(long bits=m.toLong();bits!=0;bits&=bits-1)
+				out[k++]=a[i+Long.numberOfTrailingZeros(bits)];
+
+			if(amax<=bmax)
+				i+=LANES;
+			if(bmax<=amax)
+				j+=LANES;
+		}
+		comparisons+=c;
+		return Scalar.and(a,i,na,b,j,nb,out,k,this);
+	}
+
+	@Override
+	public int or(int[] a,int na,int[] b,int nb,int[] out){
+		int i=0,j=0,k=0,c=0;
+		while(i+LANES<=na && j+LANES<=nb){
+			c++;
+			if(a[i+LANES-1]<b[j]){
+				IntVector.fromArray(SPECIES,a,i).intoArray(out,k);
+				i+=LANES;
+				k+=LANES;
+			}else if(b[j+LANES-1]<a[i]){
+				IntVector.fromArray(SPECIES,b,j).intoArray(out,k);
+				j+=LANES;
+				k+=LANES;
+			}else{
+				//The blocks overlap, merge one block's worth of elements
+				for(int t=0;t<LANES && i<na && j<nb;t++){
+					c++;
+					int x=a[i],y=b[j];
+					if(x==y){
+						out[k++]=x;
+						i++;
+						j++;
+					}else if(x<y){
+						out[k++]=x;
+						i++;
+					}else{
+						out[k++]=y;
+						j++;
+					}
+				}
+			}
+		}
+		comparisons+=c;
+		return Scalar.or(a,i,na,b,j,nb,out,k,this);
+	}
+
+	@Override
+	public String name(){
+		return "vector("+LANES+"x32)";
+	}
+}